@@ -0,0 +1,227 @@
+package com.example.cfs_hrv;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Re-runs the HRV analysis over stored raw captures (TileSumRecorder files) so the history can be
+ * brought up to date when the detection changes. Recordings are split across a ForkJoinPool; each
+ * worker reads, analyses and lets go of one recording at a time, so memory stays at one recording
+ * per thread however long the history is.
+ *
+ * Results come back in input order with read and analysis times. applyTo() folds them into HRVData
+ * entries; HRVDataManager.reprocessRecordings does that and saves the file in one atomic write.
+ */
+public class BatchReprocessor {
+
+    public static final String CAPTURE_DIRECTORY = "captures";   // Under getExternalFilesDir(null)
+    public static final String RECORDING_SUFFIX = ".ppgt";
+
+    public interface ProgressListener {
+        /**
+         * Called from the worker thread as each recording finishes, in completion order
+         */
+        void onRecording(RecordingResult result, int completed, int total);
+    }
+
+    /**
+     * What is run on each recording's frames, HRVMeasurementSystem::analyze unless replaced
+     */
+    public interface Analysis {
+        HRVAnalysisResult analyze(List<HRVMeasurementSystem.DataPoint> frames);
+    }
+
+    public static class RecordingResult {
+        public final File file;
+        public final long startedAtMillis;
+        public final HRVAnalysisResult analysis;   // null if the recording couldn't be read or analysed
+        public final Exception error;
+        public final long readNanos;
+        public final long analysisNanos;
+
+        RecordingResult(File file, long startedAtMillis, HRVAnalysisResult analysis, Exception error,
+                        long readNanos, long analysisNanos) {
+            this.file = file;
+            this.startedAtMillis = startedAtMillis;
+            this.analysis = analysis;
+            this.error = error;
+            this.readNanos = readNanos;
+            this.analysisNanos = analysisNanos;
+        }
+
+        public boolean succeeded() {
+            return analysis != null;
+        }
+
+        /**
+         * The HRVData date this recording belongs to
+         */
+        public String getDate() {
+            return new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault()).format(new Date(startedAtMillis));
+        }
+
+        @Override
+        public String toString() {
+            if (!succeeded()) {
+                return file.getName() + ": " + error;
+            }
+            return String.format(Locale.US, "%s: read %.1f ms, analysis %.1f ms, HR %.1f, RMSSD %.1f",
+                    file.getName(), readNanos / 1e6, analysisNanos / 1e6,
+                    analysis.getMetrics().heartRate, analysis.getMetrics().rmssd);
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final Analysis analysis;
+
+    public BatchReprocessor() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public BatchReprocessor(ForkJoinPool pool) {
+        this(pool, HRVMeasurementSystem::analyze);
+    }
+
+    public BatchReprocessor(ForkJoinPool pool, Analysis analysis) {
+        this.pool = pool;
+        this.analysis = analysis;
+    }
+
+    /**
+     * The raw captures in a directory, oldest first (the file names are timestamps)
+     */
+    public static List<File> findRecordings(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(RECORDING_SUFFIX));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    /**
+     * Analyse every recording, blocking until all are done. A recording that can't be read, or that
+     * the analysis throws on, gives a failed result rather than stopping the batch.
+     */
+    public List<RecordingResult> reprocess(List<File> recordings, ProgressListener listener) {
+        RecordingResult[] results = new RecordingResult[recordings.size()];
+        AtomicInteger completed = new AtomicInteger();
+        pool.invoke(new Batch(recordings, analysis, results, 0, results.length, completed, listener));
+        return Arrays.asList(results);
+    }
+
+    // Splits the range in half until it is a single recording
+    private static class Batch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> recordings;
+        private final Analysis analysis;
+        private final RecordingResult[] results;
+        private final int from;
+        private final int to;
+        private final AtomicInteger completed;
+        private final ProgressListener listener;
+
+        Batch(List<File> recordings, Analysis analysis, RecordingResult[] results, int from, int to,
+              AtomicInteger completed, ProgressListener listener) {
+            this.recordings = recordings;
+            this.analysis = analysis;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.completed = completed;
+            this.listener = listener;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Batch(recordings, analysis, results, from, middle, completed, listener),
+                        new Batch(recordings, analysis, results, middle, to, completed, listener));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                results[i] = process(recordings.get(i), analysis);
+                if (listener != null) {
+                    listener.onRecording(results[i], completed.incrementAndGet(), results.length);
+                }
+            }
+        }
+    }
+
+    private static RecordingResult process(File file, Analysis analysis) {
+        long start = System.nanoTime();
+        List<HRVMeasurementSystem.DataPoint> points;
+        long startedAt;
+        try (TileSumRecorder.Reader reader = new TileSumRecorder.Reader(file)) {
+            startedAt = reader.getStartedAtMillis();
+            points = new ArrayList<>(reader.getFrameCount());
+            while (reader.next()) {
+                points.add(reader.toDataPoint());
+            }
+        } catch (IOException e) {
+            return new RecordingResult(file, file.lastModified(), null, e, System.nanoTime() - start, 0);
+        }
+        long read = System.nanoTime();
+        try {
+            HRVAnalysisResult result = analysis.analyze(points);
+            return new RecordingResult(file, startedAt, result, null, read - start, System.nanoTime() - read);
+        } catch (RuntimeException e) {
+            // One pathological recording mustn't take the rest of the batch down with it
+            return new RecordingResult(file, startedAt, null, e, read - start, System.nanoTime() - read);
+        }
+    }
+
+    /**
+     * Put the new metrics into the matching day's entry. Where a day has several recordings the
+     * latest one wins, as it did when they were measured. Days without an entry are left alone, and
+     * the fatigue and headache ratings are kept.
+     *
+     * @return number of entries updated
+     */
+    public static int applyTo(List<HRVData> history, List<RecordingResult> results) {
+        Map<String, RecordingResult> latest = new HashMap<>();
+        for (RecordingResult result : results) {
+            if (!result.succeeded() || result.analysis.getMetrics().validBeats == 0) continue;
+            RecordingResult current = latest.get(result.getDate());
+            if (current == null || result.startedAtMillis >= current.startedAtMillis) {
+                latest.put(result.getDate(), result);
+            }
+        }
+
+        int updated = 0;
+        for (HRVData entry : history) {
+            RecordingResult result = latest.get(entry.getDate());
+            if (result == null) continue;
+            entry.setMetrics(result.analysis.getMetrics());
+            updated++;
+        }
+        return updated;
+    }
+
+    /**
+     * Summary line for a finished batch
+     */
+    public static String report(List<RecordingResult> results, long wallNanos) {
+        int failed = 0;
+        long busyNanos = 0;
+        for (RecordingResult result : results) {
+            if (!result.succeeded()) failed++;
+            busyNanos += result.readNanos + result.analysisNanos;
+        }
+        return String.format(Locale.US, "%d recordings (%d failed) in %.0f ms, %.0f ms of work",
+                results.size(), failed, wallNanos / 1e6, busyNanos / 1e6);
+    }
+}
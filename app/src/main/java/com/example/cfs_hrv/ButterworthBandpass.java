@@ -0,0 +1,268 @@
+package com.example.cfs_hrv;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Butterworth band-pass built as a cascade of second-order sections (a Butterworth high-pass at the
+ * low edge followed by a Butterworth low-pass at the high edge), designed with the bilinear
+ * transform for the actual sample rate. The PPG band is wide (0.5-4 Hz is three octaves) so the
+ * two edges barely interact and the cascade has the textbook response at both ends.
+ *
+ * A Design holds the coefficients and is cached per (sample rate, band, order), so building one is
+ * a map lookup after the first time. The rate is rounded to RATE_RESOLUTION_HZ first, so measured
+ * rates that differ in the last digits share a design instead of growing the cache per recording.
+ * A ButterworthBandpass instance holds the filter state and filters sample by sample without
+ * allocating; filtfilt() runs a design forwards and backwards over a whole recording for zero phase.
+ */
+public class ButterworthBandpass {
+
+    public static final int DEFAULT_ORDER = 2;   // Per edge, so 4th order overall
+
+    // Far below anything that moves the response of a 0.5-4 Hz band
+    public static final double RATE_RESOLUTION_HZ = 0.01;
+
+    /**
+     * Coefficients of the cascade, normalised so a0 == 1. Immutable and shared.
+     */
+    public static final class Design {
+        public final double sampleRate;
+        public final double lowHz;
+        public final double highHz;
+        public final int order;
+
+        // Per section: b0, b1, b2, a1, a2
+        final double[] coefficients;
+        final int sections;
+
+        Design(double sampleRate, double lowHz, double highHz, int order) {
+            this.sampleRate = sampleRate;
+            this.lowHz = lowHz;
+            this.highHz = highHz;
+            this.order = order;
+
+            int sectionsPerEdge = order / 2;
+            sections = 2 * sectionsPerEdge;
+            coefficients = new double[sections * 5];
+            for (int k = 0; k < sectionsPerEdge; k++) {
+                double q = butterworthQ(order, k);
+                setSection(k, false, lowHz, q);
+                setSection(sectionsPerEdge + k, true, highHz, q);
+            }
+        }
+
+        // Q of the k-th pole pair of an even order Butterworth filter
+        private static double butterworthQ(int order, int k) {
+            return 1.0 / (2.0 * Math.sin((2 * k + 1) * Math.PI / (2.0 * order)));
+        }
+
+        // Bilinear transform of a 2nd order section, pre-warped to the cutoff
+        private void setSection(int section, boolean lowPass, double cutoffHz, double q) {
+            double w0 = 2 * Math.PI * cutoffHz / sampleRate;
+            double cos = Math.cos(w0);
+            double alpha = Math.sin(w0) / (2 * q);
+            double a0 = 1 + alpha;
+
+            double b0;
+            double b1;
+            if (lowPass) {
+                b0 = (1 - cos) / 2;
+                b1 = 1 - cos;
+            } else {
+                b0 = (1 + cos) / 2;
+                b1 = -(1 + cos);
+            }
+
+            int c = section * 5;
+            coefficients[c] = b0 / a0;
+            coefficients[c + 1] = b1 / a0;
+            coefficients[c + 2] = b0 / a0;
+            coefficients[c + 3] = -2 * cos / a0;
+            coefficients[c + 4] = (1 - alpha) / a0;
+        }
+
+        public int getSectionCount() {
+            return sections;
+        }
+
+        /**
+         * Magnitude response at a frequency, for checking a design
+         */
+        public double magnitudeAt(double frequencyHz) {
+            double w = 2 * Math.PI * frequencyHz / sampleRate;
+            double cos1 = Math.cos(w), sin1 = Math.sin(w);
+            double cos2 = Math.cos(2 * w), sin2 = Math.sin(2 * w);
+            double magnitude = 1;
+            for (int s = 0; s < sections; s++) {
+                int c = s * 5;
+                double numRe = coefficients[c] + coefficients[c + 1] * cos1 + coefficients[c + 2] * cos2;
+                double numIm = -coefficients[c + 1] * sin1 - coefficients[c + 2] * sin2;
+                double denRe = 1 + coefficients[c + 3] * cos1 + coefficients[c + 4] * cos2;
+                double denIm = -coefficients[c + 3] * sin1 - coefficients[c + 4] * sin2;
+                magnitude *= Math.hypot(numRe, numIm) / Math.hypot(denRe, denIm);
+            }
+            return magnitude;
+        }
+    }
+
+    private static final class Key {
+        final double sampleRate;
+        final double lowHz;
+        final double highHz;
+        final int order;
+
+        Key(double sampleRate, double lowHz, double highHz, int order) {
+            this.sampleRate = sampleRate;
+            this.lowHz = lowHz;
+            this.highHz = highHz;
+            this.order = order;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            return sampleRate == other.sampleRate && lowHz == other.lowHz
+                    && highHz == other.highHz && order == other.order;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = Double.hashCode(sampleRate);
+            hash = 31 * hash + Double.hashCode(lowHz);
+            hash = 31 * hash + Double.hashCode(highHz);
+            return 31 * hash + order;
+        }
+    }
+
+    private static final Map<Key, Design> designCache = new ConcurrentHashMap<>();
+
+    public static Design design(double sampleRate, double lowHz, double highHz) {
+        return design(sampleRate, lowHz, highHz, DEFAULT_ORDER);
+    }
+
+    /**
+     * The cached design for a band, order is per edge and must be even. The sample rate is rounded
+     * to RATE_RESOLUTION_HZ and the high edge is pulled below Nyquist if the rate can't reach it.
+     */
+    public static Design design(double sampleRate, double lowHz, double highHz, int order) {
+        if (sampleRate <= 0 || lowHz <= 0 || highHz <= lowHz || order < 2 || order % 2 != 0) {
+            throw new IllegalArgumentException("Need sampleRate > 0, 0 < low < high and an even order");
+        }
+        double rate = Math.max(RATE_RESOLUTION_HZ, Math.round(sampleRate / RATE_RESOLUTION_HZ) * RATE_RESOLUTION_HZ);
+        double high = Math.min(highHz, 0.45 * rate);
+        Key key = new Key(rate, lowHz, high, order);
+        Design design = designCache.get(key);
+        if (design == null) {
+            design = designCache.computeIfAbsent(key, k -> new Design(k.sampleRate, k.lowHz, k.highHz, k.order));
+        }
+        return design;
+    }
+
+    private final Design design;
+    private final double[] state;   // Transposed direct form II, two per section
+
+    public ButterworthBandpass(Design design) {
+        this.design = design;
+        this.state = new double[design.sections * 2];
+    }
+
+    public ButterworthBandpass(double sampleRate, double lowHz, double highHz) {
+        this(design(sampleRate, lowHz, highHz));
+    }
+
+    public Design getDesign() {
+        return design;
+    }
+
+    public void reset() {
+        Arrays.fill(state, 0);
+    }
+
+    /**
+     * Set the state to what it would be after a long run of a constant input, so a signal sitting
+     * at a DC level doesn't start with a step transient
+     */
+    public void reset(double initialValue) {
+        setSteadyState(design, state, initialValue);
+    }
+
+    private static void setSteadyState(Design design, double[] state, double input) {
+        double[] c = design.coefficients;
+        double x = input;
+        for (int s = 0; s < design.sections; s++) {
+            int k = s * 5;
+            double gain = (c[k] + c[k + 1] + c[k + 2]) / (1 + c[k + 3] + c[k + 4]);
+            double y = gain * x;
+            state[s * 2 + 1] = c[k + 2] * x - c[k + 4] * y;
+            state[s * 2] = c[k + 1] * x - c[k + 3] * y + state[s * 2 + 1];
+            x = y;
+        }
+    }
+
+    /**
+     * Filter one sample
+     */
+    public double process(double input) {
+        return step(design.coefficients, state, design.sections, input);
+    }
+
+    /**
+     * Filter a run of samples in place, continuing from the current state
+     */
+    public void process(double[] data, int from, int to) {
+        double[] c = design.coefficients;
+        int sections = design.sections;
+        for (int i = from; i < to; i++) {
+            data[i] = step(c, state, sections, data[i]);
+        }
+    }
+
+    private static double step(double[] c, double[] state, int sections, double input) {
+        double x = input;
+        for (int s = 0, k = 0, z = 0; s < sections; s++, k += 5, z += 2) {
+            double y = c[k] * x + state[z];
+            state[z] = c[k + 1] * x - c[k + 3] * y + state[z + 1];
+            state[z + 1] = c[k + 2] * x - c[k + 4] * y;
+            x = y;
+        }
+        return x;
+    }
+
+    /**
+     * Zero-phase filtering of data[0..n) in place: forwards, then backwards over the result, with
+     * odd reflection at both ends so the edges settle before the real samples start. The magnitude
+     * response is the design's squared.
+     */
+    public static void filtfilt(Design design, double[] data, int n) {
+        if (n < 2) return;
+        // About one period of the low edge, the slowest transient in the cascade
+        int pad = Math.min(n - 1, Math.max(3 * design.sections, (int) Math.ceil(design.sampleRate / design.lowHz)));
+        double[] extended = new double[n + 2 * pad];
+        double first = data[0];
+        double last = data[n - 1];
+        for (int i = 0; i < pad; i++) {
+            extended[i] = 2 * first - data[pad - i];
+            extended[pad + n + i] = 2 * last - data[n - 2 - i];
+        }
+        System.arraycopy(data, 0, extended, pad, n);
+
+        double[] c = design.coefficients;
+        int sections = design.sections;
+        double[] state = new double[sections * 2];
+        int length = extended.length;
+
+        setSteadyState(design, state, extended[0]);
+        for (int i = 0; i < length; i++) {
+            extended[i] = step(c, state, sections, extended[i]);
+        }
+
+        setSteadyState(design, state, extended[length - 1]);
+        for (int i = length - 1; i >= 0; i--) {
+            extended[i] = step(c, state, sections, extended[i]);
+        }
+
+        System.arraycopy(extended, pad, data, 0, n);
+    }
+}
@@ -0,0 +1,64 @@
+package com.example.cfs_hrv;
+
+import android.media.Image;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.OptIn;
+import androidx.camera.core.ExperimentalGetImage;
+import androidx.camera.core.ImageAnalysis;
+import androidx.camera.core.ImageProxy;
+
+/**
+ * FrameSource backed by a CameraX ImageAnalysis use case. Set it as the analyzer; frames are
+ * forwarded to the listener on the analyzer's executor and closed afterwards.
+ */
+public class CameraFrameSource implements FrameSource, ImageAnalysis.Analyzer {
+
+    private final Frame frame = new Frame();
+    private volatile Listener listener;
+
+    @Override
+    public void start(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void stop() {
+        this.listener = null;
+    }
+
+    @Override
+    public void analyze(@NonNull ImageProxy imageProxy) {
+        try {
+            Listener current = listener;
+            if (current == null) {
+                return;
+            }
+            @OptIn(markerClass = ExperimentalGetImage.class) Image image = imageProxy.getImage();
+            if (image == null) {
+                return;
+            }
+
+            Image.Plane[] planes = image.getPlanes();
+            frame.timestampNanos = imageProxy.getImageInfo().getTimestamp();
+            frame.width = image.getWidth();
+            frame.height = image.getHeight();
+            frame.yBuffer = planes[0].getBuffer();
+            frame.yRowStride = planes[0].getRowStride();
+            frame.uBuffer = planes[1].getBuffer();
+            frame.uRowStride = planes[1].getRowStride();
+            frame.uPixelStride = planes[1].getPixelStride();
+            frame.vBuffer = planes[2].getBuffer();
+            frame.vRowStride = planes[2].getRowStride();
+            frame.vPixelStride = planes[2].getPixelStride();
+
+            current.onFrame(frame);
+        } finally {
+            // Don't keep references to buffers that go back to the camera
+            frame.yBuffer = null;
+            frame.uBuffer = null;
+            frame.vBuffer = null;
+            imageProxy.close(); // Important: must close the imageProxy
+        }
+    }
+}
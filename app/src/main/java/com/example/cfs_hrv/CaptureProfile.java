@@ -0,0 +1,99 @@
+package com.example.cfs_hrv;
+
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureRequest;
+import android.util.Range;
+import android.util.Size;
+
+import androidx.annotation.OptIn;
+import androidx.camera.camera2.interop.Camera2CameraControl;
+import androidx.camera.camera2.interop.Camera2CameraInfo;
+import androidx.camera.camera2.interop.Camera2Interop;
+import androidx.camera.camera2.interop.CaptureRequestOptions;
+import androidx.camera.camera2.interop.ExperimentalCamera2Interop;
+import androidx.camera.core.Camera;
+import androidx.camera.core.CameraInfo;
+import androidx.camera.core.ExtendableBuilder;
+import androidx.camera.core.ImageAnalysis;
+import androidx.camera.core.resolutionselector.ResolutionSelector;
+import androidx.camera.core.resolutionselector.ResolutionStrategy;
+
+/**
+ * Camera settings for PPG capture. A fingertip over the lens needs very few pixels, so the analysis
+ * stream is kept small and the auto-exposure frame rate is pinned, which means every frame the
+ * camera delivers can be analysed instead of being throttled in software.
+ */
+public enum CaptureProfile {
+    PPG_30(30, new Size(320, 240)),
+    PPG_60(60, new Size(320, 240));
+
+    public final int targetFps;
+    public final Size analysisSize;
+    private final Range<Integer> fpsRange;
+
+    CaptureProfile(int targetFps, Size analysisSize) {
+        this.targetFps = targetFps;
+        this.analysisSize = analysisSize;
+        this.fpsRange = new Range<>(targetFps, targetFps);
+    }
+
+    /**
+     * The fastest profile the camera can hold at a fixed frame rate, falling back to PPG_30
+     */
+    public static CaptureProfile bestSupported(CameraInfo cameraInfo) {
+        if (PPG_60.isSupported(cameraInfo)) {
+            return PPG_60;
+        }
+        return PPG_30;
+    }
+
+    @OptIn(markerClass = ExperimentalCamera2Interop.class)
+    public boolean isSupported(CameraInfo cameraInfo) {
+        Range<Integer>[] ranges = Camera2CameraInfo.from(cameraInfo)
+                .getCameraCharacteristic(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (ranges == null) {
+            return false;
+        }
+        for (Range<Integer> range : ranges) {
+            if (range.getLower() == targetFps && range.getUpper() == targetFps) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Small analysis resolution plus the fixed frame rate
+     */
+    public ImageAnalysis.Builder applyTo(ImageAnalysis.Builder builder) {
+        builder.setResolutionSelector(new ResolutionSelector.Builder()
+                .setResolutionStrategy(new ResolutionStrategy(analysisSize,
+                        ResolutionStrategy.FALLBACK_RULE_CLOSEST_HIGHER_THEN_LOWER))
+                .build());
+        applyFrameRate(builder);
+        return builder;
+    }
+
+    /**
+     * Pin the AE target frame rate on any use case builder (the preview shares the same session)
+     */
+    @OptIn(markerClass = ExperimentalCamera2Interop.class)
+    public <T> void applyFrameRate(ExtendableBuilder<T> builder) {
+        new Camera2Interop.Extender<>(builder)
+                .setCaptureRequestOption(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange);
+    }
+
+    /**
+     * Lock (or release) auto-exposure and auto-white-balance. Once the torch is on and the finger
+     * is settled, any further AE/AWB adjustment shows up as drift and steps in the PPG trace.
+     */
+    @OptIn(markerClass = ExperimentalCamera2Interop.class)
+    public void setExposureLock(Camera camera, boolean locked) {
+        Camera2CameraControl.from(camera.getCameraControl()).setCaptureRequestOptions(
+                new CaptureRequestOptions.Builder()
+                        .setCaptureRequestOption(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, fpsRange)
+                        .setCaptureRequestOption(CaptureRequest.CONTROL_AE_LOCK, locked)
+                        .setCaptureRequestOption(CaptureRequest.CONTROL_AWB_LOCK, locked)
+                        .build());
+    }
+}
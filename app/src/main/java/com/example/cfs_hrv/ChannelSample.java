@@ -0,0 +1,34 @@
+package com.example.cfs_hrv;
+
+/**
+ * One frame's worth of PPG channel means. Red and green are rebuilt from the plane means with the
+ * BT.601 YCbCr to RGB transform, which is linear so the mean of the converted pixels equals the
+ * converted plane means (ignoring clipping at 0/255).
+ */
+public class ChannelSample {
+    public double luma;     // Mean Y
+    public double red;      // Red-dominant channel, Y + Cr
+    public double green;    // Green-dominant channel, Y - Cb - Cr
+
+    public ChannelSample() {
+    }
+
+    public ChannelSample(double luma, double red, double green) {
+        this.luma = luma;
+        this.red = red;
+        this.green = green;
+    }
+
+    public void setFromPlaneMeans(double y, double u, double v) {
+        double cb = u - 128.0;
+        double cr = v - 128.0;
+        luma = y;
+        red = y + 1.402 * cr;
+        green = y - 0.344136 * cb - 0.714136 * cr;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Y: %.2f, R: %.2f, G: %.2f", luma, red, green);
+    }
+}
@@ -0,0 +1,105 @@
+package com.example.cfs_hrv;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Precomputed radix-2 FFT of one power-of-two size: the twiddle factors and the bit-reversal
+ * permutation are built once and shared (plans are immutable, so any thread can use one). Each
+ * transform is then just the butterflies, in place over caller-owned arrays.
+ */
+public class FftPlan {
+
+    private static final Map<Integer, FftPlan> plans = new ConcurrentHashMap<>();
+
+    private final int size;
+    private final double[] cosTable;
+    private final double[] sinTable;
+    private final int[] bitReverse;
+
+    private FftPlan(int size) {
+        this.size = size;
+        cosTable = new double[size / 2];
+        sinTable = new double[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            cosTable[i] = Math.cos(2 * Math.PI * i / size);
+            sinTable[i] = Math.sin(2 * Math.PI * i / size);
+        }
+
+        bitReverse = new int[size];
+        int bits = Integer.numberOfTrailingZeros(size);
+        for (int i = 0; i < size; i++) {
+            bitReverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+    }
+
+    /**
+     * The shared plan for a size, which must be a power of two
+     */
+    public static FftPlan forSize(int size) {
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("FFT size must be a power of two: " + size);
+        }
+        FftPlan plan = plans.get(size);
+        if (plan == null) {
+            plan = plans.computeIfAbsent(size, FftPlan::new);
+        }
+        return plan;
+    }
+
+    public static int nextPowerOfTwo(int n) {
+        return n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Forward transform, X[k] = sum x[n] e^(-2 pi i k n / N), in place over the first size() entries
+     */
+    public void forward(double[] re, double[] im) {
+        transform(re, im, -1);
+    }
+
+    /**
+     * Inverse transform including the 1/N scale
+     */
+    public void inverse(double[] re, double[] im) {
+        transform(re, im, 1);
+        double scale = 1.0 / size;
+        for (int i = 0; i < size; i++) {
+            re[i] *= scale;
+            im[i] *= scale;
+        }
+    }
+
+    private void transform(double[] re, double[] im, int sign) {
+        for (int i = 0; i < size; i++) {
+            int j = bitReverse[i];
+            if (j > i) {
+                double t = re[i]; re[i] = re[j]; re[j] = t;
+                t = im[i]; im[i] = im[j]; im[j] = t;
+            }
+        }
+
+        for (int length = 2; length <= size; length <<= 1) {
+            int halfLength = length >> 1;
+            int tableStep = size / length;
+            for (int start = 0; start < size; start += length) {
+                for (int k = 0, t = 0; k < halfLength; k++, t += tableStep) {
+                    double wr = cosTable[t];
+                    double wi = sign * sinTable[t];
+                    int a = start + k;
+                    int b = a + halfLength;
+                    double xr = re[b] * wr - im[b] * wi;
+                    double xi = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - xr;
+                    im[b] = im[a] - xi;
+                    re[a] += xr;
+                    im[a] += xi;
+                }
+            }
+        }
+    }
+}
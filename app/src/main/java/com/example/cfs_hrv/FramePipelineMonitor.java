@@ -0,0 +1,177 @@
+package com.example.cfs_hrv;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Instrumentation for the camera frame pipeline: how long analyze() takes, how far apart the frames
+ * really are (from their sensor timestamps), how many frames never reached the analyzer, and how
+ * long chart updates wait in the main thread queue. Recording is allocation free; the text report
+ * is built on demand.
+ *
+ * The analyzer thread records frames and the main thread records post latencies, so the methods
+ * are synchronized. Nothing here blocks for longer than a few array updates.
+ */
+public class FramePipelineMonitor {
+
+    // Frame intervals more than this many times the expected one count as drops
+    private static final double DROP_FACTOR = 1.5;
+
+    /**
+     * Fixed-width buckets up to a limit plus an overflow bucket. The width has to be well below the
+     * values recorded or every percentile lands in the first bucket.
+     */
+    public static class Histogram {
+        private final long bucketNs;
+        private final long[] buckets;
+        private long count;
+        private long totalNs;
+        private long minNs = Long.MAX_VALUE;
+        private long maxNs;
+
+        public Histogram(long bucketNs, long maxNs) {
+            this.bucketNs = bucketNs;
+            buckets = new long[(int) (maxNs / bucketNs) + 1];
+        }
+
+        /**
+         * 1 ms buckets up to maxMs
+         */
+        public Histogram(int maxMs) {
+            this(1_000_000L, maxMs * 1_000_000L);
+        }
+
+        void record(long valueNs) {
+            int bucket = (int) Math.min(buckets.length - 1, Math.max(0, valueNs / bucketNs));
+            buckets[bucket]++;
+            count++;
+            totalNs += valueNs;
+            minNs = Math.min(minNs, valueNs);
+            maxNs = Math.max(maxNs, valueNs);
+        }
+
+        void reset() {
+            Arrays.fill(buckets, 0);
+            count = 0;
+            totalNs = 0;
+            minNs = Long.MAX_VALUE;
+            maxNs = 0;
+        }
+
+        public long getCount() { return count; }
+
+        public double getMeanMs() {
+            return count > 0 ? totalNs / 1e6 / count : 0;
+        }
+
+        public double getMaxMs() { return maxNs / 1e6; }
+
+        /**
+         * Upper edge (ms) of the bucket holding the given percentile, 0..100
+         */
+        public double percentileMs(double percentile) {
+            if (count == 0) return 0;
+            long target = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target) return (i + 1) * bucketNs / 1e6;
+            }
+            return buckets.length * bucketNs / 1e6;
+        }
+
+        String summary() {
+            if (count == 0) return "no samples";
+            return String.format(Locale.US, "n=%d mean=%.2fms min=%.2fms p50<=%.2fms p95<=%.2fms p99<=%.2fms max=%.2fms",
+                    count, getMeanMs(), minNs / 1e6, percentileMs(50), percentileMs(95),
+                    percentileMs(99), getMaxMs());
+        }
+    }
+
+    // analyze() usually takes a fraction of a millisecond, so 10 us buckets up to 50 ms
+    private final Histogram analyzeDuration = new Histogram(10_000L, 50_000_000L);
+    private final Histogram frameInterval = new Histogram(250);
+    private final Histogram postLatency = new Histogram(250);
+
+    private long expectedIntervalNs;
+    private long lastSensorTimestampNs = -1;
+    private long frames;
+    private long droppedFrames;
+    private long gaps;
+    private long budgetOverruns;     // analyze() calls that took longer than one frame
+
+    public FramePipelineMonitor(double expectedFrameRate) {
+        setExpectedFrameRate(expectedFrameRate);
+    }
+
+    public synchronized void setExpectedFrameRate(double frameRate) {
+        expectedIntervalNs = (long) (1e9 / frameRate);
+    }
+
+    public synchronized void reset() {
+        analyzeDuration.reset();
+        frameInterval.reset();
+        postLatency.reset();
+        lastSensorTimestampNs = -1;
+        frames = 0;
+        droppedFrames = 0;
+        gaps = 0;
+        budgetOverruns = 0;
+    }
+
+    /**
+     * Record one analysed frame
+     *
+     * @param sensorTimestampNs the frame's sensor timestamp
+     * @param analyzeStartNs    System.nanoTime() when analyze() started
+     * @param analyzeEndNs      System.nanoTime() when it finished
+     */
+    public synchronized void recordFrame(long sensorTimestampNs, long analyzeStartNs, long analyzeEndNs) {
+        frames++;
+        long duration = analyzeEndNs - analyzeStartNs;
+        analyzeDuration.record(duration);
+        if (duration > expectedIntervalNs) {
+            budgetOverruns++;
+        }
+
+        if (lastSensorTimestampNs >= 0) {
+            long interval = sensorTimestampNs - lastSensorTimestampNs;
+            frameInterval.record(interval);
+            if (interval > DROP_FACTOR * expectedIntervalNs) {
+                gaps++;
+                droppedFrames += Math.max(1, Math.round((double) interval / expectedIntervalNs) - 1);
+            }
+        }
+        lastSensorTimestampNs = sensorTimestampNs;
+    }
+
+    /**
+     * Timestamp to hand to a main thread runnable, passed back to recordPostLatency when it runs
+     */
+    public long markPost() {
+        return System.nanoTime();
+    }
+
+    public synchronized void recordPostLatency(long postedAtNs) {
+        postLatency.record(System.nanoTime() - postedAtNs);
+    }
+
+    public synchronized long getFrames() { return frames; }
+    public synchronized long getDroppedFrames() { return droppedFrames; }
+
+    public synchronized String report() {
+        double expectedFps = 1e9 / expectedIntervalNs;
+        long delivered = frames + droppedFrames;
+        return String.format(Locale.US,
+                "Frame pipeline (expected %.1f fps)%n"
+                        + "frames analysed: %d, dropped: %d in %d gaps (%.1f%%)%n"
+                        + "analyze(): %s%n"
+                        + "analyze() over frame budget: %d%n"
+                        + "frame interval: %s%n"
+                        + "chart post latency: %s",
+                expectedFps, frames, droppedFrames, gaps,
+                delivered > 0 ? droppedFrames * 100.0 / delivered : 0,
+                analyzeDuration.summary(), budgetOverruns,
+                frameInterval.summary(), postLatency.summary());
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.cfs_hrv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Anything that produces camera-like frames: the live CameraX analyzer or a recording being
+ * replayed. Frame processing only ever sees a Frame, so the same code runs on a phone and on a
+ * plain JVM.
+ */
+public interface FrameSource {
+
+    interface Listener {
+        /**
+         * Called once per frame. The frame and its buffers are only valid for the duration of the call.
+         */
+        void onFrame(Frame frame);
+    }
+
+    /**
+     * Start delivering frames to the listener. Sources document whether this returns immediately
+     * (camera) or after the last frame (replay).
+     */
+    void start(Listener listener);
+
+    void stop();
+
+    /**
+     * One frame's planes. Instances are reused by the sources, don't hold on to them.
+     * The chroma planes are null for luma-only sources.
+     */
+    class Frame {
+        public long timestampNanos;
+        public int width;
+        public int height;
+
+        public ByteBuffer yBuffer;
+        public int yRowStride;
+
+        public ByteBuffer uBuffer;
+        public int uRowStride;
+        public int uPixelStride;
+
+        public ByteBuffer vBuffer;
+        public int vRowStride;
+        public int vPixelStride;
+
+        public boolean hasChroma() {
+            return uBuffer != null && vBuffer != null;
+        }
+    }
+}
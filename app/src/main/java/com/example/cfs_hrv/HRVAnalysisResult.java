@@ -0,0 +1,127 @@
+package com.example.cfs_hrv;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything one run of HRVMeasurementSystem.analyze produced: the metrics, the trough indices the
+ * beats were found at, every detected RR interval and which of them the cleaning rejected and why.
+ * Immutable, so results can be handed between threads and analyses can run side by side.
+ */
+public final class HRVAnalysisResult {
+
+    private final HRVMeasurementSystem.HRVMetrics metrics;
+    private final List<Integer> troughs;
+    private final List<Double> troughTimestamps;
+    private final List<Long> rrIntervals;
+    private final RRIntervalCleaner.Reason[] reasons;
+    private final List<Long> cleanRRIntervals;
+
+    HRVAnalysisResult(HRVMeasurementSystem.HRVMetrics metrics, List<Integer> troughs, List<Double> troughTimestamps,
+                      List<Long> rrIntervals, RRIntervalCleaner.Reason[] reasons) {
+        if (reasons.length != rrIntervals.size()) {
+            throw new IllegalArgumentException("One cleaning verdict per RR interval");
+        }
+        if (troughTimestamps.size() != troughs.size()) {
+            throw new IllegalArgumentException("One timestamp per trough");
+        }
+        this.metrics = metrics.copy();
+        this.troughs = Collections.unmodifiableList(new ArrayList<>(troughs));
+        this.troughTimestamps = Collections.unmodifiableList(new ArrayList<>(troughTimestamps));
+        this.rrIntervals = Collections.unmodifiableList(new ArrayList<>(rrIntervals));
+        this.reasons = reasons.clone();
+
+        List<Long> clean = new ArrayList<>(rrIntervals.size());
+        for (int i = 0; i < this.reasons.length; i++) {
+            if (this.reasons[i] == RRIntervalCleaner.Reason.ACCEPTED) clean.add(rrIntervals.get(i));
+        }
+        this.cleanRRIntervals = Collections.unmodifiableList(clean);
+    }
+
+    /**
+     * A copy of the metrics, changing it doesn't affect the result
+     */
+    public HRVMeasurementSystem.HRVMetrics getMetrics() {
+        return metrics.copy();
+    }
+
+    /**
+     * Trough sample indices into the uniformly resampled signal, segments laid end to end. These
+     * don't line up with the captured frames, use getTroughTimestamps() or markTroughFrames() for that.
+     */
+    public List<Integer> getTroughs() {
+        return troughs;
+    }
+
+    /**
+     * Time of each trough (ms, fractional), on the same clock as the DataPoint timestamps
+     */
+    public List<Double> getTroughTimestamps() {
+        return troughTimestamps;
+    }
+
+    /**
+     * Which of the analysed frames each trough is nearest to, one flag per frame. Frames must be in
+     * time order, as captured.
+     */
+    public boolean[] markTroughFrames(List<HRVMeasurementSystem.DataPoint> frames) {
+        boolean[] marks = new boolean[frames.size()];
+        int frame = 0;
+        for (double time : troughTimestamps) {
+            while (frame + 1 < frames.size()
+                    && Math.abs(frameTime(frames.get(frame + 1)) - time) <= Math.abs(frameTime(frames.get(frame)) - time)) {
+                frame++;
+            }
+            if (frame < marks.length) marks[frame] = true;
+        }
+        return marks;
+    }
+
+    // The time the analysis saw for a frame, see SignalBuffer.fromDataPoints()
+    private static double frameTime(HRVMeasurementSystem.DataPoint frame) {
+        return frame.timestampNanos / 1e6;
+    }
+
+    /**
+     * Every detected interval (ms) in order, before cleaning
+     */
+    public List<Long> getRRIntervals() {
+        return rrIntervals;
+    }
+
+    public boolean isRejected(int interval) {
+        return reasons[interval] != RRIntervalCleaner.Reason.ACCEPTED;
+    }
+
+    /**
+     * Why an interval was rejected, ACCEPTED if it wasn't
+     */
+    public RRIntervalCleaner.Reason getReason(int interval) {
+        return reasons[interval];
+    }
+
+    public int getRejectedCount() {
+        return rrIntervals.size() - cleanRRIntervals.size();
+    }
+
+    public int getCount(RRIntervalCleaner.Reason reason) {
+        int count = 0;
+        for (RRIntervalCleaner.Reason r : reasons) {
+            if (r == reason) count++;
+        }
+        return count;
+    }
+
+    /**
+     * The intervals that passed cleaning, the ones the metrics were computed from
+     */
+    public List<Long> getCleanRRIntervals() {
+        return cleanRRIntervals;
+    }
+
+    @Override
+    public String toString() {
+        return metrics + "\nRejected beats: " + getRejectedCount() + " of " + rrIntervals.size();
+    }
+}
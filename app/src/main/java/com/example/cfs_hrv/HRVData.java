@@ -11,9 +11,18 @@ public class HRVData {
     private double meanRR;
     private double sdnn;
     private double rmssd;
+    private double rmssdHalfWidth;
     private double pnn50;
     private double heartRate;
     private int validBeats;
+    private double vlfPower;
+    private double lfPower;
+    private double hfPower;
+    private double lfHfRatio;
+    private double sd1;
+    private double sd2;
+    private double sampleEntropy;
+    private double dfaAlpha1;
     private int fatigueLevel;
 
     private int headacheLevel;
@@ -52,9 +61,18 @@ public class HRVData {
     public double getMeanRR() { return meanRR; }
     public double getSdnn() { return sdnn; }
     public double getRmssd() { return rmssd; }
+    public double getRmssdHalfWidth() { return rmssdHalfWidth; }
     public double getPnn50() { return pnn50; }
     public double getHeartRate() { return heartRate; }
     public int getValidBeats() { return validBeats; }
+    public double getVlfPower() { return vlfPower; }
+    public double getLfPower() { return lfPower; }
+    public double getHfPower() { return hfPower; }
+    public double getLfHfRatio() { return lfHfRatio; }
+    public double getSd1() { return sd1; }
+    public double getSd2() { return sd2; }
+    public double getSampleEntropy() { return sampleEntropy; }
+    public double getDfaAlpha1() { return dfaAlpha1; }
     public int getFatigueLevel() { return fatigueLevel; }
 
     public int getHeadacheLevel() { return headacheLevel; }
@@ -66,9 +84,39 @@ public class HRVData {
     public void setMeanRR(double meanRR) { this.meanRR = meanRR; }
     public void setSdnn(double sdnn) { this.sdnn = sdnn; }
     public void setRmssd(double rmssd) { this.rmssd = rmssd; }
+    public void setRmssdHalfWidth(double rmssdHalfWidth) { this.rmssdHalfWidth = rmssdHalfWidth; }
     public void setPnn50(double pnn50) { this.pnn50 = pnn50; }
     public void setHeartRate(double heartRate) { this.heartRate = heartRate; }
     public void setValidBeats(int validBeats) { this.validBeats = validBeats; }
+    public void setVlfPower(double vlfPower) { this.vlfPower = vlfPower; }
+    public void setLfPower(double lfPower) { this.lfPower = lfPower; }
+    public void setHfPower(double hfPower) { this.hfPower = hfPower; }
+    public void setLfHfRatio(double lfHfRatio) { this.lfHfRatio = lfHfRatio; }
+    public void setSd1(double sd1) { this.sd1 = sd1; }
+    public void setSd2(double sd2) { this.sd2 = sd2; }
+    public void setSampleEntropy(double sampleEntropy) { this.sampleEntropy = sampleEntropy; }
+    public void setDfaAlpha1(double dfaAlpha1) { this.dfaAlpha1 = dfaAlpha1; }
+
+    /**
+     * Take every measured value from an analysis, leaving the ratings and timestamp alone
+     */
+    public void setMetrics(HRVMeasurementSystem.HRVMetrics metrics) {
+        meanRR = metrics.meanRR;
+        sdnn = metrics.sdnn;
+        rmssd = metrics.rmssd;
+        rmssdHalfWidth = metrics.rmssdHalfWidth;
+        pnn50 = metrics.pnn50;
+        heartRate = metrics.heartRate;
+        validBeats = metrics.validBeats;
+        vlfPower = metrics.vlfPower;
+        lfPower = metrics.lfPower;
+        hfPower = metrics.hfPower;
+        lfHfRatio = metrics.lfHfRatio;
+        sd1 = metrics.sd1;
+        sd2 = metrics.sd2;
+        sampleEntropy = metrics.sampleEntropy;
+        dfaAlpha1 = metrics.dfaAlpha1;
+    }
     public void setFatigueLevel(int fatigueLevel) { this.fatigueLevel = fatigueLevel; }
 
     public void setHeadacheLevel(int headacheLevel) { this.headacheLevel= headacheLevel; }
@@ -1,20 +1,30 @@
 package com.example.cfs_hrv;
 import android.content.Context;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.AtomicFile;
 import android.util.Log;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.function.IntConsumer;
 
 public class HRVDataManager {
     private static final String TAG = "HRVDataManager";
@@ -52,8 +62,23 @@ public class HRVDataManager {
      */
     public void setTodaysHRVData(double meanRR, double sdnn, double rmssd, double pnn50,
                                  double heartRate, int validBeats) {
-        String today = getCurrentDateString();
+        updateTodaysData(meanRR, sdnn, rmssd, pnn50, heartRate, validBeats);
+        saveAllData();
+    }
+
+    /**
+     * Add or update today's data from an analysis, including the frequency-domain and nonlinear
+     * metrics
+     */
+    public void setTodaysHRVData(HRVMeasurementSystem.HRVMetrics metrics) {
+        HRVData data = updateTodaysData(metrics.meanRR, metrics.sdnn, metrics.rmssd, metrics.pnn50,
+                metrics.heartRate, metrics.validBeats);
+        data.setMetrics(metrics);
+        saveAllData();
+    }
 
+    private HRVData updateTodaysData(double meanRR, double sdnn, double rmssd, double pnn50,
+                                     double heartRate, int validBeats) {
         // Check if entry for today already exists
         HRVData existingData = getTodaysData();
 
@@ -66,18 +91,18 @@ public class HRVDataManager {
             existingData.setHeartRate(heartRate);
             existingData.setValidBeats(validBeats);
             existingData.setTimestamp(System.currentTimeMillis());
-        } else {
-            // Create new entry with default fatigue level of 0
-            HRVData newData = new HRVData(meanRR, sdnn, rmssd, pnn50, heartRate, validBeats, 0, 0);
+            return existingData;
+        }
 
-            //Grab an estimate of fatigue to kick off with seeing as we're adding a new entry
-            int fatigueEstimate = FatigueLevelPredictor.predictFatigueLevel(getAllData(), newData);
-            newData.setFatigueLevel(fatigueEstimate);
+        // Create new entry with default fatigue level of 0
+        HRVData newData = new HRVData(meanRR, sdnn, rmssd, pnn50, heartRate, validBeats, 0, 0);
 
-            allData.add(newData);
-        }
+        //Grab an estimate of fatigue to kick off with seeing as we're adding a new entry
+        int fatigueEstimate = FatigueLevelPredictor.predictFatigueLevel(getAllData(), newData);
+        newData.setFatigueLevel(fatigueEstimate);
 
-        saveAllData();
+        allData.add(newData);
+        return newData;
     }
 
     /**
@@ -324,36 +349,72 @@ public class HRVDataManager {
     }
 
     private void loadAllData() {
-        File file = getSaveFile(); //new File(context.getFilesDir(), FILENAME);
+        // AtomicFile falls back to the backup if a save was interrupted
+        AtomicFile file = new AtomicFile(getSaveFile()); //new File(context.getFilesDir(), FILENAME);
         //File file = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOCUMENTS), FILENAME);
 
-        if (!file.exists()) {
-            return;
-        }
-
-        try (FileReader reader = new FileReader(file)) {
+        try (Reader reader = new InputStreamReader(file.openRead(), StandardCharsets.UTF_8)) {
             TypeToken<List<HRVData>> token = new TypeToken<List<HRVData>>() {};
             List<HRVData> data = gson.fromJson(reader, token.getType());
             if (data != null) {
                 allData = data;
             }
             Log.d(TAG, "Loaded " + allData.size() + " total entries from " + FILENAME);
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet
         } catch (IOException e) {
             Log.e(TAG, "Error loading data", e);
         }
     }
 
+    /**
+     * Write the whole history to a new file and swap it in, so a crash or a full disk mid-save
+     * leaves the previous version rather than a truncated one
+     */
     private void saveAllData() {
-        File file = getSaveFile(); //new File(context.getFilesDir(), FILENAME);
-
-        try (FileWriter writer = new FileWriter(file)) {
+        AtomicFile file = new AtomicFile(getSaveFile()); //new File(context.getFilesDir(), FILENAME);
+        FileOutputStream out = null;
+        try {
+            out = file.startWrite();
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
             gson.toJson(allData, writer);
+            writer.flush();
+            file.finishWrite(out);
             Log.d(TAG, "Saved " + allData.size() + " total entries to " + FILENAME);
         } catch (IOException e) {
+            if (out != null) {
+                file.failWrite(out);
+            }
             Log.e(TAG, "Error saving data", e);
         }
     }
 
+    /**
+     * Re-analyse every stored raw capture with the current pipeline and update the matching days,
+     * saving once at the end. Blocks until the batch is done, so call it off the UI thread. The
+     * results are applied on the main thread, where everything else reads and changes the entries,
+     * and onApplied is then called there with the number of entries updated.
+     */
+    public void reprocessRecordings(BatchReprocessor reprocessor, BatchReprocessor.ProgressListener listener,
+                                    IntConsumer onApplied) {
+        File captureDir = new File(context.getExternalFilesDir(null), BatchReprocessor.CAPTURE_DIRECTORY);
+        long start = System.nanoTime();
+        List<BatchReprocessor.RecordingResult> results =
+                reprocessor.reprocess(BatchReprocessor.findRecordings(captureDir), listener);
+        String report = BatchReprocessor.report(results, System.nanoTime() - start);
+
+        new Handler(Looper.getMainLooper()).post(() -> {
+            int updated = BatchReprocessor.applyTo(allData, results);
+            Log.i(TAG, report + ", " + updated + " entries updated");
+            if (updated > 0) {
+                saveAllData();
+            }
+            if (onApplied != null) {
+                onApplied.accept(updated);
+            }
+        });
+    }
+
     public void saveRawDataFile(String thisData) {
         File file = getSaveFile(); //new File(context.getFilesDir(), FILENAME);
 
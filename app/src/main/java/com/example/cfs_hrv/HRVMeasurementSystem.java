@@ -1,17 +1,59 @@
 package com.example.cfs_hrv;
 
 import java.util.*;
-import java.util.stream.Collectors;
 
 public class HRVMeasurementSystem {
 
+    public enum Channel { LUMA, RED, GREEN }
+
     public static class DataPoint {
         public double value;
         public long timestamp; // milliseconds
+        public long timestampNanos; // Sensor timestamp when known, otherwise timestamp in nanoseconds
+
+        // Optional per-channel means when the sample came from the chroma-aware path
+        public boolean hasChannels;
+        public double luma;
+        public double red;
+        public double green;
 
         public DataPoint(double value, long timestamp) {
             this.value = value;
             this.timestamp = timestamp;
+            this.timestampNanos = timestamp * 1_000_000L;
+        }
+
+        public DataPoint(ChannelSample sample, long timestamp) {
+            this(sample.luma, timestamp);
+            this.hasChannels = true;
+            this.luma = sample.luma;
+            this.red = sample.red;
+            this.green = sample.green;
+        }
+
+        /**
+         * A sample stamped with the camera sensor timestamp (ImageInfo.getTimestamp(), nanoseconds)
+         * rather than the time the analyzer got round to it
+         */
+        public static DataPoint fromSensor(ChannelSample sample, long sensorTimestampNanos) {
+            DataPoint point = new DataPoint(sample, sensorTimestampNanos / 1_000_000L);
+            point.timestampNanos = sensorTimestampNanos;
+            return point;
+        }
+
+        public static DataPoint fromSensor(double value, long sensorTimestampNanos) {
+            DataPoint point = new DataPoint(value, sensorTimestampNanos / 1_000_000L);
+            point.timestampNanos = sensorTimestampNanos;
+            return point;
+        }
+
+        public double getChannel(Channel channel) {
+            if (!hasChannels) return value;
+            switch (channel) {
+                case RED: return red;
+                case GREEN: return green;
+                default: return luma;
+            }
         }
     }
 
@@ -19,12 +61,47 @@ public class HRVMeasurementSystem {
         public double meanRR;      // Mean R-R interval (ms)
         public double sdnn;        // Standard deviation of R-R intervals
         public double rmssd;       // Root mean square of successive differences
+        public double rmssdHalfWidth; // Half-width of the RMSSD 95% confidence interval (ms)
         public double pnn50;       // Percentage of successive R-R intervals differing by >50ms
         public double heartRate;   // Average heart rate (BPM)
         public int validBeats;     // Number of valid beats detected
+        public double vlfPower;    // Very low frequency power, 0.0033-0.04 Hz (ms^2)
+        public double lfPower;     // Low frequency power, 0.04-0.15 Hz (ms^2)
+        public double hfPower;     // High frequency power, 0.15-0.4 Hz (ms^2)
+        public double lfHfRatio;   // LF / HF
+        public double sd1;         // Poincare SD1, short-term variability (ms)
+        public double sd2;         // Poincare SD2, long-term variability (ms)
+        public double sampleEntropy; // SampEn(2, 0.2 SD)
+        public double dfaAlpha1;   // Short-term DFA scaling exponent
+        public SamplingStats sampling; // Frame timing of the recording, when it was measured
+
+        public HRVMetrics copy() {
+            HRVMetrics copy = new HRVMetrics();
+            copy.meanRR = meanRR;
+            copy.sdnn = sdnn;
+            copy.rmssd = rmssd;
+            copy.rmssdHalfWidth = rmssdHalfWidth;
+            copy.pnn50 = pnn50;
+            copy.heartRate = heartRate;
+            copy.validBeats = validBeats;
+            copy.vlfPower = vlfPower;
+            copy.lfPower = lfPower;
+            copy.hfPower = hfPower;
+            copy.lfHfRatio = lfHfRatio;
+            copy.sd1 = sd1;
+            copy.sd2 = sd2;
+            copy.sampleEntropy = sampleEntropy;
+            copy.dfaAlpha1 = dfaAlpha1;
+            copy.sampling = sampling;
+            return copy;
+        }
 
         @Override
         public String toString() {
+            if (rmssdHalfWidth > 0 && !Double.isInfinite(rmssdHalfWidth)) {
+                return String.format("HR: %.1f BPM, Valid beats: %d\nRMSSD: %.1f +/- %.1f ms",
+                        heartRate, validBeats, rmssd, rmssdHalfWidth);
+            }
             return String.format("HR: %.1f BPM, Valid beats: %d\nRMSSD: %.1f ms",
                     heartRate, validBeats, rmssd);
             /*
@@ -35,185 +112,326 @@ public class HRVMeasurementSystem {
         }
     }
 
+    /**
+     * HRV analysis at the sampling rate measured from the sample timestamps. The timing report
+     * (jitter, dropped frames) is attached to the result.
+     */
+    public static HRVMetrics analyzeHRV(List<DataPoint> rawData) {
+        return analyze(rawData).getMetrics();
+    }
+
     /**
      * Main HRV analysis function
      */
     public static HRVMetrics analyzeHRV(List<DataPoint> rawData, double samplingRate) {
-        // Step 1: Preprocess the signal
-        List<DataPoint> filteredData = preprocessSignal(rawData, samplingRate);
-
-        // Step 2: Detect R-R intervals (peak-to-peak or trough-to-trough)
-        List<Long> rrIntervals = detectRRIntervals(filteredData, samplingRate);
-
-        // Step 3: Clean and validate R-R intervals
-        List<Long> cleanRRIntervals = cleanRRIntervals(rrIntervals);
+        return analyze(rawData, samplingRate).getMetrics();
+    }
 
-        // Step 4: Calculate HRV metrics
-        return calculateHRVMetrics(cleanRRIntervals);
+    /**
+     * HRV analysis of a single-channel signal that is already uniformly sampled. The buffer is
+     * filtered in place, so afterwards it holds the preprocessed signal the troughs were found in.
+     */
+    public static HRVMetrics analyzeHRV(SignalBuffer signal, double samplingRate) {
+        return analyze(signal, samplingRate).getMetrics();
     }
 
     /**
-     * Preprocess the PPG signal with filtering and normalization
+     * Full analysis, troughs and per-beat rejections included. Like every analysis entry point this
+     * keeps no state between calls, so recordings can be analysed concurrently.
      */
-    private static List<DataPoint> preprocessSignal(List<DataPoint> data, double samplingRate) {
-        if (data.size() < 10) return data;
+    public static HRVAnalysisResult analyze(List<DataPoint> rawData) {
+        SamplingStats sampling = SamplingStats.fromDataPoints(rawData);
+        return analyze(rawData, sampling.getAnalysisRate(), sampling);
+    }
+
+    public static HRVAnalysisResult analyze(List<DataPoint> rawData, double samplingRate) {
+        return analyze(rawData, samplingRate, null);
+    }
 
-        // Apply moving average filter to reduce noise
-        List<DataPoint> smoothed = applyMovingAverage(data, 5);
+    private static HRVAnalysisResult analyze(List<DataPoint> rawData, double samplingRate, SamplingStats sampling) {
+        // Step 0: Use whichever colour channel carries the strongest pulse
+        SignalBuffer signal = SignalBuffer.fromDataPoints(rawData, selectBestChannel(rawData, samplingRate));
 
-        // Apply bandpass filter (0.5-4 Hz for heart rate)
-        List<DataPoint> filtered = applyBandpassFilter(smoothed, samplingRate, 0.5, 4.0);
+        // Step 0b: Put the frames on a uniform grid, split where frames were dropped
+        List<SignalBuffer> segments = UniformResampler.resample(signal, samplingRate);
+        return analyzeSegments(segments, samplingRate, sampling);
+    }
 
-        // Normalize the signal
-        return normalizeSignal(filtered);
+    public static HRVAnalysisResult analyze(SignalBuffer signal, double samplingRate) {
+        return analyzeSegments(Collections.singletonList(signal), samplingRate, null);
     }
 
+    // Shared by every analysis; stages are stateless and the timing counters are atomic
+    private static final HRVPipeline defaultPipeline = HRVPipeline.standardBuilder().build();
+
     /**
-     * Simple moving average filter
+     * The pipeline analyze() runs, for its per-stage timing report
      */
-    private static List<DataPoint> applyMovingAverage(List<DataPoint> data, int windowSize) {
-        List<DataPoint> result = new ArrayList<>();
+    public static HRVPipeline getDefaultPipeline() {
+        return defaultPipeline;
+    }
 
-        for (int i = 0; i < data.size(); i++) {
-            int start = Math.max(0, i - windowSize / 2);
-            int end = Math.min(data.size(), i + windowSize / 2 + 1);
+    /**
+     * Uniformly sampled stretches of one recording. Each is filtered and searched for troughs on its
+     * own so no interval spans a gap, then the intervals are cleaned and measured together.
+     */
+    private static HRVAnalysisResult analyzeSegments(List<SignalBuffer> segments, double samplingRate,
+                                                     SamplingStats sampling) {
+        return defaultPipeline.run(segments, samplingRate, sampling);
+    }
 
-            double sum = 0;
-            for (int j = start; j < end; j++) {
-                sum += data.get(j).value;
+    /**
+     * Pick the channel with the largest pulse amplitude. Samples without channel data always use LUMA.
+     */
+    public static Channel selectBestChannel(List<DataPoint> data, double samplingRate) {
+        if (data.size() < 10 || !data.get(0).hasChannels) return Channel.LUMA;
+
+        Channel best = Channel.LUMA;
+        double bestAmplitude = -1;
+        for (Channel channel : Channel.values()) {
+            double amplitude = pulseAmplitude(data, channel, samplingRate);
+            if (amplitude > bestAmplitude) {
+                bestAmplitude = amplitude;
+                best = channel;
             }
-
-            result.add(new DataPoint(sum / (end - start), data.get(i).timestamp));
         }
-
-        return result;
+        return best;
     }
 
     /**
-     * Simple IIR bandpass filter implementation
+     * Standard deviation of a channel once slow drift (over ~1 second) and frame noise are removed.
+     * A saturated channel has almost no swing left and scores low.
      */
-    private static List<DataPoint> applyBandpassFilter(List<DataPoint> data, double samplingRate,
-                                                       double lowCutoff, double highCutoff) {
-        // Simplified Butterworth filter coefficients (would be better to use proper DSP library)
-        double nyquist = samplingRate / 2.0;
-        double lowNorm = lowCutoff / nyquist;
-        double highNorm = highCutoff / nyquist;
-
-        // For simplicity, using a basic high-pass then low-pass approach
-        List<DataPoint> highPassed = applyHighPassFilter(data, lowNorm);
-        return applyLowPassFilter(highPassed, highNorm);
-    }
+    private static double pulseAmplitude(List<DataPoint> data, Channel channel, double samplingRate) {
+        int n = data.size();
+        int baselineWindow = Math.max(3, (int) samplingRate);
+        int smoothWindow = 5;
+
+        double[] values = new double[n];
+        double[] prefix = new double[n + 1];
+        for (int i = 0; i < n; i++) {
+            values[i] = data.get(i).getChannel(channel);
+            prefix[i + 1] = prefix[i] + values[i];
+        }
 
-    private static List<DataPoint> applyHighPassFilter(List<DataPoint> data, double cutoff) {
-        List<DataPoint> result = new ArrayList<>();
-        double alpha = cutoff;
-        double prevInput = data.get(0).value;
-        double prevOutput = 0;
-
-        for (DataPoint point : data) {
-            double output = alpha * (prevOutput + point.value - prevInput);
-            result.add(new DataPoint(output, point.timestamp));
-            prevInput = point.value;
-            prevOutput = output;
+        double sum = 0;
+        double sumSquares = 0;
+        for (int i = 0; i < n; i++) {
+            double smooth = windowMean(prefix, n, i, smoothWindow);
+            double baseline = windowMean(prefix, n, i, baselineWindow);
+            double ac = smooth - baseline;
+            sum += ac;
+            sumSquares += ac * ac;
         }
+        double mean = sum / n;
+        return Math.sqrt(Math.max(0, sumSquares / n - mean * mean));
+    }
 
-        return result;
+    private static double windowMean(double[] prefix, int n, int centre, int windowSize) {
+        int start = Math.max(0, centre - windowSize / 2);
+        int end = Math.min(n, centre + windowSize / 2 + 1);
+        return (prefix[end] - prefix[start]) / (end - start);
     }
 
-    private static List<DataPoint> applyLowPassFilter(List<DataPoint> data, double cutoff) {
-        List<DataPoint> result = new ArrayList<>();
-        double alpha = cutoff;
-        double prevOutput = data.get(0).value;
+    /**
+     * Simple moving average filter. Needs the unfiltered neighbours, so it writes into the scratch
+     * buffer and swaps it in.
+     */
+    static void applyMovingAverage(SignalBuffer signal, SignalBuffer scratch, int windowSize) {
+        int n = signal.size();
+        double[] input = signal.values();
+        scratch.resizeLike(signal);
+        double[] output = scratch.values();
 
-        for (DataPoint point : data) {
-            double output = alpha * point.value + (1 - alpha) * prevOutput;
-            result.add(new DataPoint(output, point.timestamp));
-            prevOutput = output;
+        for (int i = 0; i < n; i++) {
+            int start = Math.max(0, i - windowSize / 2);
+            int end = Math.min(n, i + windowSize / 2 + 1);
+
+            double sum = 0;
+            for (int j = start; j < end; j++) {
+                sum += input[j];
+            }
+
+            output[i] = sum / (end - start);
         }
 
-        return result;
+        signal.swap(scratch);
+    }
+
+    /**
+     * Zero-phase Butterworth band-pass over the whole recording
+     */
+    static void applyBandpassFilter(SignalBuffer signal, double samplingRate,
+                                    double lowCutoff, double highCutoff) {
+        ButterworthBandpass.Design design = ButterworthBandpass.design(samplingRate, lowCutoff, highCutoff);
+        ButterworthBandpass.filtfilt(design, signal.values(), signal.size());
     }
 
     /**
      * Normalize signal to zero mean and unit variance
      */
-    private static List<DataPoint> normalizeSignal(List<DataPoint> data) {
-        double mean = data.stream().mapToDouble(p -> p.value).average().orElse(0);
-        double variance = data.stream().mapToDouble(p -> Math.pow(p.value - mean, 2)).average().orElse(1);
+    static void normalizeSignal(SignalBuffer signal) {
+        double[] values = signal.values();
+        int n = signal.size();
+        double mean = Arrays.stream(values, 0, n).average().orElse(0);
+        double variance = Arrays.stream(values, 0, n).map(v -> Math.pow(v - mean, 2)).average().orElse(1);
         double std = Math.sqrt(variance);
 
-        return data.stream()
-                .map(p -> new DataPoint((p.value - mean) / std, p.timestamp))
-                .collect(Collectors.toList());
+        for (int i = 0; i < n; i++) {
+            values[i] = (values[i] - mean) / std;
+        }
     }
 
     /**
-     * Detect R-R intervals using adaptive trough detection (recommended for PPG)
+     * R-R intervals between the adaptive troughs found in a preprocessed segment
      */
-    public static List<Integer> troughs= new ArrayList<>();
-    private static List<Long> detectRRIntervals(List<DataPoint> data, double samplingRate) {
-        troughs = findAdaptiveTroughs(data, samplingRate);
+    static List<Long> detectRRIntervals(SignalBuffer signal, List<Integer> troughs, double samplingRate) {
+        int[] troughArray = new int[troughs.size()];
+        for (int i = 0; i < troughArray.length; i++) troughArray[i] = troughs.get(i);
+        double[] beatTimes = new double[troughArray.length];
+        beatTimes(signal, troughArray, troughArray.length, samplingRate, beatTimes);
+
         List<Long> rrIntervals = new ArrayList<>();
+        for (int i = 1; i < beatTimes.length; i++) {
+            rrIntervals.add(Math.round(beatTimes[i] - beatTimes[i - 1]));
+        }
+        return rrIntervals;
+    }
 
-        for (int i = 1; i < troughs.size(); i++) {
-            int prevTrough = troughs.get(i - 1);
-            int currentTrough = troughs.get(i);
-            long interval = data.get(currentTrough).timestamp - data.get(prevTrough).timestamp;
-            rrIntervals.add(interval);
+    /**
+     * Time (ms) of the beat at each of troughs[0..count). Each beat is timed at the steepest point of
+     * its fall rather than the trough's sample; consecutive differences, rounded, are the intervals.
+     */
+    static void beatTimes(SignalBuffer signal, int[] troughs, int count, double samplingRate, double[] timesMs) {
+        HeartBeatAnalyzer.refineBeatTimes(signal.values(), signal.size(), troughs, count,
+                samplingRate, BEAT_SEARCH_WINDOW_S, timesMs);
+        for (int i = 0; i < count; i++) {
+            timesMs[i] = timeAt(signal, timesMs[i]);
         }
+    }
 
-        return rrIntervals;
+    // Covers the fall from the pulse peak into the trough
+    static final double BEAT_SEARCH_WINDOW_S = 0.25;
+
+    // Timestamp (ms) at a fractional sample index
+    private static double timeAt(SignalBuffer signal, double index) {
+        double[] timestamps = signal.timestamps();
+        int i = Math.max(0, Math.min(signal.size() - 1, (int) Math.floor(index)));
+        if (i + 1 >= signal.size()) {
+            return timestamps[i];
+        }
+        return timestamps[i] + (index - i) * (timestamps[i + 1] - timestamps[i]);
     }
 
     /**
      * Adaptive trough detection with dynamic thresholds (better for PPG signals)
+     *
+     * The local mean and standard deviation over the 2 second window come from running sums, so
+     * this is O(n) rather than O(n * window). When a sample lands within rounding distance of its
+     * threshold the window is recomputed exactly, so the troughs match the direct calculation.
      */
-    private static List<Integer> findAdaptiveTroughs(List<DataPoint> data, double samplingRate) {
-        List<Integer> troughs = new ArrayList<>();
+    static List<Integer> findAdaptiveTroughs(double[] data, int n, double samplingRate) {
+        int[] troughArray = new int[maxTroughs(n, samplingRate)];
+        int count = findAdaptiveTroughs(data, n, samplingRate, troughArray);
+        List<Integer> troughs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) troughs.add(troughArray[i]);
+        return troughs;
+    }
+
+    /**
+     * Most troughs findAdaptiveTroughs can return for n samples, they are at least 0.4 s apart
+     */
+    static int maxTroughs(int n, double samplingRate) {
+        return n / Math.max(1, (int) (0.4 * samplingRate)) + 1;
+    }
+
+    /**
+     * As above, writing the trough indices into troughs (at least maxTroughs long)
+     *
+     * @return number of troughs found
+     */
+    static int findAdaptiveTroughs(double[] data, int n, double samplingRate, int[] troughs) {
+        int count = 0;
 
         // Calculate adaptive parameters
         int minDistance = (int) (0.4 * samplingRate); // Minimum 0.4s between beats (150 BPM max)
         int windowSize = (int) (2.0 * samplingRate);  // 2-second window for threshold adaptation
+        int half = windowSize / 2;
+        int span = 2 * half;  // Samples actually in the window, one less than windowSize when it's odd
 
-        for (int i = windowSize; i < data.size() - windowSize; i++) {
-            // Calculate local statistics
-            double localMean = 0;
-            double localStd = 0;
+        if (n - windowSize <= windowSize) {
+            return count;
+        }
 
-            for (int j = i - windowSize/2; j < i + windowSize/2; j++) {
-                localMean += data.get(j).value;
-            }
-            localMean /= windowSize;
+        // Running sums over [i - half, i + half)
+        double sum = 0;
+        double sumSquares = 0;
+        for (int j = windowSize - half; j < windowSize + half; j++) {
+            sum += data[j];
+            sumSquares += data[j] * data[j];
+        }
 
-            for (int j = i - windowSize/2; j < i + windowSize/2; j++) {
-                localStd += Math.pow(data.get(j).value - localMean, 2);
+        for (int i = windowSize; i < n - windowSize; i++) {
+            if (i > windowSize) {
+                double entering = data[i + half - 1];
+                double leaving = data[i - half - 1];
+                sum += entering - leaving;
+                sumSquares += entering * entering - leaving * leaving;
             }
-            localStd = Math.sqrt(localStd / windowSize);
+
+            // Calculate local statistics
+            double localMean = sum / windowSize;
+            double squaredDeviations = sumSquares - 2 * localMean * sum + span * localMean * localMean;
+            double localStd = Math.sqrt(Math.max(0, squaredDeviations) / windowSize);
 
             // Adaptive threshold for troughs (below mean)
             double threshold = localMean - 0.2 * localStd; // Look for values below mean
+            if (Math.abs(data[i] - threshold) < THRESHOLD_TIE_TOLERANCE * (1 + Math.abs(threshold))) {
+                threshold = exactThreshold(data, i, windowSize);
+            }
 
             // Check if current point is a trough
-            if (data.get(i).value < threshold && isTroughCandidate(data, i, minDistance)) {
+            if (data[i] < threshold && isTroughCandidate(data, n, i, minDistance)) {
                 // Ensure minimum distance from last trough
-                if (troughs.isEmpty() || i - troughs.get(troughs.size() - 1) >= minDistance) {
-                    troughs.add(i);
+                if (count == 0 || i - troughs[count - 1] >= minDistance) {
+                    troughs[count++] = i;
                 }
             }
         }
 
-        return troughs;
+        return count;
+    }
+
+    // Running sums drift from the two-pass result by far less than this on normalised data
+    private static final double THRESHOLD_TIE_TOLERANCE = 1e-9;
+
+    // Two-pass window statistics, only used to settle near ties
+    private static double exactThreshold(double[] data, int i, int windowSize) {
+        double localMean = 0;
+        double localStd = 0;
+
+        for (int j = i - windowSize/2; j < i + windowSize/2; j++) {
+            localMean += data[j];
+        }
+        localMean /= windowSize;
+
+        for (int j = i - windowSize/2; j < i + windowSize/2; j++) {
+            localStd += Math.pow(data[j] - localMean, 2);
+        }
+        localStd = Math.sqrt(localStd / windowSize);
+
+        return localMean - 0.2 * localStd;
     }
 
     /**
      * Check if a point is a local minimum (trough)
      */
-    private static boolean isTroughCandidate(List<DataPoint> data, int index, int minDistance) {
+    private static boolean isTroughCandidate(double[] data, int n, int index, int minDistance) {
         int searchRadius = Math.min(minDistance / 6, 5); // Small search radius for local minimum
 
         for (int i = Math.max(0, index - searchRadius);
-             i <= Math.min(data.size() - 1, index + searchRadius); i++) {
-            if (i != index && data.get(i).value <= data.get(index).value) {
+             i <= Math.min(n - 1, index + searchRadius); i++) {
+            if (i != index && data[i] <= data[index]) {
                 return false;
             }
         }
@@ -221,86 +439,44 @@ public class HRVMeasurementSystem {
     }
 
     /**
-     * Clean R-R intervals by removing outliers and artifacts
+     * Calculate the time-domain HRV metrics from clean R-R intervals. The spectral and nonlinear
+     * ones are separate pipeline stages.
      */
-
-    private static final float stdRange = 2f;
-    //Could do with something that keeps an eye on the BPM of the user and uses that to scram values...
-    private static List<Long> cleanRRIntervals(List<Long> rrIntervals) {
-        if (rrIntervals.size() < 3) return rrIntervals;
-
-        List<Long> cleaned = new ArrayList<>();
-
-        // Calculate initial statistics
-        double mean = rrIntervals.stream().mapToLong(Long::longValue).average().orElse(0);
-        double std = Math.sqrt(rrIntervals.stream()
-                .mapToDouble(rr -> Math.pow(rr - mean, 2))
-                .average().orElse(0));
-
-        // Remove outliers (beyond 3 standard deviations) changed to a stdRange of 1.5 for better accuracy
-        for (Long rr : rrIntervals) {
-            if ((Math.abs(rr - mean) <= stdRange * std) || rr >= 300 && rr <= 2000) { // 30-200 BPM range
-                cleaned.add(rr);
-            }
-        }
-
-        // Additional cleaning: remove intervals that differ too much from neighbors
-        List<Long> finalCleaned = new ArrayList<>();
-        if (!cleaned.isEmpty()) {
-            finalCleaned.add(cleaned.get(0));
-
-            for (int i = 1; i < cleaned.size() - 1; i++) {
-                long current = cleaned.get(i);
-                long prev = cleaned.get(i - 1);
-                long next = cleaned.get(i + 1);
-
-                // Check if current interval is reasonable compared to neighbors
-                double avgNeighbor = (prev + next) / 2.0;
-                if (Math.abs(current - avgNeighbor) < 0.5 * avgNeighbor) {
-                    finalCleaned.add(current);
-                }
-            }
-
-            if (cleaned.size() > 1) {
-                finalCleaned.add(cleaned.get(cleaned.size() - 1));
-            }
-        }
-
-        return finalCleaned;
+    static HRVMetrics calculateHRVMetrics(List<Long> rrIntervals) {
+        return calculateHRVMetrics(HRVSpectrum.toArray(rrIntervals), rrIntervals.size());
     }
 
-    /**
-     * Calculate HRV metrics from clean R-R intervals
-     */
-    private static HRVMetrics calculateHRVMetrics(List<Long> rrIntervals) {
+    static HRVMetrics calculateHRVMetrics(long[] rrIntervals, int n) {
         HRVMetrics metrics = new HRVMetrics();
 
-        if (rrIntervals.isEmpty()) {
+        if (n == 0) {
             return metrics;
         }
 
-        metrics.validBeats = rrIntervals.size();
+        metrics.validBeats = n;
 
         // Mean R-R interval
-        metrics.meanRR = rrIntervals.stream().mapToLong(Long::longValue).average().orElse(0);
+        metrics.meanRR = Arrays.stream(rrIntervals, 0, n).average().orElse(0);
 
         // Heart rate (BPM)
         metrics.heartRate = 60000.0 / metrics.meanRR; // 60000 ms = 1 minute
 
         // SDNN (Standard Deviation of R-R intervals)
-        double variance = rrIntervals.stream()
+        double variance = Arrays.stream(rrIntervals, 0, n)
                 .mapToDouble(rr -> Math.pow(rr - metrics.meanRR, 2))
                 .average().orElse(0);
         metrics.sdnn = Math.sqrt(variance);
 
         // RMSSD (Root Mean Square of Successive Differences)
-        if (rrIntervals.size() > 1) {
+        if (n > 1) {
             double sumSquaredDiffs = 0;
             int pnn50Count = 0;
 
             int pnn100Count = 0;
-            for (int i = 1; i < rrIntervals.size(); i++) {
-                double diff = rrIntervals.get(i) - rrIntervals.get(i - 1);
+            RmssdConvergence convergence = new RmssdConvergence();
+            for (int i = 1; i < n; i++) {
+                double diff = rrIntervals[i] - rrIntervals[i - 1];
+                convergence.add(diff);
                 //if (Math.abs(diff) < 100.0) {   //a RR interval beyond 100 is actually really unreasonable. Lets toss this in as a little sense test
                     sumSquaredDiffs += diff * diff;
                     pnn100Count++;
@@ -312,7 +488,10 @@ public class HRVMeasurementSystem {
             }
 
             metrics.rmssd = Math.sqrt(sumSquaredDiffs / (pnn100Count));
-            metrics.pnn50 = (double) pnn50Count / (rrIntervals.size() - 1) * 100;
+            metrics.pnn50 = (double) pnn50Count / (n - 1) * 100;
+            // Infinite (unknown) for very short series, stored as 0 so it serialises
+            double halfWidth = convergence.getHalfWidth();
+            metrics.rmssdHalfWidth = Double.isInfinite(halfWidth) ? 0 : halfWidth;
         }
 
         return metrics;
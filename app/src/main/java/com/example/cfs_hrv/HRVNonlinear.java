@@ -0,0 +1,190 @@
+package com.example.cfs_hrv;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Nonlinear HRV metrics of a cleaned RR series: Poincare SD1/SD2, sample entropy and the short-term
+ * DFA exponent alpha1. All three are well under a millisecond for a two minute recording, so they
+ * can be computed for every recording during batch reprocessing.
+ *
+ * Sample entropy sorts the templates by their first value so only pairs that can possibly match are
+ * compared, instead of the O(n^2) scan over all pairs. DFA integrates the series once into prefix
+ * sums, after which each box's linear fit residual is O(1). Working arrays are per thread and reused.
+ */
+public class HRVNonlinear {
+
+    public static final int ENTROPY_DIMENSION = 2;        // m
+    public static final double ENTROPY_TOLERANCE = 0.2;   // r, as a fraction of the SD
+    public static final int DFA_MIN_BOX = 4;
+    public static final int DFA_MAX_BOX = 16;
+
+    private static final int MIN_INTERVALS = 2 * DFA_MAX_BOX;
+
+    public static class Metrics {
+        public double sd1;             // Poincare short axis, beat to beat variability (ms)
+        public double sd2;             // Poincare long axis, longer term variability (ms)
+        public double sampleEntropy;   // 0 when there are too few matches to define it
+        public double dfaAlpha1;       // Scaling exponent over 4-16 beats
+
+        @Override
+        public String toString() {
+            return String.format("SD1: %.1f ms, SD2: %.1f ms, SampEn: %.2f, DFA a1: %.2f",
+                    sd1, sd2, sampleEntropy, dfaAlpha1);
+        }
+    }
+
+    private static final class Scratch {
+        long[] sortKeys = new long[0];
+        double[] sumY = new double[0];
+        double[] sumKY = new double[0];
+        double[] sumYY = new double[0];
+
+        void ensure(int n) {
+            if (sortKeys.length < n) {
+                sortKeys = new long[n];
+                sumY = new double[n + 1];
+                sumKY = new double[n + 1];
+                sumYY = new double[n + 1];
+            }
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    public static Metrics compute(List<Long> rrIntervals) {
+        return compute(HRVSpectrum.toArray(rrIntervals), rrIntervals.size());
+    }
+
+    /**
+     * Metrics of rr[0..n), which isn't modified
+     */
+    public static Metrics compute(long[] rr, int n) {
+        Metrics metrics = new Metrics();
+        if (n < 3) {
+            return metrics;
+        }
+        Scratch s = scratch.get();
+        s.ensure(n);
+
+        // Poincare from the variance of the series and of its successive differences
+        double mean = 0;
+        for (int i = 0; i < n; i++) mean += rr[i];
+        mean /= n;
+        double variance = 0;
+        double diffMean = 0;
+        for (int i = 0; i < n; i++) {
+            variance += (rr[i] - mean) * (rr[i] - mean);
+            if (i > 0) diffMean += rr[i] - rr[i - 1];
+        }
+        variance /= n;
+        diffMean /= n - 1;
+        double diffVariance = 0;
+        for (int i = 1; i < n; i++) {
+            double d = rr[i] - rr[i - 1] - diffMean;
+            diffVariance += d * d;
+        }
+        diffVariance /= n - 1;
+        metrics.sd1 = Math.sqrt(0.5 * diffVariance);
+        metrics.sd2 = Math.sqrt(Math.max(0, 2 * variance - 0.5 * diffVariance));
+
+        if (n >= MIN_INTERVALS) {
+            metrics.sampleEntropy = sampleEntropy(rr, n, ENTROPY_DIMENSION,
+                    ENTROPY_TOLERANCE * Math.sqrt(variance), s.sortKeys);
+            metrics.dfaAlpha1 = dfaAlpha(rr, n, mean, DFA_MIN_BOX, DFA_MAX_BOX, s);
+        }
+        return metrics;
+    }
+
+    /**
+     * SampEn(m, r) = -ln(A / B): B counts pairs of length m templates within r of each other
+     * (Chebyshev distance), A the pairs that still match at length m + 1. Both use the first n - m
+     * templates so the ratio is a conditional probability.
+     */
+    static double sampleEntropy(long[] x, int n, int m, double r, long[] sortKeys) {
+        int templates = n - m;
+        if (templates < 2 || r <= 0) return 0;
+
+        // Sort template starts by first value: key is value in the high bits, index in the low 24
+        for (int i = 0; i < templates; i++) {
+            sortKeys[i] = (x[i] << 24) | i;
+        }
+        Arrays.sort(sortKeys, 0, templates);
+
+        long matchesM = 0;
+        long matchesM1 = 0;
+        for (int p = 0; p < templates; p++) {
+            int i = (int) (sortKeys[p] & 0xFFFFFF);
+            long first = x[i];
+            // Only later entries within r of the first value can match
+            for (int q = p + 1; q < templates; q++) {
+                int j = (int) (sortKeys[q] & 0xFFFFFF);
+                if (x[j] - first > r) break;
+                int k = 1;
+                while (k < m && Math.abs(x[i + k] - x[j + k]) <= r) k++;
+                if (k < m) continue;
+                matchesM++;
+                if (Math.abs(x[i + m] - x[j + m]) <= r) matchesM1++;
+            }
+        }
+        if (matchesM == 0 || matchesM1 == 0) return 0;
+        return -Math.log((double) matchesM1 / matchesM);
+    }
+
+    /**
+     * Detrended fluctuation: integrate the mean-removed series, detrend it in non-overlapping boxes
+     * of each size with a least-squares line and take the RMS residual F(size); alpha is the slope of
+     * log F against log size.
+     */
+    private static double dfaAlpha(long[] rr, int n, double mean, int minBox, int maxBox, Scratch s) {
+        // Prefix sums over the integrated series y: sum y, sum k*y and sum y^2 for k < index
+        double[] sumY = s.sumY;
+        double[] sumKY = s.sumKY;
+        double[] sumYY = s.sumYY;
+        double y = 0;
+        sumY[0] = sumKY[0] = sumYY[0] = 0;
+        for (int k = 0; k < n; k++) {
+            y += rr[k] - mean;
+            sumY[k + 1] = sumY[k] + y;
+            sumKY[k + 1] = sumKY[k] + k * y;
+            sumYY[k + 1] = sumYY[k] + y * y;
+        }
+
+        // Least-squares slope of log F(size) against log size
+        double sx = 0, sxx = 0, sf = 0, sxf = 0;
+        int points = 0;
+        for (int size = minBox; size <= maxBox; size++) {
+            int boxes = n / size;
+            if (boxes < 1) break;
+            double st = size * (size - 1) / 2.0;
+            double stt = (size - 1) * size * (2.0 * size - 1) / 6.0;
+            double tVariance = stt - st * st / size;
+            double residual = 0;
+            for (int b = 0; b < boxes; b++) {
+                int from = b * size;
+                int to = from + size;
+                double by = sumY[to] - sumY[from];
+                double bty = sumKY[to] - sumKY[from] - from * by;   // Local time t = k - from
+                double byy = sumYY[to] - sumYY[from];
+                double cov = bty - st * by / size;
+                residual += byy - by * by / size - cov * cov / tVariance;
+            }
+            double fluctuation = Math.sqrt(Math.max(0, residual) / (boxes * size));
+            if (fluctuation <= 0) continue;
+            double lx = Math.log(size);
+            double lf = Math.log(fluctuation);
+            sx += lx;
+            sxx += lx * lx;
+            sf += lf;
+            sxf += lx * lf;
+            points++;
+        }
+        if (points < 2) return 0;
+        return (points * sxf - sx * sf) / (points * sxx - sx * sx);
+    }
+}
@@ -0,0 +1,288 @@
+package com.example.cfs_hrv;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An assembled HRV analysis: signal stages applied to each uniformly sampled segment (filtering and
+ * beat detection), then interval stages over the whole recording's RR intervals (cleaning and
+ * metrics). Build one with builder() or start from standardBuilder() and replace a stage to try an
+ * alternative filter or detector.
+ *
+ * Every stage call is timed, and the bytes each stage allocates are counted too, through the
+ * desktop JVM's ThreadMXBean or ART's allocation counting (see AllocationCounter). The counters
+ * accumulate across runs and threads until resetStats(), so a production build can report which
+ * stage is using the budget.
+ */
+public class HRVPipeline {
+
+    /**
+     * Accumulated cost of one stage
+     */
+    public static final class StageStats {
+        public final String name;
+        public final boolean signalStage;
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong allocatedBytes = new AtomicLong();
+
+        StageStats(String name, boolean signalStage) {
+            this.name = name;
+            this.signalStage = signalStage;
+        }
+
+        public long getCalls() { return calls.get(); }
+        public long getNanos() { return nanos.get(); }
+
+        /**
+         * Bytes allocated inside the stage, -1 when the runtime can't measure it
+         */
+        public long getAllocatedBytes() {
+            return AllocationCounter.AVAILABLE ? allocatedBytes.get() : -1;
+        }
+
+        public double getMeanMicros() {
+            long count = calls.get();
+            return count > 0 ? nanos.get() / 1e3 / count : 0;
+        }
+
+        void reset() {
+            calls.set(0);
+            nanos.set(0);
+            allocatedBytes.set(0);
+        }
+    }
+
+    public static final class Builder {
+        private final List<PipelineStage> signalStages = new ArrayList<>();
+        private final List<PipelineStage> intervalStages = new ArrayList<>();
+
+        public Builder addSignalStage(PipelineStage stage) {
+            signalStages.add(stage);
+            return this;
+        }
+
+        public Builder addIntervalStage(PipelineStage stage) {
+            intervalStages.add(stage);
+            return this;
+        }
+
+        /**
+         * Swap the stage with a given name for another, in the same position
+         */
+        public Builder replace(String name, PipelineStage stage) {
+            if (!replaceIn(signalStages, name, stage) && !replaceIn(intervalStages, name, stage)) {
+                throw new IllegalArgumentException("No stage named " + name);
+            }
+            return this;
+        }
+
+        public Builder remove(String name) {
+            if (!removeFrom(signalStages, name) && !removeFrom(intervalStages, name)) {
+                throw new IllegalArgumentException("No stage named " + name);
+            }
+            return this;
+        }
+
+        private static boolean replaceIn(List<PipelineStage> stages, String name, PipelineStage stage) {
+            for (int i = 0; i < stages.size(); i++) {
+                if (stages.get(i).getName().equals(name)) {
+                    stages.set(i, stage);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static boolean removeFrom(List<PipelineStage> stages, String name) {
+            for (int i = 0; i < stages.size(); i++) {
+                if (stages.get(i).getName().equals(name)) {
+                    stages.remove(i);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public HRVPipeline build() {
+            return new HRVPipeline(signalStages, intervalStages);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * The analysis HRVMeasurementSystem runs: 5 point moving average, 0.5-4 Hz Butterworth band-pass,
+     * normalisation, adaptive troughs with sub-sample beat timing, RR cleaning, then time-domain,
+     * spectral and nonlinear metrics
+     */
+    public static Builder standardBuilder() {
+        return builder()
+                .addSignalStage(PipelineStages.movingAverage(5))
+                .addSignalStage(PipelineStages.bandpass(0.5, 4.0))
+                .addSignalStage(PipelineStages.normalize())
+                .addSignalStage(PipelineStages.adaptiveTroughs())
+                .addIntervalStage(PipelineStages.cleanIntervals())
+                .addIntervalStage(PipelineStages.timeDomainMetrics())
+                .addIntervalStage(PipelineStages.spectralMetrics())
+                .addIntervalStage(PipelineStages.nonlinearMetrics());
+    }
+
+    private final PipelineStage[] signalStages;
+    private final PipelineStage[] intervalStages;
+    private final StageStats[] signalStats;
+    private final StageStats[] intervalStats;
+
+    private HRVPipeline(List<PipelineStage> signalStages, List<PipelineStage> intervalStages) {
+        this.signalStages = signalStages.toArray(new PipelineStage[0]);
+        this.intervalStages = intervalStages.toArray(new PipelineStage[0]);
+        signalStats = new StageStats[this.signalStages.length];
+        for (int i = 0; i < signalStats.length; i++) {
+            signalStats[i] = new StageStats(this.signalStages[i].getName(), true);
+        }
+        intervalStats = new StageStats[this.intervalStages.length];
+        for (int i = 0; i < intervalStats.length; i++) {
+            intervalStats[i] = new StageStats(this.intervalStages[i].getName(), false);
+        }
+    }
+
+    /**
+     * Analyse the segments of one recording. Signal stages modify the segments in place.
+     */
+    public HRVAnalysisResult run(List<SignalBuffer> segments, double samplingRate, SamplingStats sampling) {
+        PipelineData data = new PipelineData(samplingRate);
+        data.sampling = sampling;
+        for (SignalBuffer segment : segments) {
+            data.signal = segment;
+            for (int s = 0; s < signalStages.length; s++) {
+                runStage(signalStages[s], signalStats[s], data);
+            }
+            data.segmentOffset += data.signal.size();
+        }
+        data.signal = null;
+
+        for (int s = 0; s < intervalStages.length; s++) {
+            runStage(intervalStages[s], intervalStats[s], data);
+        }
+        return data.toResult();
+    }
+
+    public HRVAnalysisResult run(SignalBuffer signal, double samplingRate) {
+        return run(Collections.singletonList(signal), samplingRate, null);
+    }
+
+    private static void runStage(PipelineStage stage, StageStats stats, PipelineData data) {
+        long bytesBefore = AllocationCounter.currentThread();
+        long start = System.nanoTime();
+        stage.process(data);
+        long elapsed = System.nanoTime() - start;
+        long allocated = AllocationCounter.since(bytesBefore);
+        stats.calls.incrementAndGet();
+        stats.nanos.addAndGet(elapsed);
+        stats.allocatedBytes.addAndGet(allocated);
+    }
+
+    /**
+     * Signal stages first, then interval stages, in pipeline order
+     */
+    public List<StageStats> getStageStats() {
+        List<StageStats> stats = new ArrayList<>(signalStats.length + intervalStats.length);
+        Collections.addAll(stats, signalStats);
+        Collections.addAll(stats, intervalStats);
+        return stats;
+    }
+
+    public void resetStats() {
+        for (StageStats stats : getStageStats()) {
+            stats.reset();
+        }
+    }
+
+    public String report() {
+        StringBuilder report = new StringBuilder("HRV pipeline stages");
+        for (StageStats stats : getStageStats()) {
+            report.append(String.format(Locale.US, "%n%-10s %-18s calls=%d mean=%.1fus total=%.2fms",
+                    stats.signalStage ? "signal" : "interval", stats.name, stats.getCalls(),
+                    stats.getMeanMicros(), stats.getNanos() / 1e6));
+            if (stats.getAllocatedBytes() >= 0) {
+                report.append(String.format(Locale.US, " alloc=%.1fKB", stats.getAllocatedBytes() / 1024.0));
+            }
+        }
+        return report.toString();
+    }
+
+    /**
+     * Per-thread allocated bytes, looked up reflectively so this loads on both runtimes. The desktop
+     * JVM has com.sun.management.ThreadMXBean. ART doesn't, but android.os.Debug counts per-thread
+     * allocation once counting is started, which this does when the first stage runs; that adds a
+     * couple of increments to every allocation in the process. Debug's counter is an int, so readings
+     * are differenced modulo 2^32. Includes a few bytes for the boxed result of each reading.
+     */
+    static final class AllocationCounter {
+        static final boolean AVAILABLE;
+        private static final Object bean;           // null for the static Debug method
+        private static final Method method;
+        private static final boolean thirtyTwoBit;
+        private static final Object[] NO_ARGS = new Object[0];
+
+        static {
+            Object foundBean = null;
+            Method foundMethod = null;
+            boolean foundThirtyTwoBit = false;
+            try {
+                foundBean = Class.forName("java.lang.management.ManagementFactory")
+                        .getMethod("getThreadMXBean").invoke(null);
+                Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+                if (type.isInstance(foundBean)) {
+                    foundMethod = type.getMethod("getThreadAllocatedBytes", long.class);
+                    if ((Long) foundMethod.invoke(foundBean, Thread.currentThread().getId()) < 0) {
+                        foundMethod = null;
+                    }
+                }
+            } catch (Throwable e) {
+                foundMethod = null;
+            }
+            if (foundMethod == null) {
+                foundBean = null;
+                try {
+                    Class<?> debug = Class.forName("android.os.Debug");
+                    debug.getMethod("startAllocCounting").invoke(null, NO_ARGS);
+                    foundMethod = debug.getMethod("getThreadAllocSize");
+                    foundThirtyTwoBit = true;
+                } catch (Throwable e) {
+                    foundMethod = null;
+                }
+            }
+            bean = foundBean;
+            method = foundMethod;
+            thirtyTwoBit = foundThirtyTwoBit;
+            AVAILABLE = foundMethod != null;
+        }
+
+        static long currentThread() {
+            if (!AVAILABLE) return 0;
+            try {
+                Object bytes = bean != null
+                        ? method.invoke(bean, Thread.currentThread().getId())
+                        : method.invoke(null, NO_ARGS);
+                return ((Number) bytes).longValue();
+            } catch (Exception e) {
+                return 0;
+            }
+        }
+
+        /**
+         * Bytes this thread has allocated since a currentThread() reading
+         */
+        static long since(long before) {
+            long bytes = currentThread() - before;
+            return thirtyTwoBit ? bytes & 0xFFFFFFFFL : bytes;
+        }
+    }
+}
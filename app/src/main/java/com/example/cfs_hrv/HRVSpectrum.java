@@ -0,0 +1,281 @@
+package com.example.cfs_hrv;
+
+import java.util.List;
+
+/**
+ * Frequency-domain HRV: power of the RR series in the standard VLF, LF and HF bands (ms^2) and the
+ * LF/HF ratio. Beats are unevenly spaced in time, so the default is a Lomb-Scargle periodogram
+ * evaluated directly at the beat times; fft() is the classic alternative of spline interpolating
+ * the tachogram onto a 4 Hz grid and taking a Hann-windowed periodogram with a cached FftPlan.
+ *
+ * Both are normalised as one-sided densities, so the band powers add up to roughly the variance of
+ * the series. Scratch arrays are per thread and reused, so repeated calls (reprocessing a history)
+ * allocate only the result.
+ */
+public class HRVSpectrum {
+
+    public static final double VLF_LOW_HZ = 0.0033;
+    public static final double LF_LOW_HZ = 0.04;
+    public static final double HF_LOW_HZ = 0.15;
+    public static final double HF_HIGH_HZ = 0.4;
+
+    public static final double TACHOGRAM_RATE = 4.0;   // Hz, for the FFT path
+
+    // Lomb-Scargle frequency grid: at least 4x oversampled against 1 / duration
+    private static final int OVERSAMPLING = 4;
+    private static final double MAX_FREQUENCY_STEP = 0.002;
+
+    private static final int MIN_INTERVALS = 8;
+
+    public static class Bands {
+        public double vlfPower;    // 0.0033-0.04 Hz (ms^2)
+        public double lfPower;     // 0.04-0.15 Hz (ms^2)
+        public double hfPower;     // 0.15-0.4 Hz (ms^2)
+        public double lfHfRatio;   // 0 when there is no HF power
+
+        public double totalPower() {
+            return vlfPower + lfPower + hfPower;
+        }
+
+        private void add(double frequency, double power) {
+            if (frequency < VLF_LOW_HZ || frequency >= HF_HIGH_HZ) return;
+            if (frequency < LF_LOW_HZ) vlfPower += power;
+            else if (frequency < HF_LOW_HZ) lfPower += power;
+            else hfPower += power;
+        }
+
+        private Bands finish() {
+            lfHfRatio = hfPower > 0 ? lfPower / hfPower : 0;
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("VLF: %.0f ms^2, LF: %.0f ms^2, HF: %.0f ms^2, LF/HF: %.2f",
+                    vlfPower, lfPower, hfPower, lfHfRatio);
+        }
+    }
+
+    // Per-thread working arrays, grown as needed and never shrunk
+    private static final class Scratch {
+        double[] times = new double[0];
+        double[] values = new double[0];
+        double[] cos = new double[0];
+        double[] sin = new double[0];
+        double[] stepCos = new double[0];
+        double[] stepSin = new double[0];
+        double[] curvature = new double[0];
+        double[] work = new double[0];
+        double[] re = new double[0];
+        double[] im = new double[0];
+
+        void ensureBeats(int n) {
+            if (times.length < n) {
+                times = new double[n];
+                values = new double[n];
+                cos = new double[n];
+                sin = new double[n];
+                stepCos = new double[n];
+                stepSin = new double[n];
+                curvature = new double[n];
+                work = new double[n];
+            }
+        }
+
+        void ensureFft(int n) {
+            if (re.length < n) {
+                re = new double[n];
+                im = new double[n];
+            }
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    /**
+     * Lomb-Scargle band powers of a series of consecutive RR intervals (ms), each placed at the
+     * time of the beat that ends it
+     */
+    public static Bands lombScargle(List<Long> rrIntervals) {
+        return lombScargle(toArray(rrIntervals), rrIntervals.size());
+    }
+
+    /**
+     * Lomb-Scargle band powers of rrIntervals[0..n)
+     */
+    public static Bands lombScargle(long[] rrIntervals, int n) {
+        Bands bands = new Bands();
+        if (n < MIN_INTERVALS) {
+            return bands;
+        }
+        Scratch s = scratch.get();
+        s.ensureBeats(n);
+        double duration = loadBeats(rrIntervals, n, s.times, s.values);
+
+        double step = Math.min(MAX_FREQUENCY_STEP, 1.0 / (OVERSAMPLING * duration));
+        int frequencies = (int) Math.ceil((HF_HIGH_HZ - VLF_LOW_HZ) / step);
+
+        // cos/sin of w t at each beat, advanced one grid step at a time by rotation rather than
+        // calling the trig functions per beat per frequency
+        for (int j = 0; j < n; j++) {
+            double phase = 2 * Math.PI * VLF_LOW_HZ * s.times[j];
+            double phaseStep = 2 * Math.PI * step * s.times[j];
+            s.cos[j] = Math.cos(phase);
+            s.sin[j] = Math.sin(phase);
+            s.stepCos[j] = Math.cos(phaseStep);
+            s.stepSin[j] = Math.sin(phaseStep);
+        }
+
+        // Periodogram P to one-sided density: a sinusoid's peak integrates to its variance
+        double scale = 2 * duration / n * step;
+        for (int k = 0; k < frequencies; k++) {
+            double yc = 0, ys = 0, cc = 0, ss = 0, cs = 0;
+            for (int j = 0; j < n; j++) {
+                double c = s.cos[j];
+                double sn = s.sin[j];
+                double y = s.values[j];
+                yc += y * c;
+                ys += y * sn;
+                cc += c * c;
+                ss += sn * sn;
+                cs += c * sn;
+                s.cos[j] = c * s.stepCos[j] - sn * s.stepSin[j];
+                s.sin[j] = sn * s.stepCos[j] + c * s.stepSin[j];
+            }
+
+            // The time offset tau that decouples the sine and cosine terms, then the sums
+            // rotated to it
+            double twoWTau = Math.atan2(2 * cs, cc - ss);
+            double ct = Math.cos(twoWTau / 2);
+            double st = Math.sin(twoWTau / 2);
+            double yCos = ct * yc + st * ys;
+            double ySin = ct * ys - st * yc;
+            double cosSquares = ct * ct * cc + 2 * ct * st * cs + st * st * ss;
+            double sinSquares = ct * ct * ss - 2 * ct * st * cs + st * st * cc;
+
+            double power = 0;
+            if (cosSquares > 1e-12) power += yCos * yCos / cosSquares;
+            if (sinSquares > 1e-12) power += ySin * ySin / sinSquares;
+            bands.add(VLF_LOW_HZ + k * step, 0.5 * power * scale);
+        }
+        return bands.finish();
+    }
+
+    /**
+     * Band powers from the tachogram cubic-spline interpolated at TACHOGRAM_RATE, mean removed,
+     * Hann windowed and zero padded to a power of two. Linear interpolation would lose a quarter of
+     * the HF power at resting heart rates.
+     */
+    public static Bands fft(List<Long> rrIntervals) {
+        return fft(toArray(rrIntervals), rrIntervals.size());
+    }
+
+    /**
+     * FFT band powers of rrIntervals[0..n)
+     */
+    public static Bands fft(long[] rrIntervals, int n) {
+        Bands bands = new Bands();
+        if (n < MIN_INTERVALS) {
+            return bands;
+        }
+        Scratch s = scratch.get();
+        s.ensureBeats(n);
+        double duration = loadBeats(rrIntervals, n, s.times, s.values);
+
+        int samples = (int) Math.floor(duration * TACHOGRAM_RATE) + 1;
+        FftPlan plan = FftPlan.forSize(FftPlan.nextPowerOfTwo(samples));
+        int size = plan.size();
+        s.ensureFft(size);
+        double[] re = s.re;
+        double[] im = s.im;
+
+        // Interpolate (values are already mean-removed at the beats, remove the grid mean too)
+        naturalSpline(s.times, s.values, n, s.curvature, s.work);
+        int j = 0;
+        double mean = 0;
+        for (int k = 0; k < samples; k++) {
+            double t = k / TACHOGRAM_RATE;
+            while (j < n - 2 && s.times[j + 1] <= t) {
+                j++;
+            }
+            re[k] = evaluateSpline(s.times, s.values, s.curvature, j, t);
+            mean += re[k];
+        }
+        mean /= samples;
+
+        double windowEnergy = 0;
+        for (int k = 0; k < samples; k++) {
+            double w = samples > 1 ? 0.5 - 0.5 * Math.cos(2 * Math.PI * k / (samples - 1)) : 1;
+            re[k] = (re[k] - mean) * w;
+            windowEnergy += w * w;
+        }
+        for (int k = samples; k < size; k++) re[k] = 0;
+        for (int k = 0; k < size; k++) im[k] = 0;
+
+        plan.forward(re, im);
+
+        // One-sided density |X|^2 / (fs sum w^2), doubled for the negative frequencies, times df
+        double binWidth = TACHOGRAM_RATE / size;
+        double scale = 2.0 / (TACHOGRAM_RATE * windowEnergy) * binWidth;
+        for (int k = 1; k < size / 2; k++) {
+            bands.add(k * binWidth, (re[k] * re[k] + im[k] * im[k]) * scale);
+        }
+        return bands.finish();
+    }
+
+    // Beat times in seconds from the first beat and mean-removed intervals; returns the span in seconds
+    private static double loadBeats(long[] rrIntervals, int n, double[] times, double[] values) {
+        double sum = 0;
+        double elapsed = 0;
+        for (int j = 0; j < n; j++) {
+            long rr = rrIntervals[j];
+            if (j > 0) elapsed += rr / 1000.0;
+            times[j] = elapsed;
+            values[j] = rr;
+            sum += rr;
+        }
+        double mean = sum / n;
+        for (int j = 0; j < n; j++) {
+            values[j] -= mean;
+        }
+        return elapsed;
+    }
+
+    static long[] toArray(List<Long> rrIntervals) {
+        long[] rr = new long[rrIntervals.size()];
+        for (int j = 0; j < rr.length; j++) {
+            rr[j] = rrIntervals.get(j);
+        }
+        return rr;
+    }
+
+    // Second derivatives of the natural cubic spline through (x, y), tridiagonal solve
+    private static void naturalSpline(double[] x, double[] y, int n, double[] curvature, double[] work) {
+        curvature[0] = 0;
+        work[0] = 0;
+        for (int i = 1; i < n - 1; i++) {
+            double sig = (x[i] - x[i - 1]) / (x[i + 1] - x[i - 1]);
+            double p = sig * curvature[i - 1] + 2;
+            curvature[i] = (sig - 1) / p;
+            double slopes = (y[i + 1] - y[i]) / (x[i + 1] - x[i]) - (y[i] - y[i - 1]) / (x[i] - x[i - 1]);
+            work[i] = (6 * slopes / (x[i + 1] - x[i - 1]) - sig * work[i - 1]) / p;
+        }
+        curvature[n - 1] = 0;
+        for (int i = n - 2; i >= 0; i--) {
+            curvature[i] = curvature[i] * curvature[i + 1] + work[i];
+        }
+    }
+
+    private static double evaluateSpline(double[] x, double[] y, double[] curvature, int j, double t) {
+        double h = x[j + 1] - x[j];
+        double a = (x[j + 1] - t) / h;
+        double b = (t - x[j]) / h;
+        return a * y[j] + b * y[j + 1]
+                + ((a * a * a - a) * curvature[j] + (b * b * b - b) * curvature[j + 1]) * h * h / 6;
+    }
+}
@@ -1,6 +1,7 @@
 package com.example.cfs_hrv;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class HeartBeatAnalyzer {
 
@@ -24,77 +25,131 @@ public class HeartBeatAnalyzer {
         }
     }
 
+    // Rows of (X^T X)^-1 X^T for a cubic fit over x = 0..n-1, keyed by n. Coefficients are P * y.
+    private static final Map<Integer, double[][]> pseudoInverseCache = new ConcurrentHashMap<>();
+
     public static double findSteepestDrop(List<Double> data, int startIndex, int window) {
         int n = window + 1;
-        double[] x = new double[n];
         double[] y = new double[n];
-
         for (int i = 0; i < n; i++) {
-            x[i] = i;  // relative index
             y[i] = data.get(startIndex + i);
         }
+        return findSteepestDrop(y, 0, window) + startIndex;
+    }
 
-        Cubic poly = fitCubic(x, y);
+    /**
+     * Fractional index of the steepest fall of a cubic fitted to data[startIndex..startIndex + window]
+     */
+    public static double findSteepestDrop(double[] data, int startIndex, int window) {
+        Cubic poly = fitCubic(data, startIndex, window + 1);
 
-        // Derivative of cubic is quadratic: f'(x) = 3ax^2 + 2bx + c
-        // We sample derivative at multiple points in the interval to find steepest slope
-        double minSlope = Double.POSITIVE_INFINITY;
+        // Return floating-point index relative to full signal
+        return startIndex + steepestDescentX(poly, window);
+    }
+
+    /**
+     * Minimum of the derivative f'(x) = 3ax^2 + 2bx + c over [0, length]. A quadratic's minimum is
+     * its vertex when it opens upwards, otherwise one of the ends.
+     */
+    static double steepestDescentX(Cubic poly, double length) {
         double bestX = 0.0;
+        double minSlope = poly.derivative(0.0);
+
+        double endSlope = poly.derivative(length);
+        if (endSlope < minSlope) {
+            minSlope = endSlope;
+            bestX = length;
+        }
 
-        for (double xi = 0.0; xi <= n - 1; xi += 0.01) {
-            double slope = poly.derivative(xi);
-            if (slope < minSlope) {
-                minSlope = slope;
-                bestX = xi;
+        if (poly.a > 0) {
+            double vertex = -poly.b / (3 * poly.a);
+            if (vertex > 0 && vertex < length && poly.derivative(vertex) < minSlope) {
+                bestX = vertex;
             }
         }
+        return bestX;
+    }
 
-        // Return floating-point index relative to full signal
-        return startIndex + bestX;
+    /**
+     * Sub-sample beat times for a list of troughs. Each beat is placed at the steepest point of the
+     * fall into its trough: the steepest sample-to-sample drop within the preceding searchSeconds
+     * locates it, then a cubic over about 80 ms either side pins it between samples. Falls back to
+     * the trough index when there isn't enough signal around it.
+     *
+     * @return fractional sample indices, one per trough
+     */
+    public static double[] refineBeatTimes(double[] data, int n, List<Integer> troughs,
+                                           double samplingRate, double searchSeconds) {
+        int[] troughArray = new int[troughs.size()];
+        for (int k = 0; k < troughArray.length; k++) {
+            troughArray[k] = troughs.get(k);
+        }
+        double[] beatTimes = new double[troughArray.length];
+        refineBeatTimes(data, n, troughArray, troughArray.length, samplingRate, searchSeconds, beatTimes);
+        return beatTimes;
     }
 
-    // Least squares cubic fit
-    private static Cubic fitCubic(double[] x, double[] y) {
-        int n = x.length;
+    /**
+     * As above for troughs[0..count), writing the fractional indices into beatTimes
+     */
+    public static void refineBeatTimes(double[] data, int n, int[] troughs, int count,
+                                       double samplingRate, double searchSeconds, double[] beatTimes) {
+        int search = searchSamples(samplingRate, searchSeconds);
+        int half = fitHalfWidth(samplingRate);
+        for (int k = 0; k < count; k++) {
+            beatTimes[k] = refineBeatTime(data, n, troughs[k], search, half);
+        }
+    }
 
-        double sumX0 = n;
-        double sumX1 = 0, sumX2 = 0, sumX3 = 0, sumX4 = 0, sumX5 = 0, sumX6 = 0;
-        double sumY = 0, sumYX1 = 0, sumYX2 = 0, sumYX3 = 0;
+    static int searchSamples(double samplingRate, double searchSeconds) {
+        return Math.max(2, (int) Math.round(searchSeconds * samplingRate));
+    }
+
+    // About 80 ms either side of the steepest step
+    static int fitHalfWidth(double samplingRate) {
+        return Math.max(2, (int) Math.round(0.08 * samplingRate));
+    }
+
+    /**
+     * Sub-sample time of one beat, as refineBeatTimes. Reads data[trough - search - half ..
+     * trough + half), so a streaming caller only needs that much behind and ahead of the trough.
+     */
+    static double refineBeatTime(double[] data, int n, int trough, int search, int half) {
+        if (trough >= n) {
+            return trough;
+        }
+
+        int steepest = -1;
+        double steepestDrop = 0;
+        for (int j = Math.max(1, trough - search); j <= trough; j++) {
+            double drop = data[j] - data[j - 1];
+            if (drop < steepestDrop) {
+                steepestDrop = drop;
+                steepest = j;
+            }
+        }
+        // Centre the fit on the middle of the steepest step
+        int start = steepest - half;
+        if (steepest < 0 || start < 0 || start + 2 * half - 1 >= n) {
+            return trough;
+        }
+        double beat = findSteepestDrop(data, start, 2 * half - 1);
+        return Double.isNaN(beat) ? trough : beat;
+    }
+
+    // Least squares cubic fit of data[start..start + n) against x = 0..n-1
+    private static Cubic fitCubic(double[] data, int start, int n) {
+        double[][] pseudoInverse = pseudoInverse(n);
+        double[] coeffs = new double[4];
+        for (int row = 0; row < 4; row++) {
+            double[] weights = pseudoInverse[row];
+            double sum = 0;
+            for (int i = 0; i < n; i++) {
+                sum += weights[i] * data[start + i];
+            }
+            coeffs[row] = sum;
+        }
 
-        for (int i = 0; i < n; i++) {
-            double xi = x[i];
-            double yi = y[i];
-
-            double xi2 = xi * xi;
-            double xi3 = xi2 * xi;
-            double xi4 = xi3 * xi;
-            double xi5 = xi4 * xi;
-            double xi6 = xi5 * xi;
-
-            sumX1 += xi;
-            sumX2 += xi2;
-            sumX3 += xi3;
-            sumX4 += xi4;
-            sumX5 += xi5;
-            sumX6 += xi6;
-
-            sumY += yi;
-            sumYX1 += yi * xi;
-            sumYX2 += yi * xi2;
-            sumYX3 += yi * xi3;
-        }
-
-        // Solve linear system A * coeffs = B for [d, c, b, a]
-        double[][] A = {
-                {sumX0, sumX1, sumX2, sumX3},
-                {sumX1, sumX2, sumX3, sumX4},
-                {sumX2, sumX3, sumX4, sumX5},
-                {sumX3, sumX4, sumX5, sumX6}
-        };
-
-        double[] B = {sumY, sumYX1, sumYX2, sumYX3};
-
-        double[] coeffs = gaussianElimination(A, B);
         Cubic poly = new Cubic();
         poly.d = coeffs[0];
         poly.c = coeffs[1];
@@ -103,6 +158,55 @@ public class HeartBeatAnalyzer {
         return poly;
     }
 
+    // x only ever runs 0..n-1, so the normal equations depend on n alone. Solve them once per n.
+    private static double[][] pseudoInverse(int n) {
+        double[][] cached = pseudoInverseCache.get(n);
+        if (cached != null) {
+            return cached;
+        }
+
+        double[] sums = new double[7];
+        for (int i = 0; i < n; i++) {
+            double power = 1;
+            for (int p = 0; p < 7; p++) {
+                sums[p] += power;
+                power *= i;
+            }
+        }
+
+        // Columns of (X^T X)^-1, one elimination per unit vector
+        double[][] inverse = new double[4][4];
+        for (int column = 0; column < 4; column++) {
+            double[][] A = new double[4][4];
+            for (int r = 0; r < 4; r++) {
+                for (int c = 0; c < 4; c++) {
+                    A[r][c] = sums[r + c];
+                }
+            }
+            double[] B = new double[4];
+            B[column] = 1;
+            double[] solution = gaussianElimination(A, B);
+            for (int r = 0; r < 4; r++) {
+                inverse[r][column] = solution[r];
+            }
+        }
+
+        double[][] pseudoInverse = new double[4][n];
+        for (int i = 0; i < n; i++) {
+            double[] powers = {1, i, (double) i * i, (double) i * i * i};
+            for (int r = 0; r < 4; r++) {
+                double sum = 0;
+                for (int c = 0; c < 4; c++) {
+                    sum += inverse[r][c] * powers[c];
+                }
+                pseudoInverse[r][i] = sum;
+            }
+        }
+
+        double[][] previous = pseudoInverseCache.putIfAbsent(n, pseudoInverse);
+        return previous != null ? previous : pseudoInverse;
+    }
+
     // Solves Ax = B using Gaussian elimination
     private static double[] gaussianElimination(double[][] A, double[] B) {
         int n = B.length;
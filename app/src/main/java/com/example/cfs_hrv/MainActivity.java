@@ -16,11 +16,7 @@ import androidx.fragment.app.Fragment;
 
 import android.content.Context;
 import android.content.pm.PackageManager;
-import android.graphics.Bitmap;
 import android.graphics.Color;
-import android.graphics.ImageFormat;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.media.Image;
 import android.os.Bundle;
 import android.os.Handler;
@@ -40,11 +36,9 @@ import com.google.android.material.math.MathUtils;
 import com.google.android.material.navigation.NavigationBarView;
 import com.google.common.util.concurrent.ListenableFuture;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.Locale;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -118,7 +112,8 @@ public class MainActivity extends AppCompatActivity {
     private int frameCount = 0;
 
     // Store pixel data
-    private int[][] pixelGrid = new int[SAMPLE_WIDTH][SAMPLE_HEIGHT];
+    private final YuvGridSampler gridSampler = new YuvGridSampler(SAMPLE_WIDTH, SAMPLE_HEIGHT);
+    private final int[] pixelGrid = gridSampler.getPixels(); // Row-major, SAMPLE_WIDTH * SAMPLE_HEIGHT
     private long lastProcessedTime = 0;
 
     //Graph fields
@@ -330,6 +325,7 @@ public class MainActivity extends AppCompatActivity {
                         if (currentTime - lastProcessedTime >= SAMPLE_INTERVAL_MS && start_delay > 500L) {// && currentTime > start_Time + START_SAMPLING_DELAY) {
                         //if (start_delay > 500L) {   //Unthrottled data gathering
                             //processImage(imageProxy);
+                            samplePixelGrid(imageProxy);
                             processImageFromYPlane(imageProxy);
                             lastProcessedTime = currentTime;
                         }
@@ -400,11 +396,10 @@ public class MainActivity extends AppCompatActivity {
             torchButton.setText("Doing Data Analysis");
             doingDataSample = false;
             sample_stopTime = System.currentTimeMillis();
-            HRVMeasurementSystem.HRVMetrics results =
-                    HRVMeasurementSystem.analyzeHRV(dataPointList, 30);
+            HRVAnalysisResult results = HRVMeasurementSystem.analyze(dataPointList);
 
-            heartRateTextView.setText(results.toString());
-            exportPeakPointsToCSV(this, HRVMeasurementSystem.troughs, "ClaudeHeartPeaks.txt");
+            heartRateTextView.setText(results.getMetrics().toString());
+            exportPeakPointsToCSV(this, results.markTroughFrames(dataPointList), "ClaudeHeartPeaks.txt");
             camera.getCameraControl().enableTorch(false);   //Disable our torch
             //peaks
             //Finally we need to display our results
@@ -420,18 +415,7 @@ public class MainActivity extends AppCompatActivity {
     }
 
     public static List<Integer> processPPG(List<Double> rawPPG) {
-        List<Double> smoothed = SavitzkyGolayFilter.smooth(rawPPG, 5, 2);
-        List<Double> template = MatchedFilter.generateSimplePPGTemplate(15);
-        List<Double> matched = MatchedFilter.correlate(smoothed, template);
-
-        double mean = matched.stream().mapToDouble(Double::doubleValue).average().orElse(0);
-        double stdDev = Math.sqrt(
-                matched.stream().mapToDouble(v -> (v - mean) * (v - mean)).sum() / matched.size()
-        );
-
-        List<Integer> detectedPeaks = PeakDetector.detectPeaks(matched, mean + stdDev * 0.5, 30);
-
-        return PeakDetector.detectPeaks(matched, mean + stdDev * 0.5, 30);
+        return PeakDetector.detectPulsePeaks(rawPPG);
     }
 
     private boolean allPermissionsGranted() {
@@ -469,7 +453,7 @@ public class MainActivity extends AppCompatActivity {
      * Provides access to the pixel grid for external use
      * This can be used by other components that need to process the pixel data
      */
-    public int[][] getPixelGrid() {
+    public int[] getPixelGrid() {
         return pixelGrid;
     }
 
@@ -482,13 +466,10 @@ public class MainActivity extends AppCompatActivity {
         int redSum = 0, greenSum = 0, blueSum = 0;
         int totalPixels = SAMPLE_WIDTH * SAMPLE_HEIGHT;
 
-        for (int x = 0; x < SAMPLE_WIDTH; x++) {
-            for (int y = 0; y < SAMPLE_HEIGHT; y++) {
-                int pixel = pixelGrid[x][y];
-                redSum += Color.red(pixel);
-                greenSum += Color.green(pixel);
-                blueSum += Color.blue(pixel);
-            }
+        for (int pixel : pixelGrid) {
+            redSum += Color.red(pixel);
+            greenSum += Color.green(pixel);
+            blueSum += Color.blue(pixel);
         }
 
         // Calculate average colors
@@ -506,48 +487,25 @@ public class MainActivity extends AppCompatActivity {
 
     public List<HRVMeasurementSystem.DataPoint> dataPointList = new ArrayList<>();
 
-    private float processImageFromYPlane(ImageProxy imageProxy) {
-        @OptIn(markerClass = ExperimentalGetImage.class) Image image = imageProxy.getImage();
-        if (image == null) {
-            return 0;
-        }
+    private final PlaneReducer lumaReducer = new PlaneReducer(0f, 0f, 1f, 1f, PlaneReducer.DEFAULT_STRIDE);
+    private final PlaneReducer.Stats lumaStats = new PlaneReducer.Stats();
 
+    private float processImageFromYPlane(ImageProxy imageProxy) {
         try {
-            Image.Plane yPlane = image.getPlanes()[0]; // Y plane is always at index 0
-
-            ByteBuffer buffer = yPlane.getBuffer();
-            int width = image.getWidth();
-            int height = image.getHeight();
-            int rowStride = yPlane.getRowStride();
-
-            // Sum the Y values across a sampled region (for performance)
-            long totalY = 0;
-            int sampleCount = 0;
-
-            // Use a small grid sampling instead of every pixel to keep performance reasonable
-            int stepDivisor = 20;
-            int stepX = width / stepDivisor;
-            int stepY = height / stepDivisor;
-
-            for (int y = 0; y < height; y += stepY) {
-                for (int x = 0; x < width; x += stepX) {
-                    int index = y * rowStride + x;
-                    if (index < buffer.capacity()) {
-                        int luminance = buffer.get(index) & 0xFF; // Convert unsigned byte to int
-                        totalY += luminance;
-                        sampleCount++;
-                    }
-                }
+            PlaneReducer.Stats stats = ImageProcessing.reduceYPlane(imageProxy, lumaReducer, lumaStats);
+            if (stats == null) {
+                return 0;
             }
 
-            double averageLuminance = sampleCount > 0 ? (double) totalY / sampleCount : 0f;
+            double averageLuminance = stats.mean;
 
             updateRedColorChart((float)averageLuminance);
 
             if (doingDataSample) {
                 recordedPoints.add(averageLuminance);
 
-                HRVMeasurementSystem.DataPoint newDataPoint = new HRVMeasurementSystem.DataPoint(averageLuminance, System.currentTimeMillis());
+                HRVMeasurementSystem.DataPoint newDataPoint = HRVMeasurementSystem.DataPoint.fromSensor(
+                        averageLuminance, imageProxy.getImageInfo().getTimestamp());
                 dataPointList.add(newDataPoint);
             }
 
@@ -571,41 +529,20 @@ public class MainActivity extends AppCompatActivity {
 
 
     /**
-     * Convert ImageProxy to Bitmap for pixel processing
+     * Fill the pixel grid with ARGB values converted directly from the YUV planes
      */
-    private Bitmap imageProxyToBitmap(ImageProxy imageProxy) {
+    private void samplePixelGrid(ImageProxy imageProxy) {
         @OptIn(markerClass = ExperimentalGetImage.class) Image image = imageProxy.getImage();
-        if (image == null) return null;
+        if (image == null) return;
 
         try {
             Image.Plane[] planes = image.getPlanes();
-            ByteBuffer yBuffer = planes[0].getBuffer();
-            ByteBuffer uBuffer = planes[1].getBuffer();
-            ByteBuffer vBuffer = planes[2].getBuffer();
-
-            int ySize = yBuffer.remaining();
-            int uSize = uBuffer.remaining();
-            int vSize = vBuffer.remaining();
-
-            byte[] nv21 = new byte[ySize + uSize + vSize];
-
-            // U and V are swapped
-            yBuffer.get(nv21, 0, ySize);
-            vBuffer.get(nv21, ySize, vSize);
-            uBuffer.get(nv21, ySize + vSize, uSize);
-
-            YuvImage yuvImage = new YuvImage(nv21, ImageFormat.NV21,
-                    image.getWidth(), image.getHeight(), null);
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            yuvImage.compressToJpeg(
-                    new Rect(0, 0, image.getWidth(), image.getHeight()), 100, out);
-            byte[] imageBytes = out.toByteArray();
-
-            return Bitmap.createBitmap(
-                    android.graphics.BitmapFactory.decodeByteArray(imageBytes, 0, imageBytes.length));
+            gridSampler.sample(planes[0].getBuffer(), planes[0].getRowStride(),
+                    planes[1].getBuffer(), planes[1].getRowStride(), planes[1].getPixelStride(),
+                    planes[2].getBuffer(), planes[2].getRowStride(), planes[2].getPixelStride(),
+                    image.getWidth(), image.getHeight());
         } catch (Exception e) {
-            Log.e(TAG, "Error converting image to bitmap", e);
-            return null;
+            Log.e(TAG, "Error sampling pixel grid", e);
         }
     }
 
@@ -861,7 +798,8 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    private void exportPeakPointsToCSV(Context context, List<Integer> peakPoints, String filename) {
+    // peakFrames flags the recorded frames a trough was found at
+    private void exportPeakPointsToCSV(Context context, boolean[] peakFrames, String filename) {
         File exportDir = context.getExternalFilesDir(null); // App-specific external storage
         if (exportDir == null) {
             Log.e("CSV_EXPORT", "External storage not available.");
@@ -875,7 +813,7 @@ public class MainActivity extends AppCompatActivity {
             for (int i=0; i<recordedPoints.size(); i++) {
                 writer.write(String.format(Locale.US, "%f,%d\n",
                         recordedPoints.get(i),
-                        peakPoints.contains(i) ? 80: 76));
+                        i < peakFrames.length && peakFrames[i] ? 80: 76));
                         //peakPoints.size() > i ? peakPoints.get(i) : -1));
             }
 
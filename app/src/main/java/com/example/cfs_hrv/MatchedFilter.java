@@ -1,33 +1,237 @@
 package com.example.cfs_hrv;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Correlation of a signal with a pulse template, output[i] = sum template[j] * signal[i + j - m/2]
+ * for a template of length m, with zeros beyond the ends of the signal.
+ *
+ * Short templates are correlated directly. Longer ones go through overlap-save FFT blocks: the
+ * template spectrum is computed once per call, and since it's the spectrum of a real sequence two
+ * real blocks share each complex transform (one in the real part, one in the imaginary). Streaming
+ * does the same sum one sample at a time over a ring buffer, for live use.
+ */
 public class MatchedFilter {
+
+    // Templates at least this long use the FFT path, from the crossover in HrvAnalysisBenchmark
+    public static final int FFT_MIN_TEMPLATE = 48;
+
+    private static final Map<Integer, double[]> templateCache = new ConcurrentHashMap<>();
+
+    private static final class Scratch {
+        double[] re = new double[0];
+        double[] im = new double[0];
+        double[] templateRe = new double[0];
+        double[] templateIm = new double[0];
+
+        void ensure(int size) {
+            if (re.length < size) {
+                re = new double[size];
+                im = new double[size];
+                templateRe = new double[size];
+                templateIm = new double[size];
+            }
+        }
+    }
+
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
     public static List<Double> correlate(List<Double> signal, List<Double> template) {
-        int signalLen = signal.size();
-        int templateLen = template.size();
-        int halfTemplate = templateLen / 2;
+        int n = signal.size();
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = signal.get(i);
+        }
+        double[] t = new double[template.size()];
+        for (int j = 0; j < t.length; j++) {
+            t[j] = template.get(j);
+        }
+        double[] out = new double[n];
+        correlate(x, n, t, out);
+
+        List<Double> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            result.add(out[i]);
+        }
+        return result;
+    }
 
-        List<Double> result = new ArrayList<>(signalLen);
+    /**
+     * Correlate signal[0..n) with the whole template into output, which must be a different array.
+     * Picks the direct or FFT path by template length.
+     */
+    public static void correlate(double[] signal, int n, double[] template, double[] output) {
+        if (template.length >= FFT_MIN_TEMPLATE && n >= template.length) {
+            correlateFft(signal, n, template, output);
+        } else {
+            correlateDirect(signal, n, template, output);
+        }
+    }
 
-        for (int i = 0; i < signalLen; i++) {
+    /**
+     * O(n m): bounds are only checked in the first and last half template
+     */
+    public static void correlateDirect(double[] signal, int n, double[] template, double[] output) {
+        int m = template.length;
+        int half = m / 2;
+        int interiorEnd = n - (m - half) + 1;
+        for (int i = 0; i < n; i++) {
+            int start = i - half;
             double sum = 0;
-            for (int j = 0; j < templateLen; j++) {
-                int k = i + j - halfTemplate;
-                if (k >= 0 && k < signalLen) {
-                    sum += signal.get(k) * template.get(j);
+            if (start >= 0 && i < interiorEnd) {
+                for (int j = 0; j < m; j++) {
+                    sum += template[j] * signal[start + j];
+                }
+            } else {
+                int from = Math.max(0, -start);
+                int to = Math.min(m, n - start);
+                for (int j = from; j < to; j++) {
+                    sum += template[j] * signal[start + j];
                 }
             }
-            result.add(sum);
+            output[i] = sum;
+        }
+    }
+
+    /**
+     * Overlap-save, O(n log m). The result matches correlateDirect to rounding.
+     */
+    public static void correlateFft(double[] signal, int n, double[] template, double[] output) {
+        int m = template.length;
+        int half = m / 2;
+        FftPlan plan = FftPlan.forSize(blockSize(m));
+        int size = plan.size();
+        int step = size - m + 1;     // New outputs per block
+        Scratch s = scratch.get();
+        s.ensure(size);
+        double[] re = s.re;
+        double[] im = s.im;
+
+        // Convolving with the reversed template is correlating with the template
+        double[] hRe = s.templateRe;
+        double[] hIm = s.templateIm;
+        for (int k = 0; k < size; k++) {
+            hRe[k] = k < m ? template[m - 1 - k] : 0;
+            hIm[k] = 0;
+        }
+        plan.forward(hRe, hIm);
+
+        // Convolution index p = i + m - 1 - half holds output i. Each block loads the m - 1 samples
+        // before its first p as well, and the first m - 1 results (wrapped around) are discarded.
+        int offset = m - 1 - half;
+        for (int first = 0; first < n; first += 2 * step) {
+            int second = first + step;
+            load(signal, n, first + offset - (m - 1), size, re);
+            if (second < n) {
+                load(signal, n, second + offset - (m - 1), size, im);
+            } else {
+                for (int k = 0; k < size; k++) im[k] = 0;
+            }
+
+            plan.forward(re, im);
+            for (int k = 0; k < size; k++) {
+                double r = re[k] * hRe[k] - im[k] * hIm[k];
+                double i = re[k] * hIm[k] + im[k] * hRe[k];
+                re[k] = r;
+                im[k] = i;
+            }
+            plan.inverse(re, im);
+
+            int count = Math.min(step, n - first);
+            for (int k = 0; k < count; k++) {
+                output[first + k] = re[m - 1 + k];
+            }
+            if (second < n) {
+                count = Math.min(step, n - second);
+                for (int k = 0; k < count; k++) {
+                    output[second + k] = im[m - 1 + k];
+                }
+            }
+        }
+    }
+
+    // Four template lengths per block keeps the discarded overlap to a quarter of each transform
+    private static int blockSize(int templateLength) {
+        return Math.max(64, FftPlan.nextPowerOfTwo(4 * templateLength));
+    }
+
+    private static void load(double[] signal, int n, int from, int size, double[] block) {
+        for (int k = 0; k < size; k++) {
+            int index = from + k;
+            block[k] = index >= 0 && index < n ? signal[index] : 0;
+        }
+    }
+
+    /**
+     * Live correlation, one sample in and one result out. Each result is for the sample getDelay()
+     * samples back, and equals the batch correlation of everything added so far.
+     */
+    public static final class Streaming {
+        private final double[] template;
+        private final double[] ring;   // Each sample written twice, so the last m are always contiguous
+        private int position;
+
+        public Streaming(double[] template) {
+            this.template = template.clone();
+            ring = new double[2 * template.length];
+        }
+
+        public int getDelay() {
+            return template.length - 1 - template.length / 2;
+        }
+
+        public double add(double sample) {
+            int m = template.length;
+            ring[position] = sample;
+            ring[position + m] = sample;
+            position = position + 1 == m ? 0 : position + 1;
+
+            // Oldest sample at ring[position], newest at ring[position + m - 1]
+            double sum = 0;
+            for (int j = 0; j < m; j++) {
+                sum += template[j] * ring[position + j];
+            }
+            return sum;
+        }
+
+        public void reset() {
+            position = 0;
+            for (int i = 0; i < ring.length; i++) ring[i] = 0;
         }
-        return result;
     }
 
     public static List<Double> generateSimplePPGTemplate(int length) {
+        double[] values = ppgTemplate(length);
         List<Double> template = new ArrayList<>(length);
+        for (double value : values) {
+            template.add(value);
+        }
+        return template;
+    }
+
+    /**
+     * Gaussian-shaped pulse template, built once per length. Shared, so don't modify it.
+     */
+    public static double[] ppgTemplate(int length) {
+        double[] template = templateCache.get(length);
+        if (template == null) {
+            template = templateCache.computeIfAbsent(length, MatchedFilter::buildPPGTemplate);
+        }
+        return template;
+    }
+
+    private static double[] buildPPGTemplate(int length) {
+        double[] template = new double[length];
         for (int i = 0; i < length; i++) {
             double x = (i - length / 2.0) / (length / 2.0);
-            template.add(Math.exp(-x * x * 5)); // Gaussian-shaped pulse
+            template[i] = Math.exp(-x * x * 5); // Gaussian-shaped pulse
         }
         return template;
     }
@@ -1,16 +1,59 @@
 package com.example.cfs_hrv;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class PeakDetector {
+    // Matched filter template length, and the least samples between pulse peaks
+    private static final int PULSE_TEMPLATE_LENGTH = 15;
+    private static final int PULSE_MIN_DISTANCE = 30;
+
+    /**
+     * Pulse peaks in a raw PPG trace: Savitzky-Golay smoothing (window 5, order 2), correlation with
+     * the Gaussian pulse template, then peaks above half a standard deviation over the mean
+     */
+    public static List<Integer> detectPulsePeaks(List<Double> rawPPG) {
+        int n = rawPPG.size();
+        double[] raw = new double[n];
+        for (int i = 0; i < n; i++) {
+            raw[i] = rawPPG.get(i);
+        }
+        return detectPulsePeaks(raw, n);
+    }
+
+    public static List<Integer> detectPulsePeaks(double[] raw, int n) {
+        double[] smoothed = new double[n];
+        SavitzkyGolayFilter.smooth(raw, n, smoothed, 5, 2);
+        double[] matched = new double[n];
+        MatchedFilter.correlate(smoothed, n, MatchedFilter.ppgTemplate(PULSE_TEMPLATE_LENGTH), matched);
+
+        double mean = Arrays.stream(matched, 0, n).average().orElse(0);
+        double stdDev = Math.sqrt(
+                Arrays.stream(matched, 0, n).map(v -> (v - mean) * (v - mean)).sum() / n
+        );
+
+        return detectPeaks(matched, n, mean + stdDev * 0.5, PULSE_MIN_DISTANCE);
+    }
+
     public static List<Integer> detectPeaks(List<Double> data, double threshold, int minDistance) {
+        double[] values = new double[data.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = data.get(i);
+        }
+        return detectPeaks(values, values.length, threshold, minDistance);
+    }
+
+    /**
+     * Local maxima of data[0..n) above threshold, at least minDistance samples apart
+     */
+    public static List<Integer> detectPeaks(double[] data, int n, double threshold, int minDistance) {
         List<Integer> peaks = new ArrayList<>();
         int lastPeak = -minDistance;
 
-        for (int i = 1; i < data.size() - 1; i++) {
-            double prev = data.get(i - 1);
-            double curr = data.get(i);
-            double next = data.get(i + 1);
+        for (int i = 1; i < n - 1; i++) {
+            double prev = data[i - 1];
+            double curr = data[i];
+            double next = data[i + 1];
 
             if (curr > threshold && curr > prev && curr > next) {
                 if (i - lastPeak >= minDistance) {
@@ -0,0 +1,153 @@
+package com.example.cfs_hrv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Working state of one HRVPipeline run, passed from stage to stage. Troughs and intervals are kept
+ * in growable primitive arrays; the other fields are public so stages can read and replace them.
+ */
+public class PipelineData {
+
+    public final double samplingRate;
+    public SamplingStats sampling;
+
+    // Signal stages: the segment being processed and a buffer to ping-pong with, reused across segments
+    public SignalBuffer signal;
+    public SignalBuffer scratch;
+
+    // Index of the segment's first sample in the recording, segments laid end to end
+    public int segmentOffset;
+
+    private int[] troughs = new int[64];
+    private double[] troughTimestamps = new double[64];
+    private int troughCount;
+    private long[] intervals = new long[64];
+    private int intervalCount;
+
+    // Detection scratch, reused across segments
+    private int[] segmentTroughs = new int[0];
+    private double[] beatTimes = new double[0];
+
+    // Interval stages
+    private RRIntervalCleaner.Reason[] reasons;
+    private long[] cleanIntervals = new long[0];
+    private int cleanCount = -1;    // -1 until computed for the current verdicts
+    public HRVMeasurementSystem.HRVMetrics metrics = new HRVMeasurementSystem.HRVMetrics();
+
+    public PipelineData(double samplingRate) {
+        this.samplingRate = samplingRate;
+    }
+
+    /**
+     * A trough at an index into the current segment
+     */
+    public void addTrough(int segmentIndex) {
+        if (troughCount == troughs.length) {
+            troughs = Arrays.copyOf(troughs, troughCount * 2);
+            troughTimestamps = Arrays.copyOf(troughTimestamps, troughCount * 2);
+        }
+        troughTimestamps[troughCount] = signal.getTimestamp(segmentIndex);
+        troughs[troughCount++] = segmentOffset + segmentIndex;
+    }
+
+    public void addInterval(long rrMs) {
+        if (intervalCount == intervals.length) {
+            intervals = Arrays.copyOf(intervals, intervalCount * 2);
+        }
+        intervals[intervalCount++] = rrMs;
+        reasons = null;
+        cleanCount = -1;
+    }
+
+    public int getTroughCount() { return troughCount; }
+    public int getTrough(int index) { return troughs[index]; }
+    public double getTroughTimestamp(int index) { return troughTimestamps[index]; }
+    public int getIntervalCount() { return intervalCount; }
+    public long getInterval(int index) { return intervals[index]; }
+
+    /**
+     * The backing interval array, valid up to getIntervalCount()
+     */
+    public long[] intervals() { return intervals; }
+
+    /**
+     * Scratch for a detector's trough indices within one segment, at least capacity long
+     */
+    public int[] segmentTroughs(int capacity) {
+        if (segmentTroughs.length < capacity) segmentTroughs = new int[capacity];
+        return segmentTroughs;
+    }
+
+    /**
+     * Scratch for beat times within one segment, at least capacity long
+     */
+    public double[] beatTimes(int capacity) {
+        if (beatTimes.length < capacity) beatTimes = new double[capacity];
+        return beatTimes;
+    }
+
+    /**
+     * Cleaning verdicts, one per interval. Until a cleaning stage sets them every interval counts as
+     * accepted.
+     */
+    public RRIntervalCleaner.Reason[] getReasons() {
+        if (reasons == null) {
+            reasons = new RRIntervalCleaner.Reason[intervalCount];
+            Arrays.fill(reasons, RRIntervalCleaner.Reason.ACCEPTED);
+        }
+        return reasons;
+    }
+
+    public void setReasons(RRIntervalCleaner.Reason[] reasons) {
+        if (reasons.length != intervalCount) {
+            throw new IllegalArgumentException("One cleaning verdict per RR interval");
+        }
+        this.reasons = reasons;
+        cleanCount = -1;
+    }
+
+    /**
+     * The accepted intervals, what the metric stages measure. Valid up to getCleanIntervalCount().
+     */
+    public long[] cleanIntervals() {
+        if (cleanCount < 0) {
+            RRIntervalCleaner.Reason[] verdicts = getReasons();
+            if (cleanIntervals.length < intervalCount) cleanIntervals = new long[intervalCount];
+            cleanCount = 0;
+            for (int i = 0; i < intervalCount; i++) {
+                if (verdicts[i] == RRIntervalCleaner.Reason.ACCEPTED) {
+                    cleanIntervals[cleanCount++] = intervals[i];
+                }
+            }
+        }
+        return cleanIntervals;
+    }
+
+    public int getCleanIntervalCount() {
+        cleanIntervals();
+        return cleanCount;
+    }
+
+    /**
+     * The accepted intervals as a list, a copy
+     */
+    public List<Long> getCleanIntervals() {
+        long[] clean = cleanIntervals();
+        List<Long> list = new ArrayList<>(cleanCount);
+        for (int i = 0; i < cleanCount; i++) list.add(clean[i]);
+        return list;
+    }
+
+    HRVAnalysisResult toResult() {
+        List<Integer> troughList = new ArrayList<>(troughCount);
+        for (int i = 0; i < troughCount; i++) troughList.add(troughs[i]);
+        List<Double> troughTimeList = new ArrayList<>(troughCount);
+        for (int i = 0; i < troughCount; i++) troughTimeList.add(troughTimestamps[i]);
+        List<Long> intervalList = new ArrayList<>(intervalCount);
+        for (int i = 0; i < intervalCount; i++) intervalList.add(intervals[i]);
+        metrics.sampling = sampling;
+        return new HRVAnalysisResult(metrics, troughList, troughTimeList, intervalList, getReasons());
+    }
+}
@@ -0,0 +1,19 @@
+package com.example.cfs_hrv;
+
+/**
+ * One step of an HRVPipeline. Signal stages run once per uniformly sampled segment and work on
+ * PipelineData.signal (in place, or through PipelineData.scratch); interval stages run once per
+ * recording on the collected RR intervals.
+ *
+ * A pipeline can be run from several threads at once, so a stage must keep its per-run state in the
+ * PipelineData it is given, not in fields.
+ */
+public interface PipelineStage {
+
+    /**
+     * Short name for timing reports and for HRVPipeline.Builder.replace
+     */
+    String getName();
+
+    void process(PipelineData data);
+}
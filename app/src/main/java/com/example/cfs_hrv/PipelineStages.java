@@ -0,0 +1,165 @@
+package com.example.cfs_hrv;
+
+/**
+ * The built-in pipeline stages. Each factory returns a stateless stage that can be shared between
+ * pipelines and threads.
+ */
+public class PipelineStages {
+
+    // Segments shorter than this are passed through the filters untouched
+    private static final int MIN_FILTER_SAMPLES = 10;
+
+    private abstract static class Named implements PipelineStage {
+        private final String name;
+
+        Named(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Centred moving average, named "smooth"
+     */
+    public static PipelineStage movingAverage(final int windowSize) {
+        return new Named("smooth") {
+            @Override
+            public void process(PipelineData data) {
+                if (data.signal.size() < MIN_FILTER_SAMPLES) return;
+                if (data.scratch == null) {
+                    data.scratch = new SignalBuffer(data.signal.size());
+                }
+                HRVMeasurementSystem.applyMovingAverage(data.signal, data.scratch, windowSize);
+            }
+        };
+    }
+
+    /**
+     * Savitzky-Golay smoothing, also named "smooth" so it can replace the moving average
+     */
+    public static PipelineStage savitzkyGolay(final int windowSize, final int polynomialOrder) {
+        return new Named("smooth") {
+            @Override
+            public void process(PipelineData data) {
+                if (data.signal.size() < MIN_FILTER_SAMPLES) return;
+                if (data.scratch == null) {
+                    data.scratch = new SignalBuffer(data.signal.size());
+                }
+                data.scratch.resizeLike(data.signal);
+                SavitzkyGolayFilter.smooth(data.signal.values(), data.signal.size(), data.scratch.values(),
+                        windowSize, polynomialOrder);
+                data.signal.swap(data.scratch);
+            }
+        };
+    }
+
+    /**
+     * Zero-phase Butterworth band-pass, named "bandpass"
+     */
+    public static PipelineStage bandpass(final double lowHz, final double highHz) {
+        return new Named("bandpass") {
+            @Override
+            public void process(PipelineData data) {
+                if (data.signal.size() < MIN_FILTER_SAMPLES) return;
+                HRVMeasurementSystem.applyBandpassFilter(data.signal, data.samplingRate, lowHz, highHz);
+            }
+        };
+    }
+
+    /**
+     * Zero mean, unit variance, named "normalize"
+     */
+    public static PipelineStage normalize() {
+        return new Named("normalize") {
+            @Override
+            public void process(PipelineData data) {
+                if (data.signal.size() < MIN_FILTER_SAMPLES) return;
+                HRVMeasurementSystem.normalizeSignal(data.signal);
+            }
+        };
+    }
+
+    /**
+     * Adaptive-threshold troughs, each beat timed at the steepest point of its fall, named "detect".
+     * Adds the segment's troughs and the intervals between its beats.
+     */
+    public static PipelineStage adaptiveTroughs() {
+        return new Named("detect") {
+            @Override
+            public void process(PipelineData data) {
+                SignalBuffer signal = data.signal;
+                int[] troughs = data.segmentTroughs(HRVMeasurementSystem.maxTroughs(signal.size(), data.samplingRate));
+                int count = HRVMeasurementSystem.findAdaptiveTroughs(signal.values(), signal.size(),
+                        data.samplingRate, troughs);
+                double[] beatTimes = data.beatTimes(count);
+                HRVMeasurementSystem.beatTimes(signal, troughs, count, data.samplingRate, beatTimes);
+                for (int i = 0; i < count; i++) {
+                    data.addTrough(troughs[i]);
+                    if (i > 0) data.addInterval(Math.round(beatTimes[i] - beatTimes[i - 1]));
+                }
+            }
+        };
+    }
+
+    /**
+     * RRIntervalCleaner verdicts, named "clean"
+     */
+    public static PipelineStage cleanIntervals() {
+        return new Named("clean") {
+            @Override
+            public void process(PipelineData data) {
+                data.setReasons(RRIntervalCleaner.clean(data.intervals(), data.getIntervalCount()));
+            }
+        };
+    }
+
+    /**
+     * Mean RR, heart rate, SDNN, RMSSD and pNN50 of the clean intervals, named "time-domain".
+     * Starts a fresh HRVMetrics, so it comes before the other metric stages.
+     */
+    public static PipelineStage timeDomainMetrics() {
+        return new Named("time-domain") {
+            @Override
+            public void process(PipelineData data) {
+                data.metrics = HRVMeasurementSystem.calculateHRVMetrics(data.cleanIntervals(),
+                        data.getCleanIntervalCount());
+            }
+        };
+    }
+
+    /**
+     * Lomb-Scargle VLF/LF/HF power, named "spectral"
+     */
+    public static PipelineStage spectralMetrics() {
+        return new Named("spectral") {
+            @Override
+            public void process(PipelineData data) {
+                HRVSpectrum.Bands bands = HRVSpectrum.lombScargle(data.cleanIntervals(), data.getCleanIntervalCount());
+                data.metrics.vlfPower = bands.vlfPower;
+                data.metrics.lfPower = bands.lfPower;
+                data.metrics.hfPower = bands.hfPower;
+                data.metrics.lfHfRatio = bands.lfHfRatio;
+            }
+        };
+    }
+
+    /**
+     * Poincare, sample entropy and DFA alpha1, named "nonlinear"
+     */
+    public static PipelineStage nonlinearMetrics() {
+        return new Named("nonlinear") {
+            @Override
+            public void process(PipelineData data) {
+                HRVNonlinear.Metrics nonlinear = HRVNonlinear.compute(data.cleanIntervals(), data.getCleanIntervalCount());
+                data.metrics.sd1 = nonlinear.sd1;
+                data.metrics.sd2 = nonlinear.sd2;
+                data.metrics.sampleEntropy = nonlinear.sampleEntropy;
+                data.metrics.dfaAlpha1 = nonlinear.dfaAlpha1;
+            }
+        };
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.cfs_hrv;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reduces a rectangular region of an 8-bit image plane (Y, U or V) to its mean, min, max and
+ * variance in a single pass. Whole rows are bulk-copied into a reused scratch array so that the
+ * per-pixel loop runs over a plain byte[] and nothing is allocated per frame.
+ *
+ * Instances keep scratch state and are not thread safe; use one per analyzer thread.
+ */
+public class PlaneReducer {
+
+    // Pixel values at or beyond these are treated as clipped (black crush or sensor saturation)
+    public static final int CLIP_LOW = 5;
+    public static final int CLIP_HIGH = 250;
+
+    public static class Stats {
+        public double mean;
+        public double variance;
+        public int min;
+        public int max;
+        public int count;       // Number of pixels that went into the reduction
+        public int clipped;     // Pixels at or below CLIP_LOW or at or above CLIP_HIGH
+
+        public long sum;
+        public long sumSquares;
+
+        void reset() {
+            mean = 0;
+            variance = 0;
+            min = 0;
+            max = 0;
+            count = 0;
+            clipped = 0;
+            sum = 0;
+            sumSquares = 0;
+        }
+
+        void finish() {
+            if (count > 0) {
+                mean = (double) sum / count;
+                variance = Math.max(0, (double) sumSquares / count - mean * mean);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("mean: %.2f, min: %d, max: %d, var: %.2f, n: %d",
+                    mean, min, max, variance, count);
+        }
+    }
+
+    // Every second pixel on every second row of the full frame. Dense enough that finger placement
+    // noise averages out, and the bulk row reduction keeps it well inside the frame budget
+    public static final int DEFAULT_STRIDE = 2;
+
+    // Region of interest as fractions of the plane, so the same reducer works for any resolution
+    // (and for the half-size chroma planes)
+    private float roiLeft = 0f;
+    private float roiTop = 0f;
+    private float roiRight = 1f;
+    private float roiBottom = 1f;
+
+    private int stride = 1; // 1 = every pixel, 2 = every second pixel on every second row, etc.
+
+    private byte[] rowScratch = new byte[0];
+    private final int[] histogram = new int[256];
+
+    public PlaneReducer() {
+    }
+
+    public PlaneReducer(float left, float top, float right, float bottom, int stride) {
+        setRegion(left, top, right, bottom);
+        setStride(stride);
+    }
+
+    public void setRegion(float left, float top, float right, float bottom) {
+        if (left < 0 || top < 0 || right > 1 || bottom > 1 || left >= right || top >= bottom) {
+            throw new IllegalArgumentException("Region must be a non-empty rectangle inside [0,1]");
+        }
+        roiLeft = left;
+        roiTop = top;
+        roiRight = right;
+        roiBottom = bottom;
+    }
+
+    public void setStride(int stride) {
+        if (stride < 1) {
+            throw new IllegalArgumentException("Stride must be >= 1");
+        }
+        this.stride = stride;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Reduce the configured region of a plane of the given size
+     */
+    public Stats reduce(ByteBuffer buffer, int width, int height, int rowStride, int pixelStride, Stats out) {
+        int x0 = (int) (roiLeft * width);
+        int y0 = (int) (roiTop * height);
+        int x1 = Math.min(width, (int) Math.ceil(roiRight * width));
+        int y1 = Math.min(height, (int) Math.ceil(roiBottom * height));
+        return reduceRect(buffer, rowStride, pixelStride, x0, y0, x1 - x0, y1 - y0, stride, out);
+    }
+
+    private static int clippedCount(int[] histogram) {
+        int clipped = 0;
+        for (int v = 0; v <= CLIP_LOW; v++) clipped += histogram[v];
+        for (int v = CLIP_HIGH; v < 256; v++) clipped += histogram[v];
+        return clipped;
+    }
+
+    /**
+     * Reduce an explicit pixel rectangle of a plane at the given sampling stride
+     */
+    public Stats reduceRect(ByteBuffer buffer, int rowStride, int pixelStride,
+                            int x, int y, int w, int h, int stride, Stats out) {
+        out.reset();
+        if (w <= 0 || h <= 0) {
+            return out;
+        }
+
+        // Bytes spanned by one row of the rectangle, the last pixel doesn't need its trailing stride
+        int span = (w - 1) * pixelStride + 1;
+        if (rowScratch.length < span) {
+            rowScratch = new byte[span];
+        }
+        byte[] row = rowScratch;
+        int[] histogram = this.histogram;
+        Arrays.fill(histogram, 0);
+        int step = stride * pixelStride;
+        int limit = buffer.limit();
+        int savedPosition = buffer.position();
+
+        try {
+            for (int r = y; r < y + h; r += stride) {
+                int rowStart = r * rowStride + x * pixelStride;
+                // The last row of a plane is usually shorter than rowStride
+                int length = Math.min(span, limit - rowStart);
+                if (length <= 0) {
+                    break;
+                }
+                buffer.position(rowStart);
+                buffer.get(row, 0, length);
+
+                // Only bin the pixel here, the moments come out of the 256 bins afterwards
+                for (int i = 0; i < length; i += step) {
+                    histogram[row[i] & 0xFF]++;
+                }
+            }
+        } finally {
+            buffer.position(savedPosition);
+        }
+
+        long sum = 0;
+        long sumSquares = 0;
+        int count = 0;
+        int min = -1;
+        int max = 0;
+        for (int v = 0; v < 256; v++) {
+            int n = histogram[v];
+            if (n != 0) {
+                if (min < 0) min = v;
+                max = v;
+                count += n;
+                sum += (long) n * v;
+                sumSquares += (long) n * v * v;
+            }
+        }
+
+        out.sum = sum;
+        out.sumSquares = sumSquares;
+        out.count = count;
+        out.clipped = clippedCount(histogram);
+        out.min = Math.max(min, 0);
+        out.max = max;
+        out.finish();
+        return out;
+    }
+}
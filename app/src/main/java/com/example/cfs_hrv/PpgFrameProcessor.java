@@ -0,0 +1,119 @@
+package com.example.cfs_hrv;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns frames from any FrameSource into PPG samples: the tile tracker picks the perfused part of
+ * the luma plane, chroma (when the source has it) adds the red and green channels, and every
+ * sample gets a signal quality reading. While recording, samples are kept for HRV analysis.
+ *
+ * onFrame runs on the source's thread, the recording methods may be called from any thread.
+ */
+public class PpgFrameProcessor implements FrameSource.Listener {
+
+    /**
+     * The quality reading is reused for the next frame, copy() it to keep it
+     */
+    public interface SampleListener {
+        void onSample(HRVMeasurementSystem.DataPoint point, SignalQualityIndex.Reading quality);
+    }
+
+    private final TileRoiTracker roiTracker;
+    private final SignalQualityIndex signalQualityIndex;
+    private final YuvChannelReducer channelReducer = new YuvChannelReducer(
+            new PlaneReducer(0f, 0f, 1f, 1f, PlaneReducer.DEFAULT_STRIDE));
+    private final ChannelSample channelSample = new ChannelSample();
+    private final SignalQualityIndex.Reading quality = new SignalQualityIndex.Reading();
+
+    private SampleListener sampleListener;
+
+    private final List<HRVMeasurementSystem.DataPoint> recording = new ArrayList<>();
+    private boolean recordingActive = false;
+    private TileSumRecorder rawRecorder;
+    private int recordedFrames = 0;
+    private int poorQualityFrames = 0;
+
+    public PpgFrameProcessor(double frameRate) {
+        this(TileRoiTracker.createDefault(frameRate), new SignalQualityIndex(frameRate));
+    }
+
+    public PpgFrameProcessor(TileRoiTracker roiTracker, SignalQualityIndex signalQualityIndex) {
+        this.roiTracker = roiTracker;
+        this.signalQualityIndex = signalQualityIndex;
+    }
+
+    public void setSampleListener(SampleListener listener) {
+        this.sampleListener = listener;
+    }
+
+    @Override
+    public void onFrame(FrameSource.Frame frame) {
+        double luma = roiTracker.process(frame.yBuffer, frame.width, frame.height, frame.yRowStride);
+
+        HRVMeasurementSystem.DataPoint point;
+        if (frame.hasChroma()) {
+            channelReducer.reduceChroma(luma,
+                    frame.uBuffer, frame.uRowStride, frame.uPixelStride,
+                    frame.vBuffer, frame.vRowStride, frame.vPixelStride,
+                    frame.width, frame.height, channelSample);
+            point = HRVMeasurementSystem.DataPoint.fromSensor(channelSample, frame.timestampNanos);
+        } else {
+            point = HRVMeasurementSystem.DataPoint.fromSensor(luma, frame.timestampNanos);
+        }
+
+        signalQualityIndex.update(luma, roiTracker.getClippedFraction(), roiTracker.getTileSpread(), quality);
+
+        synchronized (this) {
+            if (recordingActive) {
+                recording.add(point);
+                if (rawRecorder != null) {
+                    rawRecorder.append(point, roiTracker);
+                }
+                recordedFrames++;
+                if (!quality.isGood()) {
+                    poorQualityFrames++;
+                }
+            }
+        }
+
+        SampleListener listener = sampleListener;
+        if (listener != null) {
+            listener.onSample(point, quality);
+        }
+    }
+
+    /**
+     * Start keeping samples, dropping anything from a previous recording
+     */
+    public synchronized void startRecording() {
+        startRecording(null);
+    }
+
+    /**
+     * Start keeping samples and also write the raw tile sums to the given recorder. The recorder
+     * is detached again by stopRecording(), after which the caller closes it.
+     */
+    public synchronized void startRecording(TileSumRecorder recorder) {
+        rawRecorder = recorder;
+        recording.clear();
+        recordedFrames = 0;
+        poorQualityFrames = 0;
+        recordingActive = true;
+    }
+
+    /**
+     * Stop keeping samples and return what was recorded
+     */
+    public synchronized List<HRVMeasurementSystem.DataPoint> stopRecording() {
+        recordingActive = false;
+        rawRecorder = null;
+        return new ArrayList<>(recording);
+    }
+
+    public synchronized boolean isRecording() { return recordingActive; }
+    public synchronized int getRecordedFrames() { return recordedFrames; }
+    public synchronized int getPoorQualityFrames() { return poorQualityFrames; }
+
+    public TileRoiTracker getRoiTracker() { return roiTracker; }
+}
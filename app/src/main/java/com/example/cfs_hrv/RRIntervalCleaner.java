@@ -0,0 +1,171 @@
+package com.example.cfs_hrv;
+
+/**
+ * Artefact rejection for a series of RR intervals, one pass over a primitive array. Each interval is
+ * checked in three steps:
+ *
+ * 1. Physiological range, 300-2000 ms (30-200 BPM).
+ * 2. Hampel filter: more than HAMPEL_K robust standard deviations (1.4826 * MAD) from the median of
+ *    the surrounding WINDOW beats. The median and MAD come from counts over the possible interval
+ *    values kept in a Fenwick tree, so sliding the window and both order statistics are O(log range)
+ *    per beat rather than a sort.
+ * 3. Rhythm tracker: an exponentially weighted expected RR, fed only by accepted beats; an interval
+ *    that jumps more than TRACKER_GATE away from it is rejected. If several in a row disagree with
+ *    the tracker but not with the median, the rhythm has really changed and the tracker re-seeds.
+ *
+ * The result says why each interval was rejected, for the UI and for tuning.
+ */
+public class RRIntervalCleaner {
+
+    public enum Reason {
+        ACCEPTED,
+        OUT_OF_RANGE,     // Outside 300-2000 ms
+        MEDIAN_OUTLIER,   // Far from the local median, typically a missed or extra beat
+        RHYTHM_JUMP       // Plausible locally but a sudden jump from the tracked heart rate
+    }
+
+    public static final long MIN_RR_MS = 300;
+    public static final long MAX_RR_MS = 2000;
+
+    private static final int WINDOW = 15;               // Beats, centred on the one being checked
+    private static final double HAMPEL_K = 3.0;
+    private static final double MAD_TO_SIGMA = 1.4826;  // MAD of a normal distribution to its sigma
+    private static final double MIN_SPREAD = 0.03;      // Of the median, so a very steady rhythm isn't all outliers
+
+    private static final double TRACKER_ALPHA = 0.15;
+    private static final double TRACKER_GATE = 0.3;
+    static final int RESEED_AFTER = 3;
+
+    /**
+     * Classify rr[0..n)
+     */
+    public static Reason[] clean(long[] rr, int n) {
+        Reason[] reasons = new Reason[n];
+        WindowCounts window = new WindowCounts();
+        int half = WINDOW / 2;
+
+        // Prime the window with the beats ahead of the first one
+        for (int j = 0; j < Math.min(half, n); j++) {
+            window.addIfInRange(rr[j]);
+        }
+
+        double expected = -1;
+        int jumpsInARow = 0;
+        for (int i = 0; i < n; i++) {
+            // Window is [i - half, i + half]
+            if (i + half < n) window.addIfInRange(rr[i + half]);
+            if (i - half - 1 >= 0) window.removeIfInRange(rr[i - half - 1]);
+
+            long value = rr[i];
+            if (value < MIN_RR_MS || value > MAX_RR_MS) {
+                reasons[i] = Reason.OUT_OF_RANGE;
+                continue;
+            }
+
+            double median = window.median();
+            double spread = Math.max(MAD_TO_SIGMA * window.medianAbsoluteDeviation(median), MIN_SPREAD * median);
+            if (Math.abs(value - median) > HAMPEL_K * spread) {
+                reasons[i] = Reason.MEDIAN_OUTLIER;
+                continue;
+            }
+
+            if (expected < 0) {
+                expected = median;
+            }
+            if (Math.abs(value - expected) > TRACKER_GATE * expected) {
+                reasons[i] = Reason.RHYTHM_JUMP;
+                if (++jumpsInARow >= RESEED_AFTER) {
+                    expected = median;
+                    jumpsInARow = 0;
+                }
+                continue;
+            }
+
+            reasons[i] = Reason.ACCEPTED;
+            expected += TRACKER_ALPHA * (value - expected);
+            jumpsInARow = 0;
+        }
+        return reasons;
+    }
+
+    /**
+     * Counts of the in-range interval values currently in the window, as a Fenwick tree indexed by
+     * value - MIN_RR_MS. k-th smallest is a binary descent of the tree, a count over a value range
+     * two prefix sums.
+     */
+    private static final class WindowCounts {
+        private final int size = (int) (MAX_RR_MS - MIN_RR_MS + 1);
+        private final int[] tree = new int[size + 1];
+        private final int topBit = Integer.highestOneBit(size);
+        private int count;
+
+        void addIfInRange(long value) {
+            if (value >= MIN_RR_MS && value <= MAX_RR_MS) {
+                update((int) (value - MIN_RR_MS) + 1, 1);
+                count++;
+            }
+        }
+
+        void removeIfInRange(long value) {
+            if (value >= MIN_RR_MS && value <= MAX_RR_MS) {
+                update((int) (value - MIN_RR_MS) + 1, -1);
+                count--;
+            }
+        }
+
+        private void update(int position, int delta) {
+            for (int p = position; p <= size; p += p & -p) {
+                tree[p] += delta;
+            }
+        }
+
+        // Number of values at positions 1..position
+        private int prefix(int position) {
+            int sum = 0;
+            for (int p = Math.min(position, size); p > 0; p -= p & -p) {
+                sum += tree[p];
+            }
+            return sum;
+        }
+
+        // The k-th smallest value (1-based)
+        private long kth(int k) {
+            int position = 0;
+            for (int bit = topBit; bit > 0; bit >>= 1) {
+                int next = position + bit;
+                if (next <= size && tree[next] < k) {
+                    position = next;
+                    k -= tree[next];
+                }
+            }
+            return position + MIN_RR_MS;
+        }
+
+        double median() {
+            return (kth((count + 1) / 2) + kth(count / 2 + 1)) / 2.0;
+        }
+
+        // Smallest d with at least half the values within [median - d, median + d], whole ms
+        double medianAbsoluteDeviation(double median) {
+            int needed = (count + 1) / 2;
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int d = (low + high) >>> 1;
+                if (countWithin(median, d) >= needed) {
+                    high = d;
+                } else {
+                    low = d + 1;
+                }
+            }
+            return low;
+        }
+
+        private int countWithin(double median, int d) {
+            int from = (int) Math.ceil(median - d - MIN_RR_MS) + 1;
+            int to = (int) Math.floor(median + d - MIN_RR_MS) + 1;
+            if (to < 1 || from > size) return 0;
+            return prefix(to) - prefix(Math.max(1, from) - 1);
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.example.cfs_hrv;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replays recorded luma planes from a file as a FrameSource, either as fast as possible (for
+ * throughput numbers and regression runs) or paced by the recorded timestamps.
+ *
+ * File layout, big-endian: int magic, int version, int width, int height, then one record per
+ * frame of long sensor timestamp (ns) followed by width * height luma bytes (rowStride == width).
+ * Writer produces that layout.
+ *
+ * start() runs on the calling thread and only returns after the last frame (or stop()).
+ */
+public class ReplayFrameSource implements FrameSource {
+
+    static final int MAGIC = 0x50504759; // "PPGY"
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+
+    public enum Pace { AS_FAST_AS_POSSIBLE, REAL_TIME }
+
+    private final File file;
+    private final Pace pace;
+    private volatile boolean stopped;
+    private int framesDelivered;
+
+    public ReplayFrameSource(File file, Pace pace) {
+        this.file = file;
+        this.pace = pace;
+    }
+
+    @Override
+    public void start(Listener listener) {
+        stopped = false;
+        framesDelivered = 0;
+        try (FileInputStream input = new FileInputStream(file);
+             FileChannel channel = input.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a luma recording: " + file);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+
+            // One record buffer for the whole replay, the frame's plane is a view into it
+            ByteBuffer record = ByteBuffer.allocateDirect(8 + width * height);
+            record.position(8);
+            ByteBuffer plane = record.slice();
+            record.clear();
+
+            Frame frame = new Frame();
+            frame.width = width;
+            frame.height = height;
+            frame.yRowStride = width;
+            frame.yBuffer = plane;
+
+            long firstTimestamp = -1;
+            long replayStart = System.nanoTime();
+            while (!stopped) {
+                record.clear();
+                if (!readFully(channel, record)) {
+                    break;
+                }
+                long timestamp = record.getLong(0);
+                plane.clear();
+
+                if (pace == Pace.REAL_TIME) {
+                    if (firstTimestamp < 0) firstTimestamp = timestamp;
+                    long due = replayStart + (timestamp - firstTimestamp);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                    }
+                }
+
+                frame.timestampNanos = timestamp;
+                listener.onFrame(frame);
+                framesDelivered++;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Error replaying " + file, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+    public int getFramesDelivered() {
+        return framesDelivered;
+    }
+
+    // Fill the buffer, returns false at a clean end of file
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (buffer.position() == 0) return false;
+                throw new IOException("Truncated recording");
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes luma planes in the layout ReplayFrameSource reads
+     */
+    public static class Writer implements Closeable {
+        private final FileOutputStream output;
+        private final FileChannel channel;
+        private final int width;
+        private final int height;
+        private final ByteBuffer record;
+        private final byte[] row;
+
+        public Writer(File file, int width, int height) throws IOException {
+            this.output = new FileOutputStream(file);
+            this.channel = output.getChannel();
+            this.width = width;
+            this.height = height;
+            this.record = ByteBuffer.allocateDirect(8 + width * height);
+            this.row = new byte[width];
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+            header.flip();
+            writeFully(header);
+        }
+
+        /**
+         * Append one frame, copying the visible part of each row of the plane
+         */
+        public void write(long timestampNanos, ByteBuffer yBuffer, int rowStride) throws IOException {
+            record.clear();
+            record.putLong(timestampNanos);
+            int savedPosition = yBuffer.position();
+            try {
+                for (int y = 0; y < height; y++) {
+                    yBuffer.position(y * rowStride);
+                    yBuffer.get(row, 0, width);
+                    record.put(row, 0, width);
+                }
+            } finally {
+                yBuffer.position(savedPosition);
+            }
+            record.flip();
+            writeFully(record);
+        }
+
+        public void write(Frame frame) throws IOException {
+            write(frame.timestampNanos, frame.yBuffer, frame.yRowStride);
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.example.cfs_hrv;
+
+/**
+ * Running RMSSD with an approximate 95% confidence interval, updated in O(1) per successive
+ * difference. RMSSD is the square root of the mean of the squared differences, so the interval comes
+ * from the running variance of the squared differences (Welford) and the delta method:
+ * se(RMSSD) = se(mean) / (2 RMSSD). Neighbouring squared differences share a beat and are correlated,
+ * so a positive lag-1 autocovariance widens the interval; a negative one is ignored to stay
+ * conservative.
+ *
+ * Used to end a measurement once the estimate has settled rather than after a fixed time.
+ */
+public class RmssdConvergence {
+
+    public static final double Z_95 = 1.96;
+
+    // Fewer differences than this never count as converged, however tight the interval looks
+    public static final int MIN_DIFFERENCES = 30;
+
+    private int count;
+    private double mean;        // Of the squared differences
+    private double m2;
+    private double lagProductSum;
+    private double previousSquare = Double.NaN;
+
+    public void add(double successiveDifference) {
+        double square = successiveDifference * successiveDifference;
+        count++;
+        double delta = square - mean;
+        mean += delta / count;
+        m2 += delta * (square - mean);
+        if (!Double.isNaN(previousSquare)) {
+            lagProductSum += square * previousSquare;
+        }
+        previousSquare = square;
+    }
+
+    public void reset() {
+        count = 0;
+        mean = 0;
+        m2 = 0;
+        lagProductSum = 0;
+        previousSquare = Double.NaN;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public double getRmssd() {
+        return Math.sqrt(mean);
+    }
+
+    /**
+     * Half-width of the 95% interval in ms, infinite until there are enough differences to say
+     */
+    public double getHalfWidth() {
+        if (count < 3 || mean <= 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double variance = m2 / (count - 1);
+        double lagCovariance = lagProductSum / (count - 1) - mean * mean;
+        double meanVariance = (variance + 2 * Math.max(0, lagCovariance)) / count;
+        return Z_95 * Math.sqrt(meanVariance) / (2 * getRmssd());
+    }
+
+    /**
+     * Half-width as a fraction of the RMSSD
+     */
+    public double getRelativeHalfWidth() {
+        double rmssd = getRmssd();
+        return rmssd > 0 ? getHalfWidth() / rmssd : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * True once there are at least MIN_DIFFERENCES and the interval is within +/- relativeTolerance
+     * of the estimate
+     */
+    public boolean hasConverged(double relativeTolerance) {
+        return count >= MIN_DIFFERENCES && getRelativeHalfWidth() <= relativeTolerance;
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.cfs_hrv;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Timing report for a run of camera samples, built from the sensor timestamps of the frames.
+ * The effective rate is what the sample-indexed filters actually see (drops included), the
+ * nominal rate is what the camera was delivering when it kept up.
+ */
+public class SamplingStats {
+
+    // An interval this much longer than the typical one means frames went missing
+    private static final double DROP_FACTOR = 1.5;
+
+    public static final double DEFAULT_SAMPLING_RATE = 30.0;
+
+    public int sampleCount;
+    public double durationMs;
+    public double effectiveRate;      // Samples per second over the whole run
+    public double nominalRate;        // 1 / median frame interval
+    public double meanIntervalMs;
+    public double medianIntervalMs;
+    public double jitterMs;           // Standard deviation of the frame interval
+    public double maxIntervalMs;
+    public int droppedFrames;         // Estimated frames missing from the long intervals
+    public int gapCount;              // Number of intervals that contained drops
+
+    /**
+     * Rate to resample and filter at: the nominal rate to the nearest whole Hz. Unlike the effective
+     * rate it doesn't move with frame drops, so recordings in the same camera mode share one grid and
+     * their results are comparable.
+     */
+    public double getAnalysisRate() {
+        return Math.max(1, Math.round(nominalRate));
+    }
+
+    public static SamplingStats fromDataPoints(List<HRVMeasurementSystem.DataPoint> data) {
+        long[] timestamps = new long[data.size()];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = data.get(i).timestampNanos;
+        }
+        return fromTimestamps(timestamps, timestamps.length);
+    }
+
+    /**
+     * Build the report from sensor timestamps in nanoseconds, in capture order
+     */
+    public static SamplingStats fromTimestamps(long[] timestampsNs, int count) {
+        SamplingStats stats = new SamplingStats();
+        stats.sampleCount = count;
+        if (count < 2) {
+            stats.effectiveRate = DEFAULT_SAMPLING_RATE;
+            stats.nominalRate = DEFAULT_SAMPLING_RATE;
+            return stats;
+        }
+
+        int intervals = count - 1;
+        double[] intervalMs = new double[intervals];
+        double sum = 0;
+        double sumSquares = 0;
+        double max = 0;
+        for (int i = 0; i < intervals; i++) {
+            double interval = (timestampsNs[i + 1] - timestampsNs[i]) / 1e6;
+            intervalMs[i] = interval;
+            sum += interval;
+            sumSquares += interval * interval;
+            max = Math.max(max, interval);
+        }
+
+        stats.durationMs = (timestampsNs[count - 1] - timestampsNs[0]) / 1e6;
+        stats.meanIntervalMs = sum / intervals;
+        stats.jitterMs = Math.sqrt(Math.max(0, sumSquares / intervals - stats.meanIntervalMs * stats.meanIntervalMs));
+        stats.maxIntervalMs = max;
+
+        if (stats.durationMs <= 0) {
+            // Timestamps didn't advance, nothing sensible to measure
+            stats.effectiveRate = DEFAULT_SAMPLING_RATE;
+            stats.nominalRate = DEFAULT_SAMPLING_RATE;
+            return stats;
+        }
+
+        double[] sorted = intervalMs.clone();
+        Arrays.sort(sorted);
+        stats.medianIntervalMs = intervals % 2 == 1
+                ? sorted[intervals / 2]
+                : (sorted[intervals / 2 - 1] + sorted[intervals / 2]) / 2.0;
+
+        stats.effectiveRate = intervals * 1000.0 / stats.durationMs;
+        stats.nominalRate = stats.medianIntervalMs > 0 ? 1000.0 / stats.medianIntervalMs : stats.effectiveRate;
+
+        if (stats.medianIntervalMs > 0) {
+            for (double interval : intervalMs) {
+                if (interval > DROP_FACTOR * stats.medianIntervalMs) {
+                    stats.gapCount++;
+                    stats.droppedFrames += (int) Math.round(interval / stats.medianIntervalMs) - 1;
+                }
+            }
+        }
+        return stats;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d samples over %.1f s, %.2f Hz effective (%.2f Hz nominal), jitter: %.2f ms, max gap: %.1f ms, dropped: %d in %d gaps",
+                sampleCount, durationMs / 1000.0, effectiveRate, nominalRate, jitterMs,
+                maxIntervalMs, droppedFrames, gapCount);
+    }
+}
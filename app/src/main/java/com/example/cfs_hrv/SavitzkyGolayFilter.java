@@ -1,36 +1,209 @@
 package com.example.cfs_hrv;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Savitzky-Golay smoothing and differentiation: a least-squares polynomial of a given order fitted to
+ * each odd-sized window, evaluated (or its first or second derivative evaluated) at the window's
+ * centre. The fit is linear in the samples, so it reduces to a convolution with a fixed kernel.
+ *
+ * Kernels are solved once per (window, order, derivative) and shared. Near the ends the window can't
+ * be centred, so the first and last full windows are fitted instead and evaluated at the edge
+ * samples' own positions, which keeps the polynomial's accuracy right up to the ends rather than
+ * repeating the edge sample.
+ */
 public class SavitzkyGolayFilter {
-    public static List<Double> smooth(List<Double> y, int windowSize, int polynomialOrder) {
-        if (windowSize % 2 == 0 || windowSize < 3)
-            throw new IllegalArgumentException("Window size must be odd and >= 3");
 
-        int halfWindow = windowSize / 2;
+    public static final int MAX_DERIVATIVE = 2;
+
+    private static final Map<Long, double[][]> kernelCache = new ConcurrentHashMap<>();
+
+    public static List<Double> smooth(List<Double> y, int windowSize, int polynomialOrder) {
         int n = y.size();
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = y.get(i);
+        }
+        double[] smoothed = new double[n];
+        smooth(values, n, smoothed, windowSize, polynomialOrder);
+
         List<Double> result = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            result.add(smoothed[i]);
+        }
+        return result;
+    }
 
-        double[] coeffs = generateCoefficients(windowSize, polynomialOrder);
+    /**
+     * Smoothed copy of input[0..n) into output, which must be a different array
+     */
+    public static void smooth(double[] input, int n, double[] output, int windowSize, int polynomialOrder) {
+        filter(input, n, output, windowSize, polynomialOrder, 0, 1);
+    }
 
-        for (int i = 0; i < n; i++) {
+    /**
+     * Smoothed value (derivative 0) or first or second derivative of input[0..n) into output, which
+     * must be a different array. Derivatives are per sampleSpacing, e.g. 1 / samplingRate for per
+     * second. A recording shorter than the window is fitted with the largest odd window that fits.
+     */
+    public static void filter(double[] input, int n, double[] output, int windowSize, int polynomialOrder,
+                              int derivative, double sampleSpacing) {
+        validate(windowSize, polynomialOrder, derivative);
+        if (n == 0) return;
+        int window = Math.min(windowSize, n % 2 == 0 ? n - 1 : n);
+        int order = Math.min(polynomialOrder, window - 1);
+        if (window < 3 || derivative > order) {
+            // Too few samples to fit a polynomial with that derivative
+            for (int i = 0; i < n; i++) output[i] = derivative == 0 ? input[i] : 0;
+            return;
+        }
+
+        double[][] kernels = kernels(window, order, derivative);
+        double scale = 1 / Math.pow(sampleSpacing, derivative);
+        int half = window / 2;
+
+        // Leading edge: the first window evaluated at each of its first half positions
+        for (int i = 0; i < half; i++) {
+            output[i] = scale * dot(kernels[i], input, 0);
+        }
+
+        double[] centre = kernels[half];
+        for (int i = half; i < n - half; i++) {
+            int start = i - half;
             double sum = 0;
-            for (int j = -halfWindow; j <= halfWindow; j++) {
-                int k = i + j;
-                if (k < 0) k = 0;
-                if (k >= n) k = n - 1;
-                sum += coeffs[j + halfWindow] * y.get(k);
+            for (int k = 0; k < window; k++) {
+                sum += centre[k] * input[start + k];
             }
-            result.add(sum);
+            output[i] = scale * sum;
         }
-        return result;
+
+        // Trailing edge: the last window evaluated at its last half positions
+        int lastStart = n - window;
+        for (int i = Math.max(half, n - half); i < n; i++) {
+            output[i] = scale * dot(kernels[i - lastStart], input, lastStart);
+        }
+    }
+
+    /**
+     * The centred kernel for a window, order and derivative (per sample). A copy, so callers can
+     * change it.
+     */
+    public static double[] coefficients(int windowSize, int polynomialOrder, int derivative) {
+        validate(windowSize, polynomialOrder, derivative);
+        return kernels(windowSize, polynomialOrder, derivative)[windowSize / 2].clone();
     }
 
-    private static double[] generateCoefficients(int windowSize, int polyOrder) {
-        // Hardcoded for common SG(5,2) only
-        if (windowSize == 5 && polyOrder == 2) {
-            return new double[]{-3.0 / 35, 12.0 / 35, 17.0 / 35, 12.0 / 35, -3.0 / 35};
+    private static void validate(int windowSize, int polynomialOrder, int derivative) {
+        if (windowSize % 2 == 0 || windowSize < 3)
+            throw new IllegalArgumentException("Window size must be odd and >= 3");
+        if (polynomialOrder < 0 || polynomialOrder >= windowSize)
+            throw new IllegalArgumentException("Polynomial order must be >= 0 and less than the window size");
+        if (derivative < 0 || derivative > MAX_DERIVATIVE || derivative > polynomialOrder)
+            throw new IllegalArgumentException("Derivative must be 0.." + MAX_DERIVATIVE
+                    + " and no more than the polynomial order");
+    }
+
+    private static double dot(double[] kernel, double[] input, int start) {
+        double sum = 0;
+        for (int k = 0; k < kernel.length; k++) {
+            sum += kernel[k] * input[start + k];
+        }
+        return sum;
+    }
+
+    // One kernel per position in the window: row p evaluates the fit at sample p of the window
+    private static double[][] kernels(int window, int order, int derivative) {
+        long key = ((long) window << 32) | ((long) order << 8) | derivative;
+        double[][] cached = kernelCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        double[][] kernels = solveKernels(window, order, derivative);
+        double[][] previous = kernelCache.putIfAbsent(key, kernels);
+        return previous != null ? previous : kernels;
+    }
+
+    /**
+     * Row p is v(p)^T (X^T X)^-1 X^T, where X holds the powers of each sample's position and v(p) the
+     * derivative of those powers at position p. Positions are scaled to [-1, 1] to keep X^T X well
+     * conditioned for long windows and high orders.
+     */
+    private static double[][] solveKernels(int window, int order, int derivative) {
+        int half = window / 2;
+        int terms = order + 1;
+        double[][] powers = new double[window][terms];
+        for (int i = 0; i < window; i++) {
+            double u = (double) (i - half) / half;
+            double power = 1;
+            for (int j = 0; j < terms; j++) {
+                powers[i][j] = power;
+                power *= u;
+            }
+        }
+        double[][] normal = new double[terms][terms];
+        for (int r = 0; r < terms; r++) {
+            for (int c = 0; c < terms; c++) {
+                double sum = 0;
+                for (int i = 0; i < window; i++) {
+                    sum += powers[i][r] * powers[i][c];
+                }
+                normal[r][c] = sum;
+            }
+        }
+
+        // d/dt = d/du / half, so each derivative divides by half once more
+        double unitScale = Math.pow(half, -derivative);
+        double[][] kernels = new double[window][window];
+        double[] v = new double[terms];
+        for (int p = 0; p < window; p++) {
+            double u = (double) (p - half) / half;
+            for (int j = 0; j < terms; j++) {
+                if (j < derivative) {
+                    v[j] = 0;
+                    continue;
+                }
+                double falling = 1;
+                for (int f = 0; f < derivative; f++) falling *= j - f;
+                v[j] = falling * Math.pow(u, j - derivative) * unitScale;
+            }
+            double[] x = solve(normal, v);
+            for (int i = 0; i < window; i++) {
+                double sum = 0;
+                for (int j = 0; j < terms; j++) {
+                    sum += powers[i][j] * x[j];
+                }
+                kernels[p][i] = sum;
+            }
+        }
+        return kernels;
+    }
+
+    // Gaussian elimination with partial pivoting, leaving A and b untouched
+    private static double[] solve(double[][] A, double[] b) {
+        int n = b.length;
+        double[][] m = new double[n][];
+        for (int r = 0; r < n; r++) m[r] = A[r].clone();
+        double[] x = b.clone();
+        for (int i = 0; i < n; i++) {
+            int pivot = i;
+            for (int k = i + 1; k < n; k++) {
+                if (Math.abs(m[k][i]) > Math.abs(m[pivot][i])) pivot = k;
+            }
+            double[] row = m[i]; m[i] = m[pivot]; m[pivot] = row;
+            double t = x[i]; x[i] = x[pivot]; x[pivot] = t;
+            for (int k = i + 1; k < n; k++) {
+                double factor = m[k][i] / m[i][i];
+                x[k] -= factor * x[i];
+                for (int j = i; j < n; j++) m[k][j] -= factor * m[i][j];
+            }
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            double sum = x[i];
+            for (int j = i + 1; j < n; j++) sum -= m[i][j] * x[j];
+            x[i] = sum / m[i][i];
         }
-        throw new UnsupportedOperationException("Only SG(5,2) supported.");
+        return x;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,132 @@
+package com.example.cfs_hrv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A sampled signal stored column-wise: one double[] of values and one double[] of timestamps (ms,
+ * fractional, so sensor nanosecond timestamps keep their precision), growing like an ArrayList. The analysis stages work on the arrays directly, either in place or
+ * ping-ponging into a scratch buffer, so a recording costs a few array allocations rather than a
+ * DataPoint per sample per stage.
+ *
+ * The backing arrays may be longer than size(), only the first size() entries are meaningful.
+ */
+public class SignalBuffer {
+
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private double[] values;
+    private double[] timestamps;
+    private int size;
+
+    public SignalBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SignalBuffer(int capacity) {
+        values = new double[Math.max(1, capacity)];
+        timestamps = new double[Math.max(1, capacity)];
+    }
+
+    /**
+     * One channel of a list of samples. Samples without channel data give their plain value.
+     */
+    public static SignalBuffer fromDataPoints(List<HRVMeasurementSystem.DataPoint> data,
+                                              HRVMeasurementSystem.Channel channel) {
+        SignalBuffer buffer = new SignalBuffer(data.size());
+        for (HRVMeasurementSystem.DataPoint point : data) {
+            buffer.add(point.getChannel(channel), point.timestampNanos / 1e6);
+        }
+        return buffer;
+    }
+
+    public static SignalBuffer fromDataPoints(List<HRVMeasurementSystem.DataPoint> data) {
+        return fromDataPoints(data, HRVMeasurementSystem.Channel.LUMA);
+    }
+
+    public void add(double value, double timestampMs) {
+        if (size == values.length) {
+            ensureCapacity(size + 1);
+        }
+        values[size] = value;
+        timestamps[size] = timestampMs;
+        size++;
+    }
+
+    public void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            int newCapacity = Math.max(capacity, values.length + (values.length >> 1));
+            values = Arrays.copyOf(values, newCapacity);
+            timestamps = Arrays.copyOf(timestamps, newCapacity);
+        }
+    }
+
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public double getValue(int index) { return values[index]; }
+    public double getTimestamp(int index) { return timestamps[index]; }
+    public void setValue(int index, double value) { values[index] = value; }
+
+    /**
+     * The backing value array, for stages that work in place. Valid up to size().
+     */
+    public double[] values() { return values; }
+
+    /**
+     * The backing timestamp array (ms). Valid up to size().
+     */
+    public double[] timestamps() { return timestamps; }
+
+    /**
+     * Make this buffer the same length as another and share its timestamps, ready to take a stage's
+     * output. Used as the scratch side of a ping-pong.
+     */
+    public void resizeLike(SignalBuffer other) {
+        ensureCapacity(other.size);
+        System.arraycopy(other.timestamps, 0, timestamps, 0, other.size);
+        size = other.size;
+    }
+
+    /**
+     * Exchange contents with another buffer without copying
+     */
+    public void swap(SignalBuffer other) {
+        double[] swapValues = values;
+        values = other.values;
+        other.values = swapValues;
+
+        double[] swapTimestamps = timestamps;
+        timestamps = other.timestamps;
+        other.timestamps = swapTimestamps;
+
+        int swapSize = size;
+        size = other.size;
+        other.size = swapSize;
+    }
+
+    public SignalBuffer copy() {
+        SignalBuffer copy = new SignalBuffer(size);
+        System.arraycopy(values, 0, copy.values, 0, size);
+        System.arraycopy(timestamps, 0, copy.timestamps, 0, size);
+        copy.size = size;
+        return copy;
+    }
+
+    public double[] toValueArray() {
+        return Arrays.copyOf(values, size);
+    }
+
+    public List<HRVMeasurementSystem.DataPoint> toDataPoints() {
+        List<HRVMeasurementSystem.DataPoint> points = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            points.add(HRVMeasurementSystem.DataPoint.fromSensor(values[i], Math.round(timestamps[i] * 1e6)));
+        }
+        return points;
+    }
+}
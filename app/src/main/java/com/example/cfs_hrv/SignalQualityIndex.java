@@ -0,0 +1,122 @@
+package com.example.cfs_hrv;
+
+/**
+ * Cheap per-frame signal quality index for the live PPG trace. It combines three things the
+ * analyzer already has on hand: how much of the frame is clipped, how uneven the tiles are (a
+ * finger only partly over the lens), and how much of the recent signal power falls in the pulse
+ * band. Everything is updated in O(1) per frame with a streaming band-pass and exponentially
+ * weighted averages.
+ */
+public class SignalQualityIndex {
+
+    // Heart rate band, 30-240 BPM
+    private static final double BAND_LOW_HZ = 0.5;
+    private static final double BAND_HIGH_HZ = 4.0;
+
+    // Window the band power is averaged over
+    private static final double POWER_WINDOW_S = 4.0;
+
+    // Scales for turning the raw measures into 0..1 terms
+    private static final double MAX_CLIPPED_FRACTION = 0.5;
+    private static final double TILE_SPREAD_SCALE = 30.0;    // Std dev of tile means, luma levels
+    private static final double MIN_PULSE_RMS = 0.3;         // Luma levels
+
+    public static final double GOOD_SCORE = 0.5;
+
+    /**
+     * One frame's quality. update() fills a caller-owned instance, so keep a copy() of any reading
+     * that has to outlive the next frame.
+     */
+    public static class Reading {
+        public double clippedFraction;
+        public double tileSpread;      // Std dev of the tile means
+        public double bandRms;         // RMS of the pulse band component
+        public double bandRatio;       // Pulse band power over all AC power, 0..1
+        public double score;           // Combined quality, 0..1
+
+        public Reading() {
+        }
+
+        public Reading(double clippedFraction, double tileSpread, double bandRms, double bandRatio, double score) {
+            this.clippedFraction = clippedFraction;
+            this.tileSpread = tileSpread;
+            this.bandRms = bandRms;
+            this.bandRatio = bandRatio;
+            this.score = score;
+        }
+
+        public Reading copy() {
+            return new Reading(clippedFraction, tileSpread, bandRms, bandRatio, score);
+        }
+
+        public boolean isGood() {
+            return score >= GOOD_SCORE;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("SQI %.2f (clipped %.0f%%, tile spread %.1f, band rms %.2f, band ratio %.2f)",
+                    score, clippedFraction * 100, tileSpread, bandRms, bandRatio);
+        }
+    }
+
+    private final double slowAlpha;     // One-pole low-pass at BAND_LOW_HZ, the DC level
+    private final double powerAlpha;
+    private final ButterworthBandpass bandpass;
+
+    private boolean initialised = false;
+    private double slow;
+    private double bandPower;
+    private double acPower;
+
+    public SignalQualityIndex(double sampleRate) {
+        slowAlpha = onePoleAlpha(BAND_LOW_HZ, sampleRate);
+        bandpass = new ButterworthBandpass(sampleRate, BAND_LOW_HZ, BAND_HIGH_HZ);
+        powerAlpha = 1.0 / Math.max(1.0, POWER_WINDOW_S * sampleRate);
+    }
+
+    private static double onePoleAlpha(double cutoffHz, double sampleRate) {
+        return 1.0 - Math.exp(-2.0 * Math.PI * cutoffHz / sampleRate);
+    }
+
+    public void reset() {
+        initialised = false;
+        bandPower = 0;
+        acPower = 0;
+    }
+
+    /**
+     * Feed one frame and write its quality reading into out, which is returned
+     *
+     * @param value           the frame's PPG sample (mean luma)
+     * @param clippedFraction fraction of pixels crushed or saturated
+     * @param tileVariance    variance of the tile means
+     */
+    public Reading update(double value, double clippedFraction, double tileVariance, Reading out) {
+        if (!initialised) {
+            slow = value;
+            bandpass.reset(value);
+            initialised = true;
+        }
+        slow += slowAlpha * (value - slow);
+        double band = bandpass.process(value);
+        double ac = value - slow;
+
+        bandPower += powerAlpha * (band * band - bandPower);
+        acPower += powerAlpha * (ac * ac - acPower);
+
+        double bandRms = Math.sqrt(bandPower);
+        double bandRatio = acPower > 1e-12 ? Math.min(1.0, bandPower / acPower) : 0;
+        double tileSpread = Math.sqrt(Math.max(0, tileVariance));
+
+        double clipTerm = 1.0 - Math.min(1.0, clippedFraction / MAX_CLIPPED_FRACTION);
+        double spreadTerm = 1.0 / (1.0 + tileSpread / TILE_SPREAD_SCALE);
+        double amplitudeTerm = Math.min(1.0, bandRms / MIN_PULSE_RMS);
+        out.clippedFraction = clippedFraction;
+        out.tileSpread = tileSpread;
+        out.bandRms = bandRms;
+        out.bandRatio = bandRatio;
+        out.score = clipTerm * spreadTerm * amplitudeTerm * bandRatio;
+        return out;
+    }
+}
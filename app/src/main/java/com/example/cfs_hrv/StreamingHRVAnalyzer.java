@@ -0,0 +1,299 @@
+package com.example.cfs_hrv;
+
+import java.util.Arrays;
+
+/**
+ * Incremental version of HRVMeasurementSystem.analyzeHRV for use while recording. Samples go in as
+ * they arrive and each detected beat comes out through the listener with the running metrics, so
+ * the UI can show beat-by-beat HR and RMSSD and the numbers are there the moment recording stops.
+ *
+ * The stages mirror the batch pipeline but are causal: a short moving average, the streaming
+ * Butterworth band-pass, then the same adaptive trough rule (below the local mean minus 0.2 local
+ * std over a 2 second window, a strict local minimum, at least 0.4 s after the last trough). The
+ * trough rule needs the second half of its window, so beats are reported about a second late.
+ * The threshold is invariant to scaling, so the signal isn't normalised. Each beat is then timed at
+ * the steepest point of its fall with the batch's sub-sample cubic fit, so frame quantisation doesn't
+ * inflate the live RMSSD.
+ *
+ * Intervals are checked against the median of the last few in-range intervals, accepted or not, so
+ * an early artefact or a genuine change of rate can't lock the rest of the recording out: after
+ * RRIntervalCleaner.RESEED_AFTER intervals at a new level the median has moved to it. The first
+ * couple of intervals only seed the reference.
+ *
+ * Not thread safe, feed it from one thread. Per-sample work is O(1) with no allocation; a metrics
+ * snapshot is allocated once per beat.
+ */
+public class StreamingHRVAnalyzer {
+
+    public interface Listener {
+        /**
+         * @param rrIntervalMs the interval ending at this beat
+         * @param accepted     whether it passed the artefact checks and went into the metrics
+         * @param running      metrics over all accepted intervals so far
+         */
+        void onBeat(long rrIntervalMs, boolean accepted, HRVMeasurementSystem.HRVMetrics running);
+    }
+
+    private static final int SMOOTH_WINDOW = 5;
+
+    // Physiological limits as in RRIntervalCleaner, and a simple neighbour check
+    private static final long MIN_RR_MS = RRIntervalCleaner.MIN_RR_MS;
+    private static final long MAX_RR_MS = RRIntervalCleaner.MAX_RR_MS;
+    private static final double MAX_NEIGHBOUR_DEVIATION = 0.5;
+    // A median over this many moves to a new level after RESEED_AFTER intervals
+    private static final int REFERENCE_BEATS = 2 * RRIntervalCleaner.RESEED_AFTER - 1;
+    private static final int MIN_REFERENCE_BEATS = RRIntervalCleaner.RESEED_AFTER;
+
+    private final HRVMeasurementSystem.Channel channel;
+    private final int windowSize;
+    private final int half;
+    private final int span;
+    private final int minDistance;
+    private final int searchRadius;
+    private final int beatSearch;
+    private final int beatFitHalf;
+
+    private final ButterworthBandpass bandpass;
+    private final double[] smoothRing = new double[SMOOTH_WINDOW];
+    private double smoothSum;
+
+    // Filtered samples, indexed by sample number modulo the ring size
+    private final double[] ring;
+    private final double[] ringTimestamps;
+    private final int ringMask;
+
+    private long sampleCount = 0;
+    private double windowSum;
+    private double windowSumSquares;
+
+    private long lastTroughIndex = -1;
+    private double lastBeatTime;
+    private final double[] beatWindow;
+
+    // Last few in-range intervals, the artefact reference
+    private final long[] recentIntervals = new long[REFERENCE_BEATS];
+    private final long[] sortedIntervals = new long[REFERENCE_BEATS];
+    private int inRangeCount = 0;
+
+    // Running metrics over accepted intervals
+    private int acceptedCount = 0;
+    private double meanRR;
+    private double m2;              // Welford sum of squared deviations
+    private long previousAccepted = -1;
+    private final RmssdConvergence rmssd = new RmssdConvergence();
+    private int pnn50Count;
+    private int rejectedCount = 0;
+
+    private Listener listener;
+
+    public StreamingHRVAnalyzer(double samplingRate) {
+        this(samplingRate, HRVMeasurementSystem.Channel.LUMA);
+    }
+
+    public StreamingHRVAnalyzer(double samplingRate, HRVMeasurementSystem.Channel channel) {
+        this.channel = channel;
+        this.windowSize = (int) (2.0 * samplingRate);
+        this.half = windowSize / 2;
+        this.span = 2 * half;
+        this.minDistance = (int) (0.4 * samplingRate);
+        this.searchRadius = Math.min(minDistance / 6, 5);
+        this.beatSearch = HeartBeatAnalyzer.searchSamples(samplingRate, HRVMeasurementSystem.BEAT_SEARCH_WINDOW_S);
+        this.beatFitHalf = HeartBeatAnalyzer.fitHalfWidth(samplingRate);
+        this.bandpass = new ButterworthBandpass(samplingRate, 0.5, 4.0);
+
+        // The beat fit reads back beatSearch + beatFitHalf samples from a trough half a window old
+        beatWindow = new double[beatSearch + 2 * beatFitHalf + 1];
+        int capacity = Integer.highestOneBit(Math.max(4, span + searchRadius + beatSearch + 2) - 1) << 1;
+        ring = new double[capacity];
+        ringTimestamps = new double[capacity];
+        ringMask = capacity - 1;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void add(HRVMeasurementSystem.DataPoint point) {
+        add(point.getChannel(channel), point.timestampNanos / 1e6);
+    }
+
+    /**
+     * Feed one sample
+     *
+     * @param value       raw PPG value
+     * @param timestampMs sample time in milliseconds, fractional for sensor timestamps
+     */
+    public void add(double value, double timestampMs) {
+        // Causal moving average, then band-pass
+        int slot = (int) (sampleCount % SMOOTH_WINDOW);
+        if (sampleCount == 0) {
+            for (int i = 0; i < SMOOTH_WINDOW; i++) smoothRing[i] = value;
+            smoothSum = value * SMOOTH_WINDOW;
+            bandpass.reset(value);
+        }
+        smoothSum += value - smoothRing[slot];
+        smoothRing[slot] = value;
+        double filtered = bandpass.process(smoothSum / SMOOTH_WINDOW);
+
+        long k = sampleCount++;
+        int index = (int) (k & ringMask);
+        ring[index] = filtered;
+        ringTimestamps[index] = timestampMs;
+
+        // Running window sums over the last span samples
+        windowSum += filtered;
+        windowSumSquares += filtered * filtered;
+        if (k >= span) {
+            double leaving = ring[(int) ((k - span) & ringMask)];
+            windowSum -= leaving;
+            windowSumSquares -= leaving * leaving;
+        }
+
+        // The window [i - half, i + half) is complete for i = k - half + 1
+        long i = k - half + 1;
+        if (i < windowSize || i + searchRadius > k) {
+            return;
+        }
+        // The local minimum check looks searchRadius ahead, which the window already covers
+        evaluate(i);
+    }
+
+    private void evaluate(long i) {
+        double localMean = windowSum / windowSize;
+        double squaredDeviations = windowSumSquares - 2 * localMean * windowSum + span * localMean * localMean;
+        double localStd = Math.sqrt(Math.max(0, squaredDeviations) / windowSize);
+        double threshold = localMean - 0.2 * localStd;
+
+        double value = ring[(int) (i & ringMask)];
+        if (value >= threshold || !isLocalMinimum(i, value)) {
+            return;
+        }
+        if (lastTroughIndex >= 0 && i - lastTroughIndex < minDistance) {
+            return;
+        }
+
+        double beatTime = beatTime(i);
+        if (lastTroughIndex >= 0) {
+            onInterval(Math.round(beatTime - lastBeatTime));
+        }
+        lastTroughIndex = i;
+        lastBeatTime = beatTime;
+    }
+
+    // Sub-sample beat time (ms) for the trough at sample i, as HRVMeasurementSystem.detectRRIntervals
+    private double beatTime(long i) {
+        long from = Math.max(0, i - beatSearch - beatFitHalf);
+        int length = (int) Math.min(beatWindow.length, sampleCount - from);
+        for (int j = 0; j < length; j++) {
+            beatWindow[j] = ring[(int) ((from + j) & ringMask)];
+        }
+        double beat = from + HeartBeatAnalyzer.refineBeatTime(beatWindow, length, (int) (i - from),
+                beatSearch, beatFitHalf);
+
+        long whole = (long) Math.floor(beat);
+        double timestamp = ringTimestamps[(int) (whole & ringMask)];
+        if (whole + 1 >= sampleCount) {
+            return timestamp;
+        }
+        return timestamp + (beat - whole) * (ringTimestamps[(int) ((whole + 1) & ringMask)] - timestamp);
+    }
+
+    private boolean isLocalMinimum(long index, double value) {
+        for (long j = Math.max(0, index - searchRadius); j <= index + searchRadius; j++) {
+            if (j != index && ring[(int) (j & ringMask)] <= value) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void onInterval(long rr) {
+        boolean accepted = rr >= MIN_RR_MS && rr <= MAX_RR_MS;
+        if (accepted) {
+            recentIntervals[inRangeCount % REFERENCE_BEATS] = rr;
+            inRangeCount++;
+            if (inRangeCount < MIN_REFERENCE_BEATS) {
+                accepted = false;
+            } else {
+                double reference = referenceInterval();
+                accepted = Math.abs(rr - reference) < MAX_NEIGHBOUR_DEVIATION * reference;
+            }
+        }
+
+        if (accepted) {
+            acceptedCount++;
+            double delta = rr - meanRR;
+            meanRR += delta / acceptedCount;
+            m2 += delta * (rr - meanRR);
+
+            if (previousAccepted >= 0) {
+                double diff = rr - previousAccepted;
+                rmssd.add(diff);
+                if (Math.abs(diff) > 50) {
+                    pnn50Count++;
+                }
+            }
+            previousAccepted = rr;
+        } else {
+            rejectedCount++;
+        }
+
+        Listener current = listener;
+        if (current != null) {
+            current.onBeat(rr, accepted, getMetrics());
+        }
+    }
+
+    // Median of the last few in-range intervals, this one included
+    private double referenceInterval() {
+        int count = Math.min(inRangeCount, REFERENCE_BEATS);
+        System.arraycopy(recentIntervals, 0, sortedIntervals, 0, count);
+        Arrays.sort(sortedIntervals, 0, count);
+        return count % 2 == 1 ? sortedIntervals[count / 2]
+                : (sortedIntervals[count / 2 - 1] + sortedIntervals[count / 2]) / 2.0;
+    }
+
+    /**
+     * Snapshot of the metrics over everything accepted so far
+     */
+    public HRVMeasurementSystem.HRVMetrics getMetrics() {
+        HRVMeasurementSystem.HRVMetrics metrics = new HRVMeasurementSystem.HRVMetrics();
+        if (acceptedCount == 0) {
+            return metrics;
+        }
+        metrics.validBeats = acceptedCount;
+        metrics.meanRR = meanRR;
+        metrics.heartRate = 60000.0 / meanRR;
+        metrics.sdnn = Math.sqrt(m2 / acceptedCount);
+        int diffCount = rmssd.getCount();
+        if (diffCount > 0) {
+            metrics.rmssd = rmssd.getRmssd();
+            metrics.pnn50 = (double) pnn50Count / diffCount * 100;
+            double halfWidth = rmssd.getHalfWidth();
+            metrics.rmssdHalfWidth = Double.isInfinite(halfWidth) ? 0 : halfWidth;
+        }
+        return metrics;
+    }
+
+    /**
+     * Whether the running RMSSD has settled to within +/- relativeTolerance (95% confidence), see
+     * RmssdConvergence. The live intervals use the same sub-sample beat timing as the batch analysis
+     * but a causal filter and a simpler artefact check, so the live RMSSD can read a few percent above
+     * the batch value that gets saved; the interval is relative, so the stop decision barely moves.
+     */
+    public boolean hasConverged(double relativeTolerance) {
+        return rmssd.hasConverged(relativeTolerance);
+    }
+
+    public RmssdConvergence getRmssdConvergence() {
+        return rmssd;
+    }
+
+    public int getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+}
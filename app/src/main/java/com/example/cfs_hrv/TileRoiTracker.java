@@ -0,0 +1,288 @@
+package com.example.cfs_hrv;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Tracks which parts of the frame actually carry the pulse. The luma plane is split into a grid of
+ * tiles; every frame a sparse probe updates each tile's mean, a slow baseline and a running
+ * pulse-amplitude estimate (all O(tiles) state updates). Every reselectInterval frames the best K
+ * tiles are picked, skipping saturated and dark ones, and only those tiles are reduced densely to
+ * produce the output sample.
+ *
+ * Different tiles sit at different brightness, so a new selection would step the output and the
+ * band-pass would turn the step into a false beat. On the frame the selection changes both the old
+ * and the new tiles are reduced and the difference is carried as an offset, keeping the output
+ * continuous; getSelectionGeneration() still lets a consumer see when it happened. Not thread safe,
+ * use one per analyzer thread.
+ */
+public class TileRoiTracker {
+
+    // Tiles whose mean sits outside this range are clipped or unlit and carry no usable pulse
+    private static final double SATURATED_LEVEL = 250.0;
+    private static final double DARK_LEVEL = 15.0;
+
+    private final int tilesX;
+    private final int tilesY;
+    private final int tileCount;
+    private final int selectedCount;
+    private final int probeStride;
+    private final int denseStride;
+    private final int reselectInterval;
+
+    // Smoothing factors, per frame
+    private final double baselineAlpha;
+    private final double powerAlpha;
+
+    // Per-tile state
+    private final long[] probeSum;
+    private final int[] probeCount;
+    private final double[] tileMean;
+    private final double[] baseline;
+    private final double[] pulsePower;
+    private final double[] score;
+
+    private final int[] selected;
+    private final int[] nextSelection;
+    private final int[] previousSelection;
+    private final boolean[] isSelected;     // Per tile, mirrors selected
+    private final boolean[] isChosen;       // Per tile, scratch for reselect()
+    private double selectionOffset;
+    private int selectionGeneration = 0;
+    private long frameCount = 0;
+
+    private final PlaneReducer reducer = new PlaneReducer();
+    private final PlaneReducer.Stats tileStats = new PlaneReducer.Stats();
+    private byte[] rowScratch = new byte[0];
+    private int[] columnTile = new int[0];
+    private int columnTileWidth = -1;
+
+    private double lastMean;
+    private double tileSpread;
+    private double clippedFraction;
+
+    /**
+     * @param tilesX           tiles across the frame
+     * @param tilesY           tiles down the frame
+     * @param selectedCount    number of tiles (K) used for the output sample
+     * @param probeStride      pixel and row step of the per-frame probe over all tiles
+     * @param denseStride      pixel and row step inside the selected tiles
+     * @param reselectInterval frames between re-selections
+     * @param frameRate        expected frame rate, sets the baseline and amplitude time constants
+     */
+    public TileRoiTracker(int tilesX, int tilesY, int selectedCount, int probeStride, int denseStride,
+                          int reselectInterval, double frameRate) {
+        if (tilesX < 1 || tilesY < 1 || selectedCount < 1 || selectedCount > tilesX * tilesY) {
+            throw new IllegalArgumentException("Need at least one tile and 1 <= K <= tile count");
+        }
+        this.tilesX = tilesX;
+        this.tilesY = tilesY;
+        this.tileCount = tilesX * tilesY;
+        this.selectedCount = selectedCount;
+        this.probeStride = Math.max(1, probeStride);
+        this.denseStride = Math.max(1, denseStride);
+        this.reselectInterval = Math.max(1, reselectInterval);
+
+        // ~1 second baseline to strip drift, ~4 seconds to average the pulse amplitude
+        this.baselineAlpha = 1.0 / Math.max(1.0, frameRate);
+        this.powerAlpha = 1.0 / Math.max(1.0, 4.0 * frameRate);
+
+        probeSum = new long[tileCount];
+        probeCount = new int[tileCount];
+        tileMean = new double[tileCount];
+        baseline = new double[tileCount];
+        pulsePower = new double[tileCount];
+        score = new double[tileCount];
+
+        // Start out on the centre tiles until there is some history
+        selected = new int[selectedCount];
+        nextSelection = new int[selectedCount];
+        previousSelection = new int[selectedCount];
+        isSelected = new boolean[tileCount];
+        isChosen = new boolean[tileCount];
+        Integer[] byCentreDistance = new Integer[tileCount];
+        for (int t = 0; t < tileCount; t++) byCentreDistance[t] = t;
+        Arrays.sort(byCentreDistance, (a, b) -> Double.compare(centreDistance(a), centreDistance(b)));
+        for (int k = 0; k < selectedCount; k++) {
+            selected[k] = byCentreDistance[k];
+            isSelected[selected[k]] = true;
+        }
+    }
+
+    /**
+     * The usual setup: 6x6 tiles, the best 8 reduced every second pixel, re-selected every 3 seconds
+     */
+    public static TileRoiTracker createDefault(double frameRate) {
+        return new TileRoiTracker(6, 6, 8, 8, 2, (int) (3 * frameRate), frameRate);
+    }
+
+    private double centreDistance(int tile) {
+        double dx = (tile % tilesX) + 0.5 - tilesX / 2.0;
+        double dy = (tile / tilesX) + 0.5 - tilesY / 2.0;
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Process one luma plane and return the mean over the selected tiles
+     */
+    public double process(ByteBuffer buffer, int width, int height, int rowStride) {
+        probe(buffer, width, height, rowStride);
+        updateTileStatistics();
+
+        frameCount++;
+        boolean changed = frameCount % reselectInterval == 0 && reselect();
+
+        double mean = selectionMean(selected, buffer, width, height, rowStride);
+        if (changed) {
+            // Carry the old selection's level over so the output doesn't step
+            selectionOffset += selectionMean(previousSelection, buffer, width, height, rowStride) - mean;
+        }
+        lastMean = mean + selectionOffset;
+        return lastMean;
+    }
+
+    // Dense mean over a set of tiles
+    private double selectionMean(int[] tiles, ByteBuffer buffer, int width, int height, int rowStride) {
+        long sum = 0;
+        long count = 0;
+        for (int tile : tiles) {
+            int x0 = (tile % tilesX) * width / tilesX;
+            int x1 = (tile % tilesX + 1) * width / tilesX;
+            int y0 = (tile / tilesX) * height / tilesY;
+            int y1 = (tile / tilesX + 1) * height / tilesY;
+            reducer.reduceRect(buffer, rowStride, 1, x0, y0, x1 - x0, y1 - y0, denseStride, tileStats);
+            sum += tileStats.sum;
+            count += tileStats.count;
+        }
+        return count > 0 ? (double) sum / count : 0;
+    }
+
+    // Sparse pass over the whole frame, accumulating into the per-tile sums
+    private void probe(ByteBuffer buffer, int width, int height, int rowStride) {
+        if (columnTileWidth != width) {
+            columnTile = new int[(width + probeStride - 1) / probeStride];
+            for (int i = 0; i < columnTile.length; i++) {
+                columnTile[i] = i * probeStride * tilesX / width;
+            }
+            columnTileWidth = width;
+        }
+        if (rowScratch.length < width) {
+            rowScratch = new byte[width];
+        }
+        Arrays.fill(probeSum, 0);
+        Arrays.fill(probeCount, 0);
+
+        byte[] row = rowScratch;
+        int limit = buffer.limit();
+        int savedPosition = buffer.position();
+        int clipped = 0;
+        int probed = 0;
+        try {
+            for (int y = 0; y < height; y += probeStride) {
+                int rowStart = y * rowStride;
+                int length = Math.min(width, limit - rowStart);
+                if (length <= 0) break;
+                buffer.position(rowStart);
+                buffer.get(row, 0, length);
+
+                int tileRowBase = (y * tilesY / height) * tilesX;
+                for (int i = 0, x = 0; x < length; i++, x += probeStride) {
+                    int tile = tileRowBase + columnTile[i];
+                    int v = row[x] & 0xFF;
+                    probeSum[tile] += v;
+                    probeCount[tile]++;
+                    if (v <= PlaneReducer.CLIP_LOW || v >= PlaneReducer.CLIP_HIGH) clipped++;
+                }
+                probed += (length + probeStride - 1) / probeStride;
+            }
+        } finally {
+            buffer.position(savedPosition);
+        }
+        clippedFraction = probed > 0 ? (double) clipped / probed : 0;
+    }
+
+    private void updateTileStatistics() {
+        double sum = 0;
+        double sumSquares = 0;
+        for (int t = 0; t < tileCount; t++) {
+            double mean = probeCount[t] > 0 ? (double) probeSum[t] / probeCount[t] : 0;
+            tileMean[t] = mean;
+            sum += mean;
+            sumSquares += mean * mean;
+
+            if (frameCount == 0) {
+                baseline[t] = mean;
+            }
+            double ac = mean - baseline[t];
+            baseline[t] += baselineAlpha * ac;
+            pulsePower[t] += powerAlpha * (ac * ac - pulsePower[t]);
+        }
+        double spreadMean = sum / tileCount;
+        tileSpread = Math.max(0, sumSquares / tileCount - spreadMean * spreadMean);
+    }
+
+    // Partial selection of the K highest scoring tiles: K passes over the tiles, with per-tile masks
+    // instead of membership scans, so O(tiles * K). True if the selection changed.
+    private boolean reselect() {
+        for (int t = 0; t < tileCount; t++) {
+            boolean usable = tileMean[t] < SATURATED_LEVEL && tileMean[t] > DARK_LEVEL;
+            score[t] = usable ? pulsePower[t] : -1;
+        }
+
+        boolean changed = false;
+        for (int k = 0; k < selectedCount; k++) {
+            int best = -1;
+            for (int t = 0; t < tileCount; t++) {
+                if (isChosen[t]) continue;
+                if (best < 0 || score[t] > score[best]) best = t;
+            }
+            isChosen[best] = true;
+            if (!isSelected[best]) changed = true;
+            nextSelection[k] = best;
+        }
+        for (int k = 0; k < selectedCount; k++) isChosen[nextSelection[k]] = false;
+
+        if (changed) {
+            for (int k = 0; k < selectedCount; k++) {
+                isSelected[selected[k]] = false;
+                isSelected[nextSelection[k]] = true;
+            }
+            System.arraycopy(selected, 0, previousSelection, 0, selectedCount);
+            System.arraycopy(nextSelection, 0, selected, 0, selectedCount);
+            Arrays.sort(selected);  // Row-major order is kinder to the buffer reads
+            selectionGeneration++;
+        }
+        return changed;
+    }
+
+    public double getLastMean() { return lastMean; }
+
+    /**
+     * Variance of the tile means in the last frame, large when the finger only covers part of the lens
+     */
+    public double getTileSpread() { return tileSpread; }
+
+    /**
+     * Fraction of the probed pixels in the last frame that were crushed or saturated
+     */
+    public double getClippedFraction() { return clippedFraction; }
+
+    public int getTilesX() { return tilesX; }
+    public int getTilesY() { return tilesY; }
+    public int getTileCount() { return tileCount; }
+
+    /**
+     * Raw probe sum and pixel count of a tile in the last frame, for recording
+     */
+    public long getTileSum(int tile) { return probeSum[tile]; }
+    public int getTileSampleCount(int tile) { return probeCount[tile]; }
+    public double getTileMean(int tile) { return tileMean[tile]; }
+    public double getTilePulseAmplitude(int tile) { return Math.sqrt(pulsePower[tile]); }
+    public int[] getSelectedTiles() { return selected.clone(); }
+    public int getSelectionGeneration() { return selectionGeneration; }
+
+    /**
+     * What the output is shifted by to stay continuous across selection changes
+     */
+    public double getSelectionOffset() { return selectionOffset; }
+}
@@ -0,0 +1,230 @@
+package com.example.cfs_hrv;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Raw capture of a recording: per frame, the sensor timestamp, the channel means that went into the
+ * analysis and the probe sum and pixel count of every tracker tile. The file is sized for the
+ * longest expected recording and memory-mapped up front, so append() is a handful of stores into
+ * the mapping with no allocation and no system calls on the analyzer thread. close() trims the file.
+ *
+ * Layout, little-endian: a 32 byte header (int magic, int version, int tilesX, int tilesY,
+ * int recordBytes, int frameCount, long startedAtMillis) followed by fixed-width records of
+ * long timestampNanos, float luma, float red, float green, int hasChannels, then an int sum and an
+ * int count per tile. frameCount is updated with every record so a cut-short file still reads.
+ */
+public class TileSumRecorder implements Closeable {
+
+    static final int MAGIC = 0x50504754; // "PPGT"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    private static final int FRAME_COUNT_OFFSET = 20;
+    private static final int RECORD_FIXED_BYTES = 24;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer mapped;
+    private final int tileCount;
+    private final int recordBytes;
+    private final int maxFrames;
+
+    private int frameCount = 0;
+    private int droppedFrames = 0;
+    private boolean closed = false;
+
+    /**
+     * @param maxFrames records the mapping has room for, frames past this are counted and dropped
+     */
+    public TileSumRecorder(File path, int tilesX, int tilesY, int maxFrames) throws IOException {
+        this.tileCount = tilesX * tilesY;
+        this.recordBytes = recordBytes(tileCount);
+        this.maxFrames = maxFrames;
+
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) recordBytes * maxFrames);
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        mapped.putInt(MAGIC).putInt(VERSION).putInt(tilesX).putInt(tilesY)
+                .putInt(recordBytes).putInt(0).putLong(System.currentTimeMillis());
+    }
+
+    /**
+     * Recorder sized for a recording of the given length at the tracker's grid
+     */
+    public static TileSumRecorder forTracker(File path, TileRoiTracker tracker, double frameRate,
+                                             long durationMs) throws IOException {
+        // 10% headroom for frame rate wobble and a late stop
+        int maxFrames = (int) Math.ceil(durationMs / 1000.0 * frameRate * 1.1);
+        return new TileSumRecorder(path, tracker.getTilesX(), tracker.getTilesY(), maxFrames);
+    }
+
+    static int recordBytes(int tileCount) {
+        return RECORD_FIXED_BYTES + tileCount * 8;
+    }
+
+    /**
+     * Append one frame. Returns false (and counts a drop) once the mapping is full.
+     */
+    public synchronized boolean append(HRVMeasurementSystem.DataPoint point, TileRoiTracker tracker) {
+        if (closed || frameCount >= maxFrames) {
+            droppedFrames++;
+            return false;
+        }
+        int offset = HEADER_BYTES + frameCount * recordBytes;
+        mapped.putLong(offset, point.timestampNanos);
+        mapped.putFloat(offset + 8, (float) (point.hasChannels ? point.luma : point.value));
+        mapped.putFloat(offset + 12, (float) point.red);
+        mapped.putFloat(offset + 16, (float) point.green);
+        mapped.putInt(offset + 20, point.hasChannels ? 1 : 0);
+
+        int tileOffset = offset + RECORD_FIXED_BYTES;
+        int tiles = Math.min(tileCount, tracker.getTileCount());
+        for (int t = 0; t < tiles; t++) {
+            mapped.putInt(tileOffset, (int) Math.min(Integer.MAX_VALUE, tracker.getTileSum(t)));
+            mapped.putInt(tileOffset + 4, tracker.getTileSampleCount(t));
+            tileOffset += 8;
+        }
+
+        frameCount++;
+        mapped.putInt(FRAME_COUNT_OFFSET, frameCount);
+        return true;
+    }
+
+    public synchronized int getFrameCount() { return frameCount; }
+    public synchronized int getDroppedFrames() { return droppedFrames; }
+
+    /**
+     * Flush the mapping and trim the file to the frames written. This is the one blocking write,
+     * done once per recording rather than per frame.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            mapped.force();
+            channel.truncate(HEADER_BYTES + (long) recordBytes * frameCount);
+        } finally {
+            channel.close();
+            file.close();
+        }
+    }
+
+    /**
+     * Sequential reader for a recording, one record at a time
+     */
+    public static class Reader implements Closeable {
+        private final RandomAccessFile file;
+        private final MappedByteBuffer mapped;
+        private final int tilesX;
+        private final int tilesY;
+        private final int recordBytes;
+        private final int frameCount;
+        private final long startedAtMillis;
+        private int index = -1;
+        private int offset;
+
+        public Reader(File path) throws IOException {
+            file = new RandomAccessFile(path, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                mapped.order(ByteOrder.LITTLE_ENDIAN);
+                if (mapped.capacity() < HEADER_BYTES || mapped.getInt(0) != MAGIC
+                        || mapped.getInt(4) != VERSION) {
+                    throw new IOException("Not a tile sum recording: " + path);
+                }
+                tilesX = mapped.getInt(8);
+                tilesY = mapped.getInt(12);
+                recordBytes = mapped.getInt(16);
+                startedAtMillis = mapped.getLong(24);
+                // Trust the header count only as far as the file actually reaches
+                int available = (mapped.capacity() - HEADER_BYTES) / recordBytes;
+                frameCount = Math.min(mapped.getInt(FRAME_COUNT_OFFSET), available);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+
+        public int getTilesX() { return tilesX; }
+        public int getTilesY() { return tilesY; }
+        public int getTileCount() { return tilesX * tilesY; }
+        public int getFrameCount() { return frameCount; }
+        public long getStartedAtMillis() { return startedAtMillis; }
+
+        /**
+         * Move to the next record, false at the end
+         */
+        public boolean next() {
+            if (index + 1 >= frameCount) return false;
+            index++;
+            offset = HEADER_BYTES + index * recordBytes;
+            return true;
+        }
+
+        public long getTimestampNanos() { return mapped.getLong(offset); }
+        public double getLuma() { return mapped.getFloat(offset + 8); }
+        public double getRed() { return mapped.getFloat(offset + 12); }
+        public double getGreen() { return mapped.getFloat(offset + 16); }
+        public boolean hasChannels() { return mapped.getInt(offset + 20) != 0; }
+
+        public long getTileSum(int tile) {
+            return mapped.getInt(offset + RECORD_FIXED_BYTES + tile * 8) & 0xFFFFFFFFL;
+        }
+
+        public int getTileSampleCount(int tile) {
+            return mapped.getInt(offset + RECORD_FIXED_BYTES + tile * 8 + 4);
+        }
+
+        /**
+         * Mean level over a set of tiles, to re-run the analysis with a different ROI
+         */
+        public double getTileMean(int[] tiles) {
+            long sum = 0;
+            long count = 0;
+            for (int tile : tiles) {
+                sum += getTileSum(tile);
+                count += getTileSampleCount(tile);
+            }
+            return count > 0 ? (double) sum / count : 0;
+        }
+
+        /**
+         * The current record as the DataPoint the analysis originally saw
+         */
+        public HRVMeasurementSystem.DataPoint toDataPoint() {
+            if (!hasChannels()) {
+                return HRVMeasurementSystem.DataPoint.fromSensor(getLuma(), getTimestampNanos());
+            }
+            return HRVMeasurementSystem.DataPoint.fromSensor(
+                    new ChannelSample(getLuma(), getRed(), getGreen()), getTimestampNanos());
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Read a whole recording back as the samples that were analysed
+     */
+    public static List<HRVMeasurementSystem.DataPoint> readDataPoints(File path) throws IOException {
+        try (Reader reader = new Reader(path)) {
+            List<HRVMeasurementSystem.DataPoint> points = new ArrayList<>(reader.getFrameCount());
+            while (reader.next()) {
+                points.add(reader.toDataPoint());
+            }
+            return points;
+        }
+    }
+}
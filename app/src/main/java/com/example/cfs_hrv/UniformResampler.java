@@ -0,0 +1,67 @@
+package com.example.cfs_hrv;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Puts camera samples onto a fixed time grid so the filters, which count in samples, really run at
+ * the sample rate they were designed for. Frame timestamps jitter by a few milliseconds and the
+ * camera occasionally drops frames; short irregularities are linearly interpolated, but a gap
+ * longer than maxGapMs splits the signal into separate segments instead of filtering across a
+ * made-up stretch of signal.
+ *
+ * One pass over the input arrays to find the gaps, one to interpolate each segment.
+ */
+public class UniformResampler {
+
+    // A couple of dropped frames get bridged, anything approaching a beat long does not
+    public static final long DEFAULT_MAX_GAP_MS = 200;
+
+    /**
+     * Resample onto a grid of 1000 / sampleRate ms starting at each segment's first sample.
+     * Timestamps must be non-decreasing; repeated timestamps are tolerated. Segments with fewer than
+     * two input samples are dropped.
+     */
+    public static List<SignalBuffer> resample(SignalBuffer input, double sampleRate, long maxGapMs) {
+        List<SignalBuffer> segments = new ArrayList<>();
+        int n = input.size();
+        double[] timestamps = input.timestamps();
+        double step = 1000.0 / sampleRate;
+
+        int segmentStart = 0;
+        for (int j = 1; j <= n; j++) {
+            if (j == n || timestamps[j] - timestamps[j - 1] > maxGapMs) {
+                if (j - segmentStart >= 2) {
+                    segments.add(interpolate(input.values(), timestamps, segmentStart, j, step));
+                }
+                segmentStart = j;
+            }
+        }
+        return segments;
+    }
+
+    public static List<SignalBuffer> resample(SignalBuffer input, double sampleRate) {
+        return resample(input, sampleRate, DEFAULT_MAX_GAP_MS);
+    }
+
+    // Linear interpolation of input[from..to) onto the grid
+    private static SignalBuffer interpolate(double[] values, double[] timestamps, int from, int to, double step) {
+        double start = timestamps[from];
+        double end = timestamps[to - 1];
+        int count = (int) Math.floor((end - start) / step + 1e-9) + 1;   // A grid point exactly at end counts
+        SignalBuffer out = new SignalBuffer(count);
+
+        int j = from;
+        for (int k = 0; k < count; k++) {
+            double t = start + k * step;
+            while (j < to - 2 && timestamps[j + 1] <= t) {
+                j++;
+            }
+            double t0 = timestamps[j];
+            double t1 = timestamps[j + 1];
+            double fraction = t1 > t0 ? Math.min(1.0, Math.max(0.0, (t - t0) / (t1 - t0))) : 0.0;
+            out.add(values[j] + fraction * (values[j + 1] - values[j]), t);
+        }
+        return out;
+    }
+}
@@ -0,0 +1,62 @@
+package com.example.cfs_hrv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Produces luma, red and green channel means straight from the three planes of a YUV_420_888 frame
+ * without building an NV21 copy, a JPEG or a Bitmap. U and V are usually interleaved in the same
+ * memory (pixelStride 2), so their row and pixel strides are always taken from the planes.
+ */
+public class YuvChannelReducer {
+
+    private final PlaneReducer lumaReducer;
+    private final PlaneReducer chromaReducer;
+
+    private final PlaneReducer.Stats yStats = new PlaneReducer.Stats();
+    private final PlaneReducer.Stats uStats = new PlaneReducer.Stats();
+    private final PlaneReducer.Stats vStats = new PlaneReducer.Stats();
+
+    public YuvChannelReducer(PlaneReducer reducer) {
+        this(reducer, reducer);
+    }
+
+    public YuvChannelReducer(PlaneReducer lumaReducer, PlaneReducer chromaReducer) {
+        this.lumaReducer = lumaReducer;
+        this.chromaReducer = chromaReducer;
+    }
+
+    public PlaneReducer.Stats getLumaStats() {
+        return yStats;
+    }
+
+    /**
+     * Reduce one frame. width and height are the luma dimensions, the chroma planes are half size
+     * in both directions. Returns out for chaining.
+     */
+    public ChannelSample reduce(ByteBuffer yBuffer, int yRowStride,
+                                ByteBuffer uBuffer, int uRowStride, int uPixelStride,
+                                ByteBuffer vBuffer, int vRowStride, int vPixelStride,
+                                int width, int height, ChannelSample out) {
+        lumaReducer.reduce(yBuffer, width, height, yRowStride, 1, yStats);
+        return reduceChroma(yStats.mean, uBuffer, uRowStride, uPixelStride,
+                vBuffer, vRowStride, vPixelStride, width, height, out);
+    }
+
+    /**
+     * Combine a luma mean produced elsewhere (e.g. by a TileRoiTracker) with this reducer's chroma
+     * means. Chroma is spatially smooth under a fingertip, so the regions needn't match exactly.
+     */
+    public ChannelSample reduceChroma(double lumaMean,
+                                      ByteBuffer uBuffer, int uRowStride, int uPixelStride,
+                                      ByteBuffer vBuffer, int vRowStride, int vPixelStride,
+                                      int width, int height, ChannelSample out) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+
+        chromaReducer.reduce(uBuffer, chromaWidth, chromaHeight, uRowStride, uPixelStride, uStats);
+        chromaReducer.reduce(vBuffer, chromaWidth, chromaHeight, vRowStride, vPixelStride, vStats);
+
+        out.setFromPlaneMeans(lumaMean, uStats.mean, vStats.mean);
+        return out;
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.cfs_hrv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Samples a coarse grid of ARGB pixels straight from YUV_420_888 planes. Only the grid points are
+ * converted, so there is no NV21 copy, JPEG round-trip or Bitmap, and the output goes into a flat
+ * int[] (row-major, gridWidth * gridHeight) that is allocated once.
+ */
+public class YuvGridSampler {
+
+    private final int gridWidth;
+    private final int gridHeight;
+    private final int[] pixels;
+
+    public YuvGridSampler(int gridWidth, int gridHeight) {
+        if (gridWidth < 1 || gridHeight < 1) {
+            throw new IllegalArgumentException("Grid must be at least 1x1");
+        }
+        this.gridWidth = gridWidth;
+        this.gridHeight = gridHeight;
+        this.pixels = new int[gridWidth * gridHeight];
+    }
+
+    public int getGridWidth() { return gridWidth; }
+    public int getGridHeight() { return gridHeight; }
+
+    /**
+     * The most recent grid, pixel (gx, gy) is at index gy * gridWidth + gx
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Convert the grid points of one frame. Grid points sit at the centre of each grid cell.
+     * width and height are the luma dimensions. Returns the pixel array for chaining.
+     */
+    public int[] sample(ByteBuffer yBuffer, int yRowStride,
+                        ByteBuffer uBuffer, int uRowStride, int uPixelStride,
+                        ByteBuffer vBuffer, int vRowStride, int vPixelStride,
+                        int width, int height) {
+        int index = 0;
+        for (int gy = 0; gy < gridHeight; gy++) {
+            int y = (2 * gy + 1) * height / (2 * gridHeight);
+            int yRow = y * yRowStride;
+            int uRow = (y >> 1) * uRowStride;
+            int vRow = (y >> 1) * vRowStride;
+
+            for (int gx = 0; gx < gridWidth; gx++) {
+                int x = (2 * gx + 1) * width / (2 * gridWidth);
+                int cx = x >> 1;
+
+                int luma = yBuffer.get(yRow + x) & 0xFF;
+                int cb = (uBuffer.get(uRow + cx * uPixelStride) & 0xFF) - 128;
+                int cr = (vBuffer.get(vRow + cx * vPixelStride) & 0xFF) - 128;
+
+                pixels[index++] = yuvToArgb(luma, cb, cr);
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * BT.601 full range YCbCr to opaque ARGB, fixed point with 16 fractional bits
+     */
+    static int yuvToArgb(int luma, int cb, int cr) {
+        int r = luma + ((91881 * cr) >> 16);                 // 1.402
+        int g = luma - ((22554 * cb + 46802 * cr) >> 16);    // 0.344136, 0.714136
+        int b = luma + ((116130 * cb) >> 16);                // 1.772
+
+        r = r < 0 ? 0 : (r > 255 ? 255 : r);
+        g = g < 0 ? 0 : (g > 255 ? 255 : g);
+        b = b < 0 ? 0 : (b > 255 ? 255 : b);
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+}
@@ -8,6 +8,7 @@ import android.graphics.PorterDuff;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -17,10 +18,11 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.camera.core.Camera;
+import androidx.camera.core.CameraInfo;
 import androidx.camera.core.CameraSelector;
 import androidx.camera.core.ImageAnalysis;
-import androidx.camera.core.ImageProxy;
 import androidx.camera.core.Preview;
 import androidx.camera.lifecycle.ProcessCameraProvider;
 import androidx.camera.view.PreviewView;
@@ -29,12 +31,19 @@ import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
 import androidx.lifecycle.ViewModelProvider;
 
+import com.example.cfs_hrv.BatchReprocessor;
+import com.example.cfs_hrv.CameraFrameSource;
+import com.example.cfs_hrv.CaptureProfile;
 import com.example.cfs_hrv.FatigueLevelPredictor;
+import com.example.cfs_hrv.FramePipelineMonitor;
 import com.example.cfs_hrv.HRVDataManager;
 import com.example.cfs_hrv.HRVMeasurementSystem;
-import com.example.cfs_hrv.ImageProcessing;
 import com.example.cfs_hrv.MessageDisplayManager;
+import com.example.cfs_hrv.PpgFrameProcessor;
 import com.example.cfs_hrv.R;
+import com.example.cfs_hrv.SignalQualityIndex;
+import com.example.cfs_hrv.StreamingHRVAnalyzer;
+import com.example.cfs_hrv.TileSumRecorder;
 import com.example.cfs_hrv.databinding.FragmentHomeBinding;
 import com.github.mikephil.charting.charts.LineChart;
 import com.github.mikephil.charting.components.Description;
@@ -46,8 +55,13 @@ import com.github.mikephil.charting.data.LineDataSet;
 import com.google.android.material.math.MathUtils;
 import com.google.common.util.concurrent.ListenableFuture;
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -55,7 +69,10 @@ import java.util.concurrent.Executors;
 
 public class MeasureFragment extends Fragment {
 
+    private static final String TAG = "MeasureFragment";
+
     private FragmentHomeBinding binding;
+    private MeasureViewModel measureViewModel;
 
     //private TextView progress_text;
     private ProgressBar progressBar;
@@ -79,7 +96,6 @@ public class MeasureFragment extends Fragment {
 
     //Measure stuff
     private Long start_Time = 0l;
-    private Long lastProcessedTime = 0l;
 
     public List<HRVMeasurementSystem.DataPoint> dataPointList = new ArrayList<>();
 
@@ -87,13 +103,34 @@ public class MeasureFragment extends Fragment {
 
     private MessageDisplayManager messageManager;
 
-    //Sampling stuff
-    private static final long SAMPLE_INTERVAL_MS = (long) 33.33333333; // Process frames every 100ms
+    //Sampling stuff, the camera is just a FrameSource and the processing lives in PpgFrameProcessor
+    private final CameraFrameSource cameraFrameSource = new CameraFrameSource();
+    private CaptureProfile captureProfile = CaptureProfile.PPG_30;
+    private volatile PpgFrameProcessor frameProcessor = new PpgFrameProcessor(CaptureProfile.PPG_30.targetFps);
+
+    //Signal quality while recording, if too much of the record is poor we flag it with the results
+    private static final double MAX_POOR_QUALITY_FRACTION = 0.3;
+    private int signalLineColor = Color.LTGRAY;
+
+    //Raw capture of each recording's tile sums so a bad measurement can be replayed later
+    private boolean recordRawCapture = true;
+    private TileSumRecorder rawRecorder;
+
+    //Beat-by-beat analysis while recording, for the live HR/RMSSD readout
+    private volatile StreamingHRVAnalyzer streamingAnalyzer;
+
+    //Last quality state sent to the view model, null until the first frame. Analyzer thread only
+    private Boolean postedQualityGood;
+
+    //Runs the history reprocessing from showPipelineReport(), kept off the camera thread
+    private ExecutorService reprocessExecutor;
+
+    //Frame timing instrumentation, see showPipelineReport()
+    private final FramePipelineMonitor pipelineMonitor = new FramePipelineMonitor(CaptureProfile.PPG_30.targetFps);
 
     public View onCreateView(@NonNull LayoutInflater inflater,
                              ViewGroup container, Bundle savedInstanceState) {
-        MeasureViewModel measureViewModel =
-                new ViewModelProvider(this).get(MeasureViewModel.class);
+        measureViewModel = new ViewModelProvider(this).get(MeasureViewModel.class);
 
         binding = FragmentHomeBinding.inflate(inflater, container, false);
         View root = binding.getRoot();
@@ -117,11 +154,17 @@ public class MeasureFragment extends Fragment {
         redColorChart = binding.redColorChart;//view.findViewById(R.id.red_color_chart);
 
         heartRateTextView = binding.heartRateText;
+        //Debug surface: long press the message text for the frame pipeline report
+        heartRateTextView.setOnLongClickListener(v -> {
+            showPipelineReport();
+            return true;
+        });
 
         //HRVDataManager hrvManager = new HRVDataManager(getContext());
         messageManager = new MessageDisplayManager(heartRateTextView);
         messageManager.startStage(1);
         cameraExecutor = Executors.newSingleThreadExecutor();
+        reprocessExecutor = Executors.newSingleThreadExecutor();
         // Request camera permissions
         if (allPermissionsGranted()) {
             startCamera();
@@ -131,6 +174,8 @@ public class MeasureFragment extends Fragment {
         }
 
         setupChart();
+        measureViewModel.getSignalQuality().observe(getViewLifecycleOwner(), this::showSignalQuality);
+        measureViewModel.getLiveMetrics().observe(getViewLifecycleOwner(), this::showLiveMetrics);
         return root;
     }
 
@@ -152,6 +197,13 @@ public class MeasureFragment extends Fragment {
                 setTorch(true);   //Enable our torch
                 break;
             case 1:
+                rawRecorder = openRawRecorder();
+                StreamingHRVAnalyzer analyzer = new StreamingHRVAnalyzer(captureProfile.targetFps);
+                analyzer.setListener((rr, accepted, running) -> measureViewModel.postLiveMetrics(running));
+                streamingAnalyzer = analyzer;
+                frameProcessor.startRecording(rawRecorder);  //Each recording is analysed on its own
+                pipelineMonitor.reset();
+                setExposureLock(true);  //The torch has settled, stop AE/AWB wandering during the record
                 doingDataSample = true;
                 sample_startTime = System.currentTimeMillis();
                 messageManager.startStage(3);
@@ -169,25 +221,39 @@ public class MeasureFragment extends Fragment {
                     }
                 });
                 doingDataSample = false;
+                dataPointList = frameProcessor.stopRecording();
+                StreamingHRVAnalyzer finishedAnalyzer = streamingAnalyzer;
+                streamingAnalyzer = null;
+                closeRawRecorder();
                 messageManager.release();  //So our message doesn't override the data display that should replace it
                 //sample_stopTime = System.currentTimeMillis();
                 HRVMeasurementSystem.HRVMetrics results =
-                        HRVMeasurementSystem.analyzeHRV(dataPointList, 30);
+                        HRVMeasurementSystem.analyzeHRV(dataPointList);
+                Log.d(TAG, "Sampling: " + results.sampling);
+                if (finishedAnalyzer != null) {
+                    Log.d(TAG, "Live analysis: " + finishedAnalyzer.getMetrics()
+                            + ", rejected beats " + finishedAnalyzer.getRejectedCount());
+                }
+                Log.i(TAG, pipelineMonitor.report());
+                Log.i(TAG, HRVMeasurementSystem.getDefaultPipeline().report());
 
                 //Do our data stuff
                 HRVDataManager hrvManager = new HRVDataManager(getContext());
-                //    public HRVData(double meanRR, double sdnn, double rmssd, double pnn50,
-                //                   double heartRate, int validBeats, int fatigueLevel) {
-
-                hrvManager.setTodaysHRVData(results.meanRR, results.sdnn, results.rmssd, results.pnn50,
-                        results.heartRate, results.validBeats);
+                hrvManager.setTodaysHRVData(results);
 
+                int recordedFrames = frameProcessor.getRecordedFrames();
+                boolean poorRecording = recordedFrames > 0
+                        && frameProcessor.getPoorQualityFrames() > MAX_POOR_QUALITY_FRACTION * recordedFrames;
                 getActivity().runOnUiThread(new Runnable() {
                     public void run() {
-                        heartRateTextView.setText(results.toString());
+                        heartRateTextView.setText(poorRecording
+                                ? results + "\nSignal quality was poor, consider repeating"
+                                : results.toString());
+                        redColorChart.getDescription().setText("PPG Measure");
                     }
                 });
-                //exportPeakPointsToCSV(this, HRVMeasurementSystem.troughs, "ClaudeHeartPeaks.txt");
+                //exportPeakPointsToCSV(this, HRVMeasurementSystem.analyze(dataPointList).markTroughFrames(dataPointList), "ClaudeHeartPeaks.txt");
+                setExposureLock(false);
                 setTorch(false);   //Disable our torch
 
                 sampleButtonState = 0;  //Reset back to start
@@ -265,7 +331,9 @@ public class MeasureFragment extends Fragment {
         }
 
         // Update chart on UI thread
+        long postedAt = pipelineMonitor.markPost();
         mainHandler.post(() -> {
+            pipelineMonitor.recordPostLatency(postedAt);
             LineDataSet dataSet;
 
             if (doingDataSample) {
@@ -283,12 +351,13 @@ public class MeasureFragment extends Fragment {
                 // Update existing dataset
                 dataSet = (LineDataSet) redColorChart.getData().getDataSetByIndex(0);
                 dataSet.setValues(redColorEntries);
+                dataSet.setColor(signalLineColor);
                 redColorChart.getData().notifyDataChanged();
                 redColorChart.notifyDataSetChanged();
             } else {
                 // Create new dataset
                 dataSet = new LineDataSet(redColorEntries, "PPG Value");
-                dataSet.setColor(Color.LTGRAY);
+                dataSet.setColor(signalLineColor);
                 dataSet.setDrawCircles(false);
                 dataSet.setDrawValues(false);
                 dataSet.setLineWidth(2f);
@@ -302,64 +371,161 @@ public class MeasureFragment extends Fragment {
         });
     }
 
-    protected Long MEASURE_TIME_DURATION = 120000L; //2 minutes
+    protected Long MEASURE_TIME_DURATION = 120000L; //2 minutes, the longest a measurement runs
+    protected Long MIN_MEASURE_DURATION = 45000L;   //Never stop earlier than this, however settled RMSSD looks
+    protected double RMSSD_TOLERANCE = 0.15;        //Stop once the RMSSD 95% interval is within +/-15%
+
+    private TileSumRecorder openRawRecorder() {
+        if (!recordRawCapture) {
+            return null;
+        }
+        File captureDir = new File(requireContext().getExternalFilesDir(null), BatchReprocessor.CAPTURE_DIRECTORY);
+        if (!captureDir.isDirectory() && !captureDir.mkdirs()) {
+            Log.w(TAG, "Couldn't create " + captureDir);
+            return null;
+        }
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date())
+                + BatchReprocessor.RECORDING_SUFFIX;
+        try {
+            return TileSumRecorder.forTracker(new File(captureDir, name), frameProcessor.getRoiTracker(),
+                    captureProfile.targetFps, MEASURE_TIME_DURATION);
+        } catch (IOException e) {
+            Log.w(TAG, "Raw capture disabled for this recording", e);
+            return null;
+        }
+    }
+
+    //The processor has already let go of the recorder, so this can't race an append
+    private void closeRawRecorder() {
+        if (rawRecorder == null) {
+            return;
+        }
+        try {
+            Log.d(TAG, "Raw capture: " + rawRecorder.getFrameCount() + " frames, "
+                    + rawRecorder.getDroppedFrames() + " dropped");
+            rawRecorder.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error closing raw capture", e);
+        }
+        rawRecorder = null;
+    }
+
+    private void showPipelineReport() {
+        String report = pipelineMonitor.report();
+        Log.i(TAG, report);
+        new AlertDialog.Builder(requireContext())
+                .setTitle("Frame pipeline")
+                .setMessage(report)
+                .setPositiveButton(android.R.string.ok, null)
+                .setNeutralButton("Reset", (dialog, which) -> pipelineMonitor.reset())
+                .setNegativeButton("Reprocess", (dialog, which) -> reprocessRecordings())
+                .show();
+    }
+
+    //Re-analyse every raw capture with the current pipeline and update the saved days
+    private void reprocessRecordings() {
+        Context appContext = requireContext().getApplicationContext();
+        if (doingDataSample) {
+            Toast.makeText(appContext, "Finish the recording first", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Toast.makeText(appContext, "Reprocessing recordings...", Toast.LENGTH_SHORT).show();
+        reprocessExecutor.execute(() -> new HRVDataManager(appContext).reprocessRecordings(
+                new BatchReprocessor(), null,
+                updated -> Toast.makeText(appContext, updated + " days updated", Toast.LENGTH_SHORT).show()));
+    }
+
+    //Called on the analyzer thread for every processed frame
+    private void onSample(HRVMeasurementSystem.DataPoint point, SignalQualityIndex.Reading quality) {
+        //The reading is reused every frame and the trace colour only follows isGood(), so only post a
+        //copy when that flips
+        boolean good = quality.isGood();
+        if (postedQualityGood == null || postedQualityGood != good) {
+            postedQualityGood = good;
+            measureViewModel.postSignalQuality(quality.copy());
+        }
+
+        StreamingHRVAnalyzer analyzer = streamingAnalyzer;
+        if (analyzer != null && doingDataSample) {
+            analyzer.add(point);
+        }
+
+        //Typically this seems to do a crash :/
+        if (doingDataSample) {
+            long elapsed = System.currentTimeMillis() - sample_startTime;
+            boolean converged = analyzer != null && elapsed >= MIN_MEASURE_DURATION
+                    && analyzer.hasConverged(RMSSD_TOLERANCE);
+            if (converged || elapsed > MEASURE_TIME_DURATION) {
+                if (converged) {
+                    Log.i(TAG, String.format(Locale.US, "RMSSD settled after %.0f s (+/- %.0f%%)", elapsed / 1000.0,
+                            analyzer.getRmssdConvergence().getRelativeHalfWidth() * 100));
+                }
+                dataRecordButton(); //Stop our sample after the duration
+            }
+        }
+
+        updateRedColorChart((float) point.value);
+    }
+
+    //Live readout in the chart caption while recording
+    private void showLiveMetrics(HRVMeasurementSystem.HRVMetrics metrics) {
+        if (!doingDataSample || metrics.validBeats == 0) {
+            return;
+        }
+        redColorChart.getDescription().setText(String.format(Locale.US, "HR %.0f BPM  RMSSD %.0f +/- %.0f ms",
+                metrics.heartRate, metrics.rmssd, metrics.rmssdHalfWidth));
+        redColorChart.invalidate();
+    }
+
+    //Bright trace when the signal is usable, dim when it isn't
+    private void showSignalQuality(SignalQualityIndex.Reading reading) {
+        signalLineColor = reading.isGood() ? Color.WHITE : Color.DKGRAY;
+    }
 
     private void startCamera() {
         ListenableFuture<ProcessCameraProvider> cameraProviderFuture =
                 ProcessCameraProvider.getInstance(requireActivity());
         start_Time = System.currentTimeMillis();    //When we started our camera
-        lastProcessedTime = System.currentTimeMillis();
         cameraProviderFuture.addListener(() -> {
             try {
                 // Used to bind the lifecycle of cameras to the lifecycle owner
                 ProcessCameraProvider cameraProvider = cameraProviderFuture.get();
 
+                // Select back camera
+                CameraSelector cameraSelector = new CameraSelector.Builder()
+                        .requireLensFacing(CameraSelector.LENS_FACING_BACK)
+                        .build();
+
+                // Run at 60fps if the camera can hold it, it halves the RR quantisation
+                List<CameraInfo> cameraInfos = cameraSelector.filter(cameraProvider.getAvailableCameraInfos());
+                captureProfile = cameraInfos.isEmpty()
+                        ? CaptureProfile.PPG_30 : CaptureProfile.bestSupported(cameraInfos.get(0));
+                frameProcessor = new PpgFrameProcessor(captureProfile.targetFps);
+                frameProcessor.setSampleListener(this::onSample);
+                pipelineMonitor.setExpectedFrameRate(captureProfile.targetFps);
+
                 // Preview
-                Preview preview = new Preview.Builder().build();
+                Preview.Builder previewBuilder = new Preview.Builder();
+                captureProfile.applyFrameRate(previewBuilder);
+                Preview preview = previewBuilder.build();
                 preview.setSurfaceProvider(previewView.getSurfaceProvider());
 
-                // Image analysis use case
-                ImageAnalysis imageAnalysis = new ImageAnalysis.Builder()
+                // Image analysis use case, every frame the camera delivers gets analysed
+                ImageAnalysis imageAnalysis = captureProfile.applyTo(new ImageAnalysis.Builder())
                         .setBackpressureStrategy(ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST)
                         .build();
 
-                imageAnalysis.setAnalyzer(cameraExecutor, new ImageAnalysis.Analyzer() {
-                    @Override
-                    public void analyze(@NonNull ImageProxy imageProxy) {
-                        long currentTime = System.currentTimeMillis();
-                        long start_delay = currentTime - start_Time;
-                        // Only process frames at specified interval to maintain performance
-                        if (currentTime - lastProcessedTime >= SAMPLE_INTERVAL_MS && start_delay > 500L) {// && currentTime > start_Time + START_SAMPLING_DELAY) {
-                            //if (start_delay > 500L) {   //Unthrottled data gathering
-                            //processImage(imageProxy);
-                            double imageYValue = ImageProcessing.processImageFromYPlane(imageProxy);
-
-                            //Need to start passing through all the bits and pieces to do the likes of updating our graph
-                            if (doingDataSample) {
-
-                                HRVMeasurementSystem.DataPoint newDataPoint = new HRVMeasurementSystem.DataPoint(imageYValue, System.currentTimeMillis());
-                                dataPointList.add(newDataPoint);
-
-                                //Typically this seems to do a crash :/
-                                if (sample_startTime + MEASURE_TIME_DURATION < System.currentTimeMillis()) {
-                                    //Stop our sample
-                                    dataRecordButton(); //Stop our sample after the duration
-                                }
-                            }
-
-
-                            updateRedColorChart((float)imageYValue);
-                            lastProcessedTime = currentTime;
-                        }
-                        imageProxy.close(); // Important: must close the imageProxy
+                imageAnalysis.setAnalyzer(cameraExecutor, cameraFrameSource);
+                cameraFrameSource.start(frame -> {
+                    long analyzeStart = System.nanoTime();
+                    long start_delay = System.currentTimeMillis() - start_Time;
+                    // The capture profile sets the frame rate, so there's no software throttle here
+                    if (start_delay > 500L) {
+                        frameProcessor.onFrame(frame);
                     }
+                    pipelineMonitor.recordFrame(frame.timestampNanos, analyzeStart, System.nanoTime());
                 });
 
-                // Select back camera
-                CameraSelector cameraSelector = new CameraSelector.Builder()
-                        .requireLensFacing(CameraSelector.LENS_FACING_BACK)
-                        .build();
-
                 // Unbind any bound use cases before rebinding
                 cameraProvider.unbindAll();
 
@@ -440,6 +606,12 @@ public class MeasureFragment extends Fragment {
         }
     }
 
+    private void setExposureLock(boolean locked) {
+        if (camera != null) {
+            captureProfile.setExposureLock(camera, locked);
+        }
+    }
+
     private void setTorch(boolean isOn) {
         if (camera != null && camera.getCameraInfo().hasFlashUnit()) {
             isTorchOn = isOn;
@@ -450,9 +622,15 @@ public class MeasureFragment extends Fragment {
     @Override
     public void onDestroyView() {
         super.onDestroyView();
+        cameraFrameSource.stop();
+        frameProcessor.stopRecording();
+        closeRawRecorder();
         if (cameraExecutor != null) {
             cameraExecutor.shutdown();
         }
+        if (reprocessExecutor != null) {
+            reprocessExecutor.shutdown();   //A batch already running finishes and saves
+        }
         binding = null;
     }
 }
\ No newline at end of file
@@ -4,9 +4,14 @@ import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
 
+import com.example.cfs_hrv.HRVMeasurementSystem;
+import com.example.cfs_hrv.SignalQualityIndex;
+
 public class MeasureViewModel extends ViewModel {
 
     private final MutableLiveData<String> mText;
+    private final MutableLiveData<SignalQualityIndex.Reading> signalQuality = new MutableLiveData<>();
+    private final MutableLiveData<HRVMeasurementSystem.HRVMetrics> liveMetrics = new MutableLiveData<>();
 
     public MeasureViewModel() {
         mText = new MutableLiveData<>();
@@ -16,4 +21,26 @@ public class MeasureViewModel extends ViewModel {
     public LiveData<String> getText() {
         return mText;
     }
-}
\ No newline at end of file
+
+    /**
+     * Signal quality, posted from the camera analyzer thread whenever it crosses GOOD_SCORE
+     */
+    public LiveData<SignalQualityIndex.Reading> getSignalQuality() {
+        return signalQuality;
+    }
+
+    public void postSignalQuality(SignalQualityIndex.Reading reading) {
+        signalQuality.postValue(reading);
+    }
+
+    /**
+     * Running metrics while recording, posted once per beat from the camera analyzer thread
+     */
+    public LiveData<HRVMeasurementSystem.HRVMetrics> getLiveMetrics() {
+        return liveMetrics;
+    }
+
+    public void postLiveMetrics(HRVMeasurementSystem.HRVMetrics metrics) {
+        liveMetrics.postValue(metrics);
+    }
+}
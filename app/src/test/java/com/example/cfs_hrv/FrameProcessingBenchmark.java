@@ -0,0 +1,368 @@
+package com.example.cfs_hrv;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Per-frame cost of the camera frame reductions, run on the host JVM against synthetic planes.
+ * Numbers are printed as ns/frame so they can be compared between changes.
+ */
+public class FrameProcessingBenchmark {
+
+    private static final int WARMUP_FRAMES = 200;
+    private static final int TIMED_FRAMES = 500;
+
+    private static final int[][] RESOLUTIONS = {{640, 480}, {1280, 720}};
+
+    // Row padding like a real camera buffer, rowStride > width
+    private static final int ROW_PADDING = 64;
+
+    static ByteBuffer makePlane(int width, int height, int rowStride, int pixelStride, long seed) {
+        Random random = new Random(seed);
+        // Real planes end at the last pixel of the last row, not the full rowStride
+        int capacity = rowStride * (height - 1) + (width - 1) * pixelStride + 1;
+        byte[] data = new byte[capacity];
+        random.nextBytes(data);
+        ByteBuffer plane = ByteBuffer.allocateDirect(capacity);
+        plane.put(data);
+        plane.rewind();
+        return plane;
+    }
+
+    // The original sparse 20x20 grid with an absolute get() per point
+    static double legacyGridMean(ByteBuffer buffer, int width, int height, int rowStride) {
+        long totalY = 0;
+        int sampleCount = 0;
+        int stepX = width / 20;
+        int stepY = height / 20;
+        for (int y = 0; y < height; y += stepY) {
+            for (int x = 0; x < width; x += stepX) {
+                int index = y * rowStride + x;
+                if (index < buffer.capacity()) {
+                    totalY += buffer.get(index) & 0xFF;
+                    sampleCount++;
+                }
+            }
+        }
+        return sampleCount > 0 ? (double) totalY / sampleCount : 0;
+    }
+
+    static void report(String label, int width, int height, long elapsedNs) {
+        System.out.printf("%-28s %4dx%-4d %10.0f ns/frame%n", label, width, height,
+                (double) elapsedNs / TIMED_FRAMES);
+    }
+
+    @Test
+    public void lumaReduction() {
+        for (int[] resolution : RESOLUTIONS) {
+            int width = resolution[0];
+            int height = resolution[1];
+            int rowStride = width + ROW_PADDING;
+            ByteBuffer plane = makePlane(width, height, rowStride, 1, 1);
+
+            double sink = 0;
+            for (int i = 0; i < WARMUP_FRAMES; i++) {
+                sink += legacyGridMean(plane, width, height, rowStride);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < TIMED_FRAMES; i++) {
+                sink += legacyGridMean(plane, width, height, rowStride);
+            }
+            report("legacy 20x20 grid", width, height, System.nanoTime() - start);
+
+            for (int stride : new int[]{4, 2, 1}) {
+                PlaneReducer reducer = new PlaneReducer(0f, 0f, 1f, 1f, stride);
+                PlaneReducer.Stats stats = new PlaneReducer.Stats();
+                for (int i = 0; i < WARMUP_FRAMES; i++) {
+                    sink += reducer.reduce(plane, width, height, rowStride, 1, stats).mean;
+                }
+                start = System.nanoTime();
+                for (int i = 0; i < TIMED_FRAMES; i++) {
+                    sink += reducer.reduce(plane, width, height, rowStride, 1, stats).mean;
+                }
+                report("PlaneReducer stride " + stride, width, height, System.nanoTime() - start);
+            }
+            assertTrue(sink > 0);
+        }
+    }
+
+    @Test
+    public void lumaReductionMatchesDirectSum() {
+        int width = 64;
+        int height = 48;
+        int rowStride = 80;
+        ByteBuffer plane = makePlane(width, height, rowStride, 1, 7);
+
+        // Central half of the frame, every pixel
+        long sum = 0;
+        long sumSquares = 0;
+        int count = 0;
+        int min = 255;
+        int max = 0;
+        for (int y = 12; y < 36; y++) {
+            for (int x = 16; x < 48; x++) {
+                int v = plane.get(y * rowStride + x) & 0xFF;
+                sum += v;
+                sumSquares += v * v;
+                min = Math.min(min, v);
+                max = Math.max(max, v);
+                count++;
+            }
+        }
+        double mean = (double) sum / count;
+
+        PlaneReducer reducer = new PlaneReducer(0.25f, 0.25f, 0.75f, 0.75f, 1);
+        PlaneReducer.Stats stats = reducer.reduce(plane, width, height, rowStride, 1, new PlaneReducer.Stats());
+        assertEquals(count, stats.count);
+        assertEquals(mean, stats.mean, 1e-9);
+        assertEquals((double) sumSquares / count - mean * mean, stats.variance, 1e-6);
+        assertEquals(min, stats.min);
+        assertEquals(max, stats.max);
+        assertEquals(0, plane.position());
+    }
+
+    // Semi-planar chroma like most devices deliver it: U and V interleaved, pixelStride 2
+    static ByteBuffer[] makeInterleavedChroma(int width, int height, int rowStride, long seed) {
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        int capacity = rowStride * (chromaHeight - 1) + chromaWidth * 2;
+        byte[] data = new byte[capacity];
+        new Random(seed).nextBytes(data);
+        ByteBuffer shared = ByteBuffer.allocateDirect(capacity);
+        shared.put(data);
+        shared.position(1);
+        ByteBuffer v = shared.slice();
+        shared.position(0);
+        shared.limit(capacity - 1);
+        ByteBuffer u = shared.slice();
+        return new ByteBuffer[]{u, v};
+    }
+
+    @Test
+    public void chromaChannelReduction() {
+        for (int[] resolution : RESOLUTIONS) {
+            int width = resolution[0];
+            int height = resolution[1];
+            int rowStride = width + ROW_PADDING;
+            ByteBuffer yPlane = makePlane(width, height, rowStride, 1, 3);
+            ByteBuffer[] uv = makeInterleavedChroma(width, height, rowStride, 4);
+
+            YuvChannelReducer reducer = new YuvChannelReducer(
+                    new PlaneReducer(0f, 0f, 1f, 1f, 2));
+            ChannelSample sample = new ChannelSample();
+            double sink = 0;
+            for (int i = 0; i < WARMUP_FRAMES; i++) {
+                sink += reducer.reduce(yPlane, rowStride, uv[0], rowStride, 2, uv[1], rowStride, 2,
+                        width, height, sample).red;
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < TIMED_FRAMES; i++) {
+                sink += reducer.reduce(yPlane, rowStride, uv[0], rowStride, 2, uv[1], rowStride, 2,
+                        width, height, sample).red;
+            }
+            report("YUV channels stride 2", width, height,
+                    System.nanoTime() - start);
+            assertTrue(sink != 0);
+        }
+    }
+
+    @Test
+    public void chromaChannelsOfUniformFrame() {
+        int width = 32;
+        int height = 16;
+        int rowStride = 32;
+        // A uniform reddish frame, Y=120 Cb=100 Cr=180
+        ByteBuffer yPlane = ByteBuffer.allocateDirect(rowStride * height);
+        while (yPlane.hasRemaining()) yPlane.put((byte) 120);
+        yPlane.rewind();
+        ByteBuffer[] uv = makeInterleavedChroma(width, height, rowStride, 5);
+        ByteBuffer interleaved = uv[0];
+        for (int i = 0; i < interleaved.capacity(); i++) {
+            interleaved.put(i, (byte) (i % 2 == 0 ? 100 : 180));
+        }
+        uv[1].put(uv[1].capacity() - 1, (byte) 180);
+
+        ChannelSample sample = new YuvChannelReducer(new PlaneReducer()).reduce(
+                yPlane, rowStride, uv[0], rowStride, 2, uv[1], rowStride, 2, width, height,
+                new ChannelSample());
+        assertEquals(120, sample.luma, 1e-9);
+        assertEquals(120 + 1.402 * 52, sample.red, 1e-9);
+        assertEquals(120 + 0.344136 * 28 - 0.714136 * 52, sample.green, 1e-9);
+    }
+
+    @Test
+    public void rgbGridSampling() {
+        for (int[] resolution : RESOLUTIONS) {
+            int width = resolution[0];
+            int height = resolution[1];
+            int rowStride = width + ROW_PADDING;
+            ByteBuffer yPlane = makePlane(width, height, rowStride, 1, 6);
+            ByteBuffer[] uv = makeInterleavedChroma(width, height, rowStride, 7);
+
+            YuvGridSampler sampler = new YuvGridSampler(10, 10);
+            long sink = 0;
+            for (int i = 0; i < WARMUP_FRAMES; i++) {
+                sink += sampler.sample(yPlane, rowStride, uv[0], rowStride, 2, uv[1], rowStride, 2,
+                        width, height)[i % 100];
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < TIMED_FRAMES; i++) {
+                sink += sampler.sample(yPlane, rowStride, uv[0], rowStride, 2, uv[1], rowStride, 2,
+                        width, height)[i % 100];
+            }
+            report("RGB 10x10 grid", width, height, System.nanoTime() - start);
+            assertTrue(sink != 0);
+        }
+    }
+
+    @Test
+    public void rgbGridConversion() {
+        assertEquals(0xFF808080, YuvGridSampler.yuvToArgb(128, 0, 0));
+        assertEquals(0xFFFFFFFF, YuvGridSampler.yuvToArgb(255, 0, 0));
+        // Strong Cr saturates red and pulls green down
+        int argb = YuvGridSampler.yuvToArgb(120, -28, 52);
+        assertEquals(192, (argb >> 16) & 0xFF);
+        assertEquals(93, (argb >> 8) & 0xFF);
+        assertEquals(70, argb & 0xFF);
+    }
+
+    // Frames where only the left third of the image pulses at 1.2 Hz, the rest is static, and the
+    // top row of tiles is saturated
+    static ByteBuffer[] makePulsingFrames(int width, int height, int rowStride, int frames, double fps) {
+        ByteBuffer[] result = new ByteBuffer[frames];
+        for (int f = 0; f < frames; f++) {
+            double pulse = 6 * Math.sin(2 * Math.PI * 1.2 * f / fps);
+            byte[] data = new byte[rowStride * height];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int v;
+                    if (y < height / 6) v = 255;
+                    else if (x < width / 3) v = (int) Math.round(120 + pulse);
+                    else v = 140;
+                    data[y * rowStride + x] = (byte) v;
+                }
+            }
+            result[f] = ByteBuffer.allocateDirect(data.length);
+            result[f].put(data);
+            result[f].rewind();
+        }
+        return result;
+    }
+
+    @Test
+    public void tileRoiTracking() {
+        int width = 320;
+        int height = 240;
+        int rowStride = width + ROW_PADDING;
+        ByteBuffer[] frames = makePulsingFrames(width, height, rowStride, 25, 30);
+
+        TileRoiTracker tracker = TileRoiTracker.createDefault(30);
+        double previous = Double.NaN;
+        int generation = tracker.getSelectionGeneration();
+        for (int i = 0; i < 300; i++) {
+            double value = tracker.process(frames[i % frames.length], width, height, rowStride);
+            if (tracker.getSelectionGeneration() != generation) {
+                // Moving off the brighter centre tiles mustn't step the output, only the pulse moves it
+                assertEquals(previous, value, 2.0);
+                generation = tracker.getSelectionGeneration();
+            }
+            previous = value;
+        }
+        assertTrue(generation > 0);
+        // Every selected tile should be in the pulsing, unsaturated region (left two columns, rows 1+)
+        for (int tile : tracker.getSelectedTiles()) {
+            assertTrue("tile " + tile, tile % 6 < 2 && tile / 6 >= 1);
+        }
+
+        for (int[] resolution : new int[][]{{320, 240}, {640, 480}}) {
+            int w = resolution[0];
+            int h = resolution[1];
+            ByteBuffer plane = makePlane(w, h, w + ROW_PADDING, 1, 9);
+            TileRoiTracker timed = TileRoiTracker.createDefault(30);
+            double sink = 0;
+            for (int i = 0; i < WARMUP_FRAMES; i++) {
+                sink += timed.process(plane, w, h, w + ROW_PADDING);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < TIMED_FRAMES; i++) {
+                sink += timed.process(plane, w, h, w + ROW_PADDING);
+            }
+            report("Tile ROI tracker 8/36", w, h, System.nanoTime() - start);
+            assertTrue(sink > 0);
+        }
+    }
+
+    // Ten seconds of frames at 30 fps through a fresh index, the reading after the last frame
+    static SignalQualityIndex.Reading feedQuality(double[] signal, double clippedFraction, double tileVariance) {
+        SignalQualityIndex index = new SignalQualityIndex(30);
+        SignalQualityIndex.Reading reading = new SignalQualityIndex.Reading();
+        for (double value : signal) {
+            assertSame(reading, index.update(value, clippedFraction, tileVariance, reading));
+        }
+        return reading;
+    }
+
+    @Test
+    public void signalQualityIndex() {
+        int frames = 300;
+        double[] pulse = new double[frames];
+        double[] noise = new double[frames];
+        Random random = new Random(7);
+        for (int i = 0; i < frames; i++) {
+            pulse[i] = 150 + 2 * Math.sin(2 * Math.PI * 1.2 * i / 30.0);   // 72 BPM, 2 luma levels
+            noise[i] = 150 + 2 * random.nextGaussian();
+        }
+
+        SignalQualityIndex.Reading clean = feedQuality(pulse, 0, 0);
+        assertTrue(clean.toString(), clean.isGood());
+        assertTrue(clean.toString(), clean.bandRatio > 0.9);
+
+        SignalQualityIndex.Reading clipped = feedQuality(pulse, 0.3, 0);
+        assertTrue(clipped.toString(), clipped.score < clean.score);
+        assertFalse(clipped.toString(), clipped.isGood());
+
+        SignalQualityIndex.Reading uneven = feedQuality(pulse, 0, 40 * 40);
+        assertTrue(uneven.toString(), uneven.score < clean.score);
+        assertFalse(uneven.toString(), uneven.isGood());
+
+        // White noise spreads its power up to Nyquist, most of it outside the pulse band
+        SignalQualityIndex.Reading broadband = feedQuality(noise, 0, 0);
+        assertTrue(broadband.toString(), broadband.score < SignalQualityIndex.GOOD_SCORE);
+        assertTrue(broadband.toString(), broadband.bandRatio < 0.5);
+
+        SignalQualityIndex timed = new SignalQualityIndex(30);
+        SignalQualityIndex.Reading reading = new SignalQualityIndex.Reading();
+        double sink = 0;
+        for (int i = 0; i < WARMUP_FRAMES * 10; i++) {
+            sink += timed.update(pulse[i % frames], 0, 0, reading).score;
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMED_FRAMES * 10; i++) {
+            sink += timed.update(pulse[i % frames], 0, 0, reading).score;
+        }
+        System.out.printf("Signal quality index: %.0f ns/frame%n",
+                (System.nanoTime() - start) / (double) (TIMED_FRAMES * 10));
+        assertTrue(sink > 0);
+    }
+
+    @Test
+    public void pipelineMonitorResolvesSubMillisecondAnalyze() {
+        // analyze() times of 200-400 us must not all collapse into one 1 ms bucket
+        FramePipelineMonitor.Histogram histogram = new FramePipelineMonitor.Histogram(10_000L, 50_000_000L);
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(200_000L + 200L * i);
+        }
+        assertEquals(0.30, histogram.percentileMs(50), 0.011);
+        assertEquals(0.39, histogram.percentileMs(95), 0.011);
+
+        FramePipelineMonitor monitor = new FramePipelineMonitor(30);
+        for (int i = 0; i < 100; i++) {
+            monitor.recordFrame(i * 33_333_333L, 0, 250_000L);
+        }
+        assertTrue(monitor.report(), monitor.report().contains("p50<=0.26ms"));
+    }
+}
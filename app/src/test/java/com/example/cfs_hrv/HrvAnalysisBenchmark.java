@@ -0,0 +1,803 @@
+package com.example.cfs_hrv;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Cost of the HRV analysis stages on synthetic recordings, run on the host JVM.
+ */
+public class HrvAnalysisBenchmark {
+
+    private static final int WARMUP_RUNS = 20;
+    private static final int TIMED_RUNS = 50;
+
+    /**
+     * A PPG-like trace with a slowly varying heart rate, baseline wander and noise
+     */
+    static List<HRVMeasurementSystem.DataPoint> makeRecording(double fps, double seconds,
+                                                             double heartRate, long seed) {
+        Random random = new Random(seed);
+        List<HRVMeasurementSystem.DataPoint> points = new ArrayList<>();
+        long timestampNs = 1_000_000_000L;
+        double phase = 0;
+        for (int i = 0; i < fps * seconds; i++) {
+            double t = i / fps;
+            double beatPeriod = 60.0 / (heartRate + 4 * Math.sin(2 * Math.PI * 0.1 * t));
+            phase += 1.0 / fps / beatPeriod;
+            double p = phase % 1.0;
+            double pulse = p < 0.15 ? -p / 0.15 : -1 + (p - 0.15) / 0.85;
+            double value = 130 + 6 * pulse + 3 * Math.sin(2 * Math.PI * 0.03 * t)
+                    + random.nextGaussian() * 0.5;
+            timestampNs += (long) (1e9 / fps);
+            points.add(HRVMeasurementSystem.DataPoint.fromSensor(value, timestampNs));
+        }
+        return points;
+    }
+
+    @Test
+    public void columnarAnalysisMatchesListAnalysis() {
+        List<HRVMeasurementSystem.DataPoint> recording = makeRecording(30, 120, 70, 1);
+        HRVMeasurementSystem.HRVMetrics fromList = HRVMeasurementSystem.analyzeHRV(recording, 30);
+        List<SignalBuffer> segments = UniformResampler.resample(SignalBuffer.fromDataPoints(recording), 30);
+        assertEquals(1, segments.size());
+        HRVMeasurementSystem.HRVMetrics fromBuffer = HRVMeasurementSystem.analyzeHRV(segments.get(0), 30);
+        assertEquals(fromList.heartRate, fromBuffer.heartRate, 0);
+        assertEquals(fromList.rmssd, fromBuffer.rmssd, 0);
+        assertEquals(fromList.validBeats, fromBuffer.validBeats);
+        assertEquals(70, fromList.heartRate, 3);
+    }
+
+    @Test
+    public void analysisCost() {
+        for (double fps : new double[]{30, 60}) {
+            List<HRVMeasurementSystem.DataPoint> recording = makeRecording(fps, 120, 70, 2);
+            SignalBuffer source = SignalBuffer.fromDataPoints(recording);
+
+            double sink = 0;
+            for (int i = 0; i < WARMUP_RUNS; i++) {
+                sink += HRVMeasurementSystem.analyzeHRV(source.copy(), fps).heartRate;
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < TIMED_RUNS; i++) {
+                sink += HRVMeasurementSystem.analyzeHRV(source.copy(), fps).heartRate;
+            }
+            System.out.printf("analyzeHRV 2 min @ %2.0f fps %10.0f us/run%n", fps,
+                    (System.nanoTime() - start) / 1e3 / TIMED_RUNS);
+            assertTrue(sink > 0);
+        }
+    }
+
+    // The original O(n * window) trough search, kept as the reference for the running-sum version
+    static List<Integer> legacyAdaptiveTroughs(double[] data, int n, double samplingRate) {
+        List<Integer> troughs = new ArrayList<>();
+        int minDistance = (int) (0.4 * samplingRate);
+        int windowSize = (int) (2.0 * samplingRate);
+
+        for (int i = windowSize; i < n - windowSize; i++) {
+            double localMean = 0;
+            double localStd = 0;
+            for (int j = i - windowSize / 2; j < i + windowSize / 2; j++) {
+                localMean += data[j];
+            }
+            localMean /= windowSize;
+            for (int j = i - windowSize / 2; j < i + windowSize / 2; j++) {
+                localStd += Math.pow(data[j] - localMean, 2);
+            }
+            localStd = Math.sqrt(localStd / windowSize);
+            double threshold = localMean - 0.2 * localStd;
+
+            if (data[i] < threshold && isLocalMinimum(data, n, i, minDistance)) {
+                if (troughs.isEmpty() || i - troughs.get(troughs.size() - 1) >= minDistance) {
+                    troughs.add(i);
+                }
+            }
+        }
+        return troughs;
+    }
+
+    private static boolean isLocalMinimum(double[] data, int n, int index, int minDistance) {
+        int searchRadius = Math.min(minDistance / 6, 5);
+        for (int i = Math.max(0, index - searchRadius); i <= Math.min(n - 1, index + searchRadius); i++) {
+            if (i != index && data[i] <= data[index]) return false;
+        }
+        return true;
+    }
+
+    @Test
+    public void slidingTroughSearch() {
+        for (double fps : new double[]{30, 29.97, 60}) {
+            for (int minutes : new int[]{2, 5, 20}) {
+                // The trough search runs on the preprocessed signal, analyzeHRV leaves it in the buffer
+                SignalBuffer signal = SignalBuffer.fromDataPoints(makeRecording(fps, minutes * 60, 70, minutes));
+                HRVMeasurementSystem.analyzeHRV(signal, fps);
+                double[] data = signal.toValueArray();
+
+                List<Integer> expected = legacyAdaptiveTroughs(data, data.length, fps);
+                List<Integer> actual = HRVMeasurementSystem.findAdaptiveTroughs(data, data.length, fps);
+                assertEquals(expected, actual);
+
+                int runs = minutes >= 20 ? 3 : 10;
+                long start = System.nanoTime();
+                for (int i = 0; i < runs; i++) expected = legacyAdaptiveTroughs(data, data.length, fps);
+                long legacyNs = (System.nanoTime() - start) / runs;
+                start = System.nanoTime();
+                for (int i = 0; i < runs; i++) actual = HRVMeasurementSystem.findAdaptiveTroughs(data, data.length, fps);
+                long slidingNs = (System.nanoTime() - start) / runs;
+                assertEquals(expected.size(), actual.size());
+
+                System.out.printf("trough search %2d min @ %5.2f fps  legacy %8.0f us  sliding %6.0f us  (%.0fx)%n",
+                        minutes, fps, legacyNs / 1e3, slidingNs / 1e3, (double) legacyNs / slidingNs);
+            }
+        }
+    }
+
+    @Test
+    public void butterworthBandpass() {
+        for (double fps : new double[]{30, 60}) {
+            ButterworthBandpass.Design design = ButterworthBandpass.design(fps, 0.5, 4.0);
+            assertSame(design, ButterworthBandpass.design(fps, 0.5, 4.0));
+            assertSame(design, ButterworthBandpass.design(fps + 1e-4, 0.5, 4.0));
+
+            // -3 dB at both edges, flat in the middle, 4th order roll-off outside
+            assertEquals(Math.sqrt(0.5), design.magnitudeAt(0.5), 0.02);
+            assertEquals(Math.sqrt(0.5), design.magnitudeAt(4.0), 0.02);
+            assertEquals(1.0, design.magnitudeAt(1.4), 0.02);
+            assertTrue(design.magnitudeAt(0.1) < 0.05);
+            assertTrue(design.magnitudeAt(12) < 0.15);
+
+            // Zero phase: a 1.2 Hz tone riding on a DC level keeps its timing and loses the offset
+            int n = (int) (fps * 60);
+            double[] data = new double[n];
+            for (int i = 0; i < n; i++) data[i] = 100 + Math.sin(2 * Math.PI * 1.2 * i / fps);
+            ButterworthBandpass.filtfilt(design, data, n);
+            double gain = design.magnitudeAt(1.2) * design.magnitudeAt(1.2);
+            for (int i = n / 4; i < 3 * n / 4; i++) {
+                assertEquals(gain * Math.sin(2 * Math.PI * 1.2 * i / fps), data[i], 0.01);
+            }
+
+            // Streaming over a whole array matches sample by sample
+            ButterworthBandpass perSample = new ButterworthBandpass(design);
+            ButterworthBandpass block = new ButterworthBandpass(design);
+            double[] streamed = new double[n];
+            for (int i = 0; i < n; i++) streamed[i] = 100 + Math.sin(i * 0.3);
+            double[] expected = new double[n];
+            for (int i = 0; i < n; i++) expected[i] = perSample.process(streamed[i]);
+            block.process(streamed, 0, n);
+            assertArrayEquals(expected, streamed, 0);
+
+            double[] samples = new double[(int) (fps * 120)];
+            for (int i = 0; i < samples.length; i++) samples[i] = Math.sin(i * 0.25);
+            for (int i = 0; i < WARMUP_RUNS; i++) block.process(samples, 0, samples.length);
+            long start = System.nanoTime();
+            for (int i = 0; i < TIMED_RUNS; i++) block.process(samples, 0, samples.length);
+            System.out.printf("biquad bandpass @ %2.0f fps %10.1f ns/sample%n", fps,
+                    (double) (System.nanoTime() - start) / TIMED_RUNS / samples.length);
+        }
+    }
+
+    @Test
+    public void streamingAnalysisTracksBatch() {
+        for (double fps : new double[]{30, 60}) {
+            List<HRVMeasurementSystem.DataPoint> recording = makeRecording(fps, 120, 72, 3);
+            HRVMeasurementSystem.HRVMetrics batch = HRVMeasurementSystem.analyzeHRV(recording, fps);
+
+            StreamingHRVAnalyzer streaming = new StreamingHRVAnalyzer(fps);
+            int[] beats = {0};
+            streaming.setListener((rr, accepted, running) -> beats[0]++);
+            long start = System.nanoTime();
+            for (HRVMeasurementSystem.DataPoint point : recording) {
+                streaming.add(point);
+            }
+            long elapsed = System.nanoTime() - start;
+            HRVMeasurementSystem.HRVMetrics live = streaming.getMetrics();
+
+            System.out.printf("streaming @ %2.0f fps %6.0f ns/sample  HR %.1f (batch %.1f)  RMSSD %.1f (batch %.1f)%n",
+                    fps, (double) elapsed / recording.size(), live.heartRate, batch.heartRate,
+                    live.rmssd, batch.rmssd);
+            assertEquals(batch.heartRate, live.heartRate, 2);
+            assertEquals(batch.rmssd, live.rmssd, 0.15 * batch.rmssd);
+            assertTrue(beats[0] >= live.validBeats);
+            assertTrue(live.validBeats > 0.8 * batch.validBeats);
+        }
+    }
+
+    @Test
+    public void streamingRecoversFromEarlyArtefact() {
+        // An extra beat right at the start, then a steady rhythm
+        double fps = 30;
+        List<HRVMeasurementSystem.DataPoint> recording = makeRecording(fps, 60, 60, 9);
+        StreamingHRVAnalyzer streaming = new StreamingHRVAnalyzer(fps);
+        int[] rejected = {0};
+        streaming.setListener((rr, accepted, running) -> {
+            if (!accepted) rejected[0]++;
+        });
+        long start = recording.get(0).timestamp;
+        for (HRVMeasurementSystem.DataPoint point : recording) {
+            double value = point.getChannel(HRVMeasurementSystem.Channel.LUMA);
+            long t = point.timestamp - start;
+            if (t > 2500 && t < 2650) value -= 8;   // A spurious trough midway through a beat
+            streaming.add(value, point.timestamp);
+        }
+        HRVMeasurementSystem.HRVMetrics live = streaming.getMetrics();
+        assertEquals(60, live.heartRate, 3);
+        assertTrue("rejected " + rejected[0], rejected[0] <= 5);
+        assertTrue(live.validBeats > 45);
+    }
+
+    @Test
+    public void resamplingWithGaps() {
+        // A ramp sampled with jitter, with one 400 ms hole in the middle
+        Random random = new Random(5);
+        SignalBuffer jittery = new SignalBuffer();
+        double t = 0;
+        while (t < 20_000) {
+            if (t < 10_000 || t > 10_400) {
+                jittery.add(0.01 * t, t);
+            }
+            t += 33.3 + random.nextGaussian() * 4;
+        }
+
+        List<SignalBuffer> segments = UniformResampler.resample(jittery, 30, UniformResampler.DEFAULT_MAX_GAP_MS);
+        assertEquals(2, segments.size());
+        for (SignalBuffer segment : segments) {
+            for (int i = 0; i < segment.size(); i++) {
+                // Linear interpolation reproduces a ramp exactly
+                assertEquals(0.01 * (segment.getTimestamp(0) + i * 1000.0 / 30), segment.getValue(i), 1e-9);
+                if (i > 0) {
+                    // The grid isn't rounded to whole milliseconds
+                    assertEquals(1000.0 / 30, segment.getTimestamp(i) - segment.getTimestamp(i - 1), 1e-6);
+                }
+            }
+        }
+        assertTrue(segments.get(0).getTimestamp(segments.get(0).size() - 1) <= 10_000);
+        assertTrue(segments.get(1).getTimestamp(0) > 10_400);
+
+        // Sensor timestamps keep their sub-millisecond part on the way in
+        SignalBuffer sensor = SignalBuffer.fromDataPoints(Collections.singletonList(
+                HRVMeasurementSystem.DataPoint.fromSensor(1.0, 1_234_567_891L)));
+        assertEquals(1234.567891, sensor.getTimestamp(0), 1e-9);
+
+        // The hole pulls the effective rate down but the analysis grid stays at the camera's rate
+        long[] timestampsNs = new long[1000];
+        int count = 0;
+        for (t = 0; t < 20_000; t += 33.3 + random.nextGaussian() * 4) {
+            if (t < 10_000 || t > 10_400) timestampsNs[count++] = Math.round(t * 1e6);
+        }
+        SamplingStats sampling = SamplingStats.fromTimestamps(timestampsNs, count);
+        assertTrue(sampling.effectiveRate < 29.7);
+        assertEquals(30, sampling.getAnalysisRate(), 0);
+
+        SignalBuffer longRecording = SignalBuffer.fromDataPoints(makeRecording(60, 20 * 60, 70, 6));
+        int samples = 0;
+        for (int i = 0; i < WARMUP_RUNS; i++) samples += UniformResampler.resample(longRecording, 60).get(0).size();
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMED_RUNS; i++) samples += UniformResampler.resample(longRecording, 60).get(0).size();
+        System.out.printf("resample 20 min @ 60 fps %10.1f ns/sample%n",
+                (double) (System.nanoTime() - start) / TIMED_RUNS / longRecording.size());
+        assertTrue(samples > 0);
+    }
+
+    @Test
+    public void subSampleBeatTiming() {
+        // Analytic minimum of the derivative agrees with the old 0.01 step scan
+        Random random = new Random(7);
+        for (int trial = 0; trial < 200; trial++) {
+            HeartBeatAnalyzer.Cubic poly = new HeartBeatAnalyzer.Cubic();
+            poly.a = random.nextGaussian();
+            poly.b = random.nextGaussian() * 5;
+            poly.c = random.nextGaussian() * 10;
+            double length = 4 + random.nextInt(12);
+            double scanX = 0;
+            double scanMin = Double.POSITIVE_INFINITY;
+            for (double x = 0; x <= length; x += 0.01) {
+                if (poly.derivative(x) < scanMin) {
+                    scanMin = poly.derivative(x);
+                    scanX = x;
+                }
+            }
+            double analyticX = HeartBeatAnalyzer.steepestDescentX(poly, length);
+            assertTrue(poly.derivative(analyticX) <= scanMin + 1e-9);
+            assertEquals(scanX, analyticX, 0.011);
+        }
+
+        // Beats at fractional sample positions: refined times should beat whole-sample troughs
+        double fps = 30;
+        double period = 0.83;  // Not a whole number of frames
+        int n = (int) (fps * 60);
+        double[] data = new double[n];
+        for (int i = 0; i < n; i++) {
+            // Smooth pulse: a fast fall into the trough, a slower recovery
+            double p = 2 * Math.PI * ((i / fps / period) % 1.0);
+            data[i] = Math.cos(p) + 0.4 * Math.cos(2 * p - 1.2) + 0.15 * Math.cos(3 * p - 2.0);
+        }
+        List<Integer> troughs = HRVMeasurementSystem.findAdaptiveTroughs(data, n, fps);
+        double[] beats = HeartBeatAnalyzer.refineBeatTimes(data, n, troughs, fps, 0.25);
+        double troughError = 0;
+        double beatError = 0;
+        for (int k = 1; k < troughs.size(); k++) {
+            double expected = period * fps;
+            troughError += Math.abs(troughs.get(k) - troughs.get(k - 1) - expected);
+            beatError += Math.abs(beats[k] - beats[k - 1] - expected);
+        }
+        troughError /= troughs.size() - 1;
+        beatError /= troughs.size() - 1;
+        System.out.printf("beat interval error: whole-sample troughs %.3f frames, refined %.3f frames%n",
+                troughError, beatError);
+        assertTrue(beatError < troughError);
+
+        for (int i = 0; i < WARMUP_RUNS; i++) HeartBeatAnalyzer.refineBeatTimes(data, n, troughs, fps, 0.25);
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMED_RUNS; i++) HeartBeatAnalyzer.refineBeatTimes(data, n, troughs, fps, 0.25);
+        System.out.printf("refineBeatTimes %10.0f ns/beat%n",
+                (double) (System.nanoTime() - start) / TIMED_RUNS / troughs.size());
+    }
+
+    @Test
+    public void spectralBands() {
+        // FFT plan round trip
+        FftPlan plan = FftPlan.forSize(256);
+        Random random = new Random(3);
+        double[] re = new double[256];
+        double[] im = new double[256];
+        double[] original = new double[256];
+        for (int i = 0; i < 256; i++) original[i] = re[i] = random.nextGaussian();
+        plan.forward(re, im);
+        plan.inverse(re, im);
+        for (int i = 0; i < 256; i++) {
+            assertEquals(original[i], re[i], 1e-9);
+            assertEquals(0, im[i], 1e-9);
+        }
+        assertSame(plan, FftPlan.forSize(256));
+
+        // Five minutes of beats modulated at 0.1 Hz (LF, 800 ms^2) and 0.25 Hz (HF, 200 ms^2)
+        List<Long> rr = new ArrayList<>();
+        double t = 0;
+        while (t < 300) {
+            double interval = 850 + 40 * Math.sin(2 * Math.PI * 0.1 * t) + 20 * Math.sin(2 * Math.PI * 0.25 * t);
+            rr.add(Math.round(interval));
+            t += interval / 1000;
+        }
+
+        HRVSpectrum.Bands lomb = HRVSpectrum.lombScargle(rr);
+        HRVSpectrum.Bands fft = HRVSpectrum.fft(rr);
+        System.out.println("Lomb-Scargle " + lomb);
+        System.out.println("FFT          " + fft);
+        for (HRVSpectrum.Bands bands : new HRVSpectrum.Bands[]{lomb, fft}) {
+            assertEquals(800, bands.lfPower, 160);
+            assertEquals(200, bands.hfPower, 40);
+            assertEquals(4.0, bands.lfHfRatio, 0.8);
+            assertTrue(bands.vlfPower < 0.1 * bands.lfPower);
+        }
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            HRVSpectrum.lombScargle(rr);
+            HRVSpectrum.fft(rr);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMED_RUNS; i++) HRVSpectrum.lombScargle(rr);
+        System.out.printf("Lomb-Scargle, %d beats %10.3f ms%n", rr.size(),
+                (System.nanoTime() - start) / 1e6 / TIMED_RUNS);
+        start = System.nanoTime();
+        for (int i = 0; i < TIMED_RUNS; i++) HRVSpectrum.fft(rr);
+        System.out.printf("FFT, %d beats          %10.3f ms%n", rr.size(),
+                (System.nanoTime() - start) / 1e6 / TIMED_RUNS);
+    }
+
+    @Test
+    public void concurrentAnalysesAgree() throws Exception {
+        List<List<HRVMeasurementSystem.DataPoint>> recordings = new ArrayList<>();
+        List<HRVAnalysisResult> sequential = new ArrayList<>();
+        for (int r = 0; r < 16; r++) {
+            recordings.add(makeRecording(30, 120, 55 + 3 * r, 100 + r));
+            sequential.add(HRVMeasurementSystem.analyze(recordings.get(r)));
+        }
+
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 3; round++) {
+                List<Future<HRVAnalysisResult>> futures = new ArrayList<>();
+                long start = System.nanoTime();
+                for (List<HRVMeasurementSystem.DataPoint> recording : recordings) {
+                    futures.add(pool.submit(() -> HRVMeasurementSystem.analyze(recording)));
+                }
+                for (int r = 0; r < recordings.size(); r++) {
+                    HRVAnalysisResult expected = sequential.get(r);
+                    HRVAnalysisResult actual = futures.get(r).get();
+                    assertEquals(expected.getTroughs(), actual.getTroughs());
+                    assertEquals(expected.getRRIntervals(), actual.getRRIntervals());
+                    assertEquals(expected.getCleanRRIntervals(), actual.getCleanRRIntervals());
+                    assertEquals(expected.getMetrics().rmssd, actual.getMetrics().rmssd, 0);
+                    assertEquals(expected.getMetrics().lfHfRatio, actual.getMetrics().lfHfRatio, 0);
+                }
+                System.out.printf("%d recordings on %d threads %10.1f ms%n", recordings.size(), threads,
+                        (System.nanoTime() - start) / 1e6);
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        HRVAnalysisResult result = sequential.get(0);
+        assertEquals(result.getCleanRRIntervals().size(), result.getMetrics().validBeats);
+        assertEquals(result.getRRIntervals().size(),
+                result.getCleanRRIntervals().size() + result.getRejectedCount());
+        assertEquals(result.getRRIntervals().size() + 1, result.getTroughs().size());
+    }
+
+    @Test
+    public void troughsMapBackToFrames() {
+        // Drop half a second of frames so the resampled grid and the frame indices part ways
+        List<HRVMeasurementSystem.DataPoint> frames = makeRecording(30, 60, 70, 13);
+        frames.subList(900, 915).clear();
+        HRVAnalysisResult result = HRVMeasurementSystem.analyze(frames);
+
+        boolean[] marks = result.markTroughFrames(frames);
+        List<Double> times = result.getTroughTimestamps();
+        int marked = 0;
+        int misplacedByIndex = 0;
+        for (int t = 0, f = 0; t < times.size(); t++) {
+            while (!marks[f]) f++;
+            assertEquals(times.get(t), frames.get(f).timestampNanos / 1e6, 17);
+            if (result.getTroughs().get(t) != f) misplacedByIndex++;
+            marked++;
+            f++;
+        }
+        assertEquals(result.getTroughs().size(), marked);
+        assertTrue(misplacedByIndex > 0);
+    }
+
+    @Test
+    public void rrCleaningRejectsArtefacts() {
+        // Ten minutes of sinus rhythm with a step from 75 to 95 BPM halfway, plus planted artefacts
+        Random random = new Random(11);
+        int n = 700;
+        long[] rr = new long[n];
+        RRIntervalCleaner.Reason[] planted = new RRIntervalCleaner.Reason[n];
+        for (int i = 0; i < n; i++) {
+            double base = i < n / 2 ? 800 : 630;
+            rr[i] = Math.round(base + 25 * Math.sin(2 * Math.PI * i / 4.5) + random.nextGaussian() * 8);
+            planted[i] = RRIntervalCleaner.Reason.ACCEPTED;
+        }
+        for (int i = 20; i < n; i += 37) {
+            switch ((i / 37) % 3) {
+                case 0: rr[i] *= 2; break;                       // Missed beat
+                case 1: rr[i] /= 2; break;                       // Extra beat, often still in range
+                default: rr[i] = 120; planted[i] = RRIntervalCleaner.Reason.OUT_OF_RANGE; break;
+            }
+            if (planted[i] == RRIntervalCleaner.Reason.ACCEPTED) planted[i] = RRIntervalCleaner.Reason.MEDIAN_OUTLIER;
+        }
+
+        RRIntervalCleaner.Reason[] reasons = RRIntervalCleaner.clean(rr, n);
+        int missedArtefacts = 0;
+        int lostBeats = 0;
+        for (int i = 0; i < n; i++) {
+            boolean artefact = planted[i] != RRIntervalCleaner.Reason.ACCEPTED;
+            if (artefact && reasons[i] == RRIntervalCleaner.Reason.ACCEPTED) missedArtefacts++;
+            if (!artefact && reasons[i] != RRIntervalCleaner.Reason.ACCEPTED) lostBeats++;
+            if (planted[i] == RRIntervalCleaner.Reason.OUT_OF_RANGE) assertEquals(planted[i], reasons[i]);
+        }
+        System.out.printf("RR cleaning: %d artefacts missed, %d good beats rejected of %d%n",
+                missedArtefacts, lostBeats, n);
+        assertEquals(0, missedArtefacts);
+        // The rate step costs at most a few beats before the tracker follows it
+        assertTrue(lostBeats < 10);
+        for (int i = n / 2 + 10; i < n; i++) {
+            if (planted[i] == RRIntervalCleaner.Reason.ACCEPTED) {
+                assertEquals(RRIntervalCleaner.Reason.ACCEPTED, reasons[i]);
+            }
+        }
+
+        for (int i = 0; i < WARMUP_RUNS; i++) RRIntervalCleaner.clean(rr, n);
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMED_RUNS; i++) RRIntervalCleaner.clean(rr, n);
+        System.out.printf("RR cleaning %10.0f ns/beat%n", (double) (System.nanoTime() - start) / TIMED_RUNS / n);
+    }
+
+    // Reference pair scan for sample entropy
+    private static double naiveSampleEntropy(long[] x, int n, int m, double r) {
+        long matchesM = 0;
+        long matchesM1 = 0;
+        for (int i = 0; i < n - m; i++) {
+            for (int j = i + 1; j < n - m; j++) {
+                boolean match = true;
+                for (int k = 0; k < m && match; k++) match = Math.abs(x[i + k] - x[j + k]) <= r;
+                if (!match) continue;
+                matchesM++;
+                if (Math.abs(x[i + m] - x[j + m]) <= r) matchesM1++;
+            }
+        }
+        return matchesM == 0 || matchesM1 == 0 ? 0 : -Math.log((double) matchesM1 / matchesM);
+    }
+
+    @Test
+    public void nonlinearMetrics() {
+        Random random = new Random(5);
+        int n = 1000;
+        long[] rr = new long[n];
+        List<Long> white = new ArrayList<>();
+        List<Long> brown = new ArrayList<>();
+        double walk = 0;
+        for (int i = 0; i < n; i++) {
+            rr[i] = Math.round(800 + 40 * random.nextGaussian());
+            white.add(rr[i]);
+            walk += random.nextGaussian() * 5;
+            brown.add(Math.round(800 + walk));
+        }
+
+        double r = 0.2 * 40;
+        assertEquals(naiveSampleEntropy(rr, n, 2, r), HRVNonlinear.sampleEntropy(rr, n, 2, r, new long[n]), 1e-12);
+
+        HRVNonlinear.Metrics whiteMetrics = HRVNonlinear.compute(white);
+        HRVNonlinear.Metrics brownMetrics = HRVNonlinear.compute(brown);
+        System.out.println("white noise " + whiteMetrics);
+        System.out.println("random walk " + brownMetrics);
+        // Uncorrelated beats: alpha1 0.5, SD1 == SD2 == SD; integrated noise: alpha1 1.5
+        assertEquals(0.5, whiteMetrics.dfaAlpha1, 0.15);
+        assertEquals(1.5, brownMetrics.dfaAlpha1, 0.15);
+        assertEquals(40, whiteMetrics.sd1, 4);
+        assertEquals(40, whiteMetrics.sd2, 4);
+        assertTrue(brownMetrics.sd2 > 5 * brownMetrics.sd1);
+        assertTrue(whiteMetrics.sampleEntropy > brownMetrics.sampleEntropy);
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            HRVNonlinear.compute(white);
+            naiveSampleEntropy(rr, n, 2, r);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMED_RUNS; i++) HRVNonlinear.compute(white);
+        long sorted = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < TIMED_RUNS; i++) naiveSampleEntropy(rr, n, 2, r);
+        long naive = System.nanoTime() - start;
+        System.out.printf("nonlinear metrics, %d beats %8.3f ms (pair scan SampEn alone %8.3f ms)%n", n,
+                sorted / 1e6 / TIMED_RUNS, naive / 1e6 / TIMED_RUNS);
+    }
+
+    /**
+     * RR series with respiratory modulation and beat to beat noise
+     */
+    private static long[] makeRRSeries(int n, Random random) {
+        long[] rr = new long[n];
+        double phase = random.nextDouble() * 2 * Math.PI;
+        double t = 0;
+        for (int i = 0; i < n; i++) {
+            rr[i] = Math.round(850 + 30 * Math.sin(2 * Math.PI * 0.25 * t + phase) + 20 * random.nextGaussian());
+            t += rr[i] / 1000.0;
+        }
+        return rr;
+    }
+
+    @Test
+    public void rmssdConvergenceStopsEarly() {
+        Random random = new Random(23);
+        RmssdConvergence reference = new RmssdConvergence();
+        long[] longRun = makeRRSeries(200_000, random);
+        for (int i = 1; i < longRun.length; i++) reference.add(longRun[i] - longRun[i - 1]);
+        double trueRmssd = reference.getRmssd();
+
+        int trials = 400;
+        int fullBeats = 140;   // About two minutes
+        int covered = 0;
+        int withinTolerance = 0;
+        int[] stopBeats = new int[trials];
+        RmssdConvergence convergence = new RmssdConvergence();
+        for (int trial = 0; trial < trials; trial++) {
+            long[] rr = makeRRSeries(fullBeats, random);
+            convergence.reset();
+            stopBeats[trial] = fullBeats;
+            boolean stopped = false;
+            for (int i = 1; i < fullBeats; i++) {
+                convergence.add(rr[i] - rr[i - 1]);
+                if (!stopped && convergence.hasConverged(0.15)) {
+                    stopped = true;
+                    stopBeats[trial] = i + 1;
+                    if (Math.abs(convergence.getRmssd() - trueRmssd) <= 0.20 * trueRmssd) withinTolerance++;
+                }
+            }
+            if (!stopped && Math.abs(convergence.getRmssd() - trueRmssd) <= 0.20 * trueRmssd) withinTolerance++;
+            if (Math.abs(convergence.getRmssd() - trueRmssd) <= convergence.getHalfWidth()) covered++;
+        }
+        Arrays.sort(stopBeats);
+        System.out.printf("RMSSD %.1f ms: 95%% interval covered %.1f%% at %d beats, median stop at %d beats, "
+                        + "%.1f%% of early estimates within 20%%%n", trueRmssd, 100.0 * covered / trials, fullBeats,
+                stopBeats[trials / 2], 100.0 * withinTolerance / trials);
+        assertTrue(covered >= 0.90 * trials);
+        assertTrue(stopBeats[trials / 2] < fullBeats);
+        assertTrue(stopBeats[0] >= RmssdConvergence.MIN_DIFFERENCES);
+        assertTrue(withinTolerance >= 0.90 * trials);
+    }
+
+    @Test
+    public void savitzkyGolayKernels() {
+        double[] classic = {-3.0 / 35, 12.0 / 35, 17.0 / 35, 12.0 / 35, -3.0 / 35};
+        assertArrayEquals(classic, SavitzkyGolayFilter.coefficients(5, 2, 0), 1e-12);
+        assertArrayEquals(new double[]{-0.2, -0.1, 0, 0.1, 0.2}, SavitzkyGolayFilter.coefficients(5, 2, 1), 1e-12);
+
+        // A cubic fit reproduces a cubic exactly, edges included, and so do its derivatives
+        double fps = 60;
+        int n = (int) (fps * 120);
+        double[] cubic = new double[n];
+        for (int i = 0; i < n; i++) {
+            double t = i / fps - 60;
+            cubic[i] = 0.001 * t * t * t - 0.05 * t * t + 2 * t + 7;
+        }
+        double[] out = new double[n];
+        for (int i : new int[]{0, 3, n / 2, n - 1}) {
+            double t = i / fps - 60;
+            SavitzkyGolayFilter.filter(cubic, n, out, 11, 3, 0, 1 / fps);
+            assertEquals(cubic[i], out[i], 1e-6);
+            SavitzkyGolayFilter.filter(cubic, n, out, 11, 3, 1, 1 / fps);
+            assertEquals(0.003 * t * t - 0.1 * t + 2, out[i], 1e-6);
+            SavitzkyGolayFilter.filter(cubic, n, out, 11, 3, 2, 1 / fps);
+            assertEquals(0.006 * t - 0.1, out[i], 1e-6);
+        }
+
+        // Two minutes at 60 fps: primitive path against the boxed list path
+        SignalBuffer signal = SignalBuffer.fromDataPoints(makeRecording(fps, 120, 70, 31));
+        double[] values = signal.toValueArray();
+        List<Double> boxed = new ArrayList<>(n);
+        for (double v : values) boxed.add(v);
+        List<Double> listResult = SavitzkyGolayFilter.smooth(boxed, 5, 2);
+        SavitzkyGolayFilter.smooth(values, values.length, out, 5, 2);
+        for (int i = 0; i < values.length; i++) assertEquals(listResult.get(i), out[i], 0);
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            SavitzkyGolayFilter.smooth(boxed, 5, 2);
+            SavitzkyGolayFilter.filter(values, values.length, out, 9, 3, 1, 1 / fps);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMED_RUNS; i++) SavitzkyGolayFilter.smooth(boxed, 5, 2);
+        long listNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < TIMED_RUNS; i++) SavitzkyGolayFilter.smooth(values, values.length, out, 5, 2);
+        long arrayNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < TIMED_RUNS; i++) SavitzkyGolayFilter.filter(values, values.length, out, 9, 3, 1, 1 / fps);
+        long derivativeNanos = System.nanoTime() - start;
+        System.out.printf("SG(5,2) on %d samples: list %8.3f ms, double[] %8.3f ms; SG(9,3) first derivative %8.3f ms%n",
+                values.length, listNanos / 1e6 / TIMED_RUNS, arrayNanos / 1e6 / TIMED_RUNS,
+                derivativeNanos / 1e6 / TIMED_RUNS);
+    }
+
+    @Test
+    public void matchedFilterCrossover() {
+        Random random = new Random(37);
+        double[] signal = new double[60 * 120];
+        for (int i = 0; i < signal.length; i++) signal[i] = random.nextGaussian();
+        double[] direct = new double[signal.length];
+        double[] fft = new double[signal.length];
+
+        // Both paths agree, odd and even templates, short signals included
+        for (int m : new int[]{4, 15, 64, 101}) {
+            double[] template = MatchedFilter.ppgTemplate(m);
+            for (int n : new int[]{m, 3 * m + 7, signal.length}) {
+                MatchedFilter.correlateDirect(signal, n, template, direct);
+                MatchedFilter.correlateFft(signal, n, template, fft);
+                for (int i = 0; i < n; i++) assertEquals(direct[i], fft[i], 1e-9);
+            }
+        }
+        assertSame(MatchedFilter.ppgTemplate(15), MatchedFilter.ppgTemplate(15));
+
+        // Streaming output lags the batch by getDelay() samples
+        double[] template = MatchedFilter.ppgTemplate(15);
+        MatchedFilter.correlateDirect(signal, signal.length, template, direct);
+        MatchedFilter.Streaming streaming = new MatchedFilter.Streaming(template);
+        for (int c = 0; c < signal.length; c++) {
+            double value = streaming.add(signal[c]);
+            int i = c - streaming.getDelay();
+            if (i >= 0) assertEquals(direct[i], value, 1e-9);
+        }
+
+        System.out.println("correlation of 2 minutes at 60 fps, direct vs FFT (ms)");
+        for (int m : new int[]{8, 16, 32, 48, 64, 128, 256}) {
+            double[] t = MatchedFilter.ppgTemplate(m);
+            for (int i = 0; i < 10 * WARMUP_RUNS; i++) {
+                MatchedFilter.correlateDirect(signal, signal.length, t, direct);
+                MatchedFilter.correlateFft(signal, signal.length, t, fft);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < TIMED_RUNS; i++) MatchedFilter.correlateDirect(signal, signal.length, t, direct);
+            long directNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            for (int i = 0; i < TIMED_RUNS; i++) MatchedFilter.correlateFft(signal, signal.length, t, fft);
+            long fftNanos = System.nanoTime() - start;
+            System.out.printf("  template %3d  direct %7.3f  fft %7.3f%n", m,
+                    directNanos / 1e6 / TIMED_RUNS, fftNanos / 1e6 / TIMED_RUNS);
+        }
+    }
+
+    @Test
+    public void pulsePeaksMatchBoxedPath() {
+        // 72 BPM at 60 fps with noise, through the double[] chain and the List overloads it replaced
+        Random random = new Random(3);
+        List<Double> raw = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            raw.add(Math.sin(2 * Math.PI * 1.2 * i / 60.0) + 0.2 * random.nextGaussian());
+        }
+        List<Double> smoothed = SavitzkyGolayFilter.smooth(raw, 5, 2);
+        List<Double> matched = MatchedFilter.correlate(smoothed, MatchedFilter.generateSimplePPGTemplate(15));
+        double mean = matched.stream().mapToDouble(Double::doubleValue).average().orElse(0);
+        double stdDev = Math.sqrt(matched.stream().mapToDouble(v -> (v - mean) * (v - mean)).sum() / matched.size());
+        List<Integer> boxed = PeakDetector.detectPeaks(matched, mean + stdDev * 0.5, 30);
+
+        List<Integer> peaks = PeakDetector.detectPulsePeaks(raw);
+        assertEquals(boxed, peaks);
+        assertEquals(60, peaks.size());
+    }
+
+    @Test
+    public void earlyStoppedRecordingMatchesFullLength() {
+        double fps = 30;
+        double tolerance = 0.15;
+        // The stop rule only bounds the interval at +/-15%; the early RMSSD itself lands much closer
+        double accuracy = 0.06;
+        long minDurationMs = 45000;
+        for (long seed = 41; seed < 45; seed++) {
+            List<HRVMeasurementSystem.DataPoint> recording = makeRecording(fps, 120, 65, seed);
+            StreamingHRVAnalyzer streaming = new StreamingHRVAnalyzer(fps);
+            long start = recording.get(0).timestamp;
+            int stop = recording.size();
+            for (int i = 0; i < recording.size(); i++) {
+                HRVMeasurementSystem.DataPoint point = recording.get(i);
+                streaming.add(point);
+                if (point.timestamp - start >= minDurationMs && streaming.hasConverged(tolerance)) {
+                    stop = i + 1;
+                    break;
+                }
+            }
+            double full = HRVMeasurementSystem.analyze(recording, fps).getMetrics().rmssd;
+            double early = HRVMeasurementSystem.analyze(recording.subList(0, stop), fps).getMetrics().rmssd;
+            System.out.printf("early stop at %5.1f s: RMSSD %.1f ms (full length %.1f ms, %+.1f%%)%n",
+                    stop / fps, early, full, 100 * (early - full) / full);
+            assertTrue(stop < recording.size());
+            assertEquals(full, early, accuracy * full);
+        }
+    }
+
+    @Test
+    public void pipelineStagesAreTimedAndSwappable() {
+        List<HRVMeasurementSystem.DataPoint> recording = makeRecording(30, 120, 70, 21);
+        SignalBuffer source = UniformResampler.resample(SignalBuffer.fromDataPoints(recording), 30).get(0);
+
+        HRVPipeline standard = HRVPipeline.standardBuilder().build();
+        HRVAnalysisResult expected = HRVMeasurementSystem.analyze(source.copy(), 30);
+        HRVAnalysisResult actual = standard.run(source.copy(), 30);
+        assertEquals(expected.getRRIntervals(), actual.getRRIntervals());
+        assertEquals(expected.getMetrics().rmssd, actual.getMetrics().rmssd, 0);
+        assertEquals(expected.getMetrics().dfaAlpha1, actual.getMetrics().dfaAlpha1, 0);
+
+        // A/B a narrower band-pass, and drop the metrics this comparison doesn't need
+        HRVPipeline narrow = HRVPipeline.standardBuilder()
+                .replace("bandpass", PipelineStages.bandpass(0.7, 3.0))
+                .remove("spectral")
+                .remove("nonlinear")
+                .build();
+        HRVMeasurementSystem.HRVMetrics narrowMetrics = narrow.run(source.copy(), 30).getMetrics();
+        assertEquals(70, narrowMetrics.heartRate, 3);
+        assertEquals(0, narrowMetrics.lfPower, 0);
+
+        HRVPipeline savitzkyGolay = HRVPipeline.standardBuilder()
+                .replace("smooth", PipelineStages.savitzkyGolay(7, 2))
+                .build();
+        assertEquals(70, savitzkyGolay.run(source.copy(), 30).getMetrics().heartRate, 3);
+
+        standard.resetStats();
+        for (int i = 0; i < TIMED_RUNS; i++) standard.run(source.copy(), 30);
+        for (HRVPipeline.StageStats stats : standard.getStageStats()) {
+            assertEquals(TIMED_RUNS, stats.getCalls());
+            assertTrue(stats.getNanos() > 0);
+        }
+        assertEquals(8, standard.getStageStats().size());
+        System.out.println(standard.report());
+    }
+}
@@ -0,0 +1,229 @@
+package com.example.cfs_hrv;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Records a synthetic finger-over-lens clip to disk, then replays it through the same frame
+ * processing and HRV analysis the app uses. Prints the end-to-end replay throughput.
+ */
+public class ReplayPipelineBenchmark {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final double FPS = 30;
+    private static final int SECONDS = 60;
+    private static final double HEART_RATE_BPM = 72;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Sharp systolic dip then a slow recovery, roughly what a fingertip PPG looks like in luma
+    static double pulseShape(double phase) {
+        return phase < 0.15 ? -phase / 0.15 : -1 + (phase - 0.15) / 0.85;
+    }
+
+    static File recordClip(File file) throws IOException {
+        byte[] data = new byte[WIDTH * HEIGHT];
+        ByteBuffer plane = ByteBuffer.wrap(data);
+        long frameIntervalNs = (long) (1e9 / FPS);
+        double beatsPerFrame = HEART_RATE_BPM / 60.0 / FPS;
+        try (ReplayFrameSource.Writer writer = new ReplayFrameSource.Writer(file, WIDTH, HEIGHT)) {
+            for (int f = 0; f < SECONDS * FPS; f++) {
+                double phase = (f * beatsPerFrame) % 1.0;
+                int level = (int) Math.round(130 + 12 * pulseShape(phase));
+                for (int y = 0; y < HEIGHT; y++) {
+                    for (int x = 0; x < WIDTH; x++) {
+                        int v;
+                        if (y < HEIGHT / 6) v = 255;            // Saturated band at the top
+                        else if (x < WIDTH / 2) v = level;      // Perfused region
+                        else v = 140;                           // Flat, unperfused
+                        data[y * WIDTH + x] = (byte) v;
+                    }
+                }
+                writer.write(1_000_000_000L + f * frameIntervalNs, plane, WIDTH);
+            }
+        }
+        return file;
+    }
+
+    @Test
+    public void replayRoundTripsFrames() throws IOException {
+        File clip = recordClip(folder.newFile("clip.ppgy"));
+        ReplayFrameSource source = new ReplayFrameSource(clip, ReplayFrameSource.Pace.AS_FAST_AS_POSSIBLE);
+        long[] lastTimestamp = {0};
+        int[] topLeft = {0};
+        source.start(frame -> {
+            assertEquals(WIDTH, frame.width);
+            assertEquals(HEIGHT, frame.height);
+            assertFalse(frame.hasChroma());
+            lastTimestamp[0] = frame.timestampNanos;
+            topLeft[0] = frame.yBuffer.get(0) & 0xFF;
+        });
+        assertEquals((int) (SECONDS * FPS), source.getFramesDelivered());
+        assertEquals(1_000_000_000L + (long) (SECONDS * FPS - 1) * (long) (1e9 / FPS), lastTimestamp[0]);
+        assertEquals(255, topLeft[0]);
+    }
+
+    @Test
+    public void rawCaptureReplaysToSameMetrics() throws IOException {
+        File clip = recordClip(folder.newFile("clip.ppgy"));
+        File capture = folder.newFile("capture.ppgt");
+
+        PpgFrameProcessor processor = new PpgFrameProcessor(FPS);
+        TileSumRecorder recorder = TileSumRecorder.forTracker(capture, processor.getRoiTracker(), FPS,
+                SECONDS * 1000L);
+        processor.startRecording(recorder);
+        new ReplayFrameSource(clip, ReplayFrameSource.Pace.AS_FAST_AS_POSSIBLE).start(processor);
+        List<HRVMeasurementSystem.DataPoint> live = processor.stopRecording();
+        recorder.close();
+        assertEquals(live.size(), recorder.getFrameCount());
+        assertEquals(0, recorder.getDroppedFrames());
+
+        List<HRVMeasurementSystem.DataPoint> replayed = TileSumRecorder.readDataPoints(capture);
+        assertEquals(live.size(), replayed.size());
+        for (int i = 0; i < live.size(); i++) {
+            assertEquals(live.get(i).timestampNanos, replayed.get(i).timestampNanos);
+            assertEquals(live.get(i).value, replayed.get(i).value, 1e-4);
+        }
+        HRVMeasurementSystem.HRVMetrics liveMetrics = HRVMeasurementSystem.analyzeHRV(live);
+        HRVMeasurementSystem.HRVMetrics replayMetrics = HRVMeasurementSystem.analyzeHRV(replayed);
+        assertEquals(liveMetrics.heartRate, replayMetrics.heartRate, 0.5);
+
+        // The tile sums are there to re-derive the signal from a different ROI
+        try (TileSumRecorder.Reader reader = new TileSumRecorder.Reader(capture)) {
+            assertEquals(36, reader.getTileCount());
+            assertTrue(reader.next());
+            assertEquals(255.0, reader.getTileMean(new int[]{0, 1, 2, 3, 4, 5}), 1e-9);
+            assertEquals(140.0, reader.getTileMean(new int[]{35}), 1e-9);
+        }
+    }
+
+    @Test
+    public void replayThroughHrvPipeline() throws IOException {
+        File clip = recordClip(folder.newFile("clip.ppgy"));
+
+        for (int run = 0; run < 3; run++) {
+            PpgFrameProcessor processor = new PpgFrameProcessor(FPS);
+            ReplayFrameSource source = new ReplayFrameSource(clip, ReplayFrameSource.Pace.AS_FAST_AS_POSSIBLE);
+            processor.startRecording();
+
+            long start = System.nanoTime();
+            source.start(processor);
+            long framesDone = System.nanoTime();
+            List<HRVMeasurementSystem.DataPoint> recording = processor.stopRecording();
+            HRVMeasurementSystem.HRVMetrics metrics = HRVMeasurementSystem.analyzeHRV(recording);
+            long analysisDone = System.nanoTime();
+
+            int frames = source.getFramesDelivered();
+            System.out.printf("replay %dx%d, %d frames: %.0f frames/s, frames %.1f ms, analysis %.1f ms%n",
+                    WIDTH, HEIGHT, frames, frames / ((framesDone - start) / 1e9),
+                    (framesDone - start) / 1e6, (analysisDone - framesDone) / 1e6);
+
+            assertEquals(frames, recording.size());
+            assertEquals(FPS, metrics.sampling.effectiveRate, 0.5);
+            assertEquals(HEART_RATE_BPM, metrics.heartRate, 6);
+        }
+    }
+
+    @Test
+    public void batchReprocessesStoredCaptures() throws Exception {
+        File captures = folder.newFolder(BatchReprocessor.CAPTURE_DIRECTORY);
+        TileRoiTracker tracker = TileRoiTracker.createDefault(FPS);
+        List<List<HRVMeasurementSystem.DataPoint>> recordings = new ArrayList<>();
+        for (int r = 0; r < 12; r++) {
+            List<HRVMeasurementSystem.DataPoint> points = HrvAnalysisBenchmark.makeRecording(FPS, 120, 60 + 2 * r, r);
+            File file = new File(captures, String.format("20260101-%06d", r) + BatchReprocessor.RECORDING_SUFFIX);
+            try (TileSumRecorder recorder = TileSumRecorder.forTracker(file, tracker, FPS, 120_000)) {
+                for (HRVMeasurementSystem.DataPoint point : points) recorder.append(point, tracker);
+            }
+            recordings.add(TileSumRecorder.readDataPoints(file));
+        }
+        try (FileOutputStream out = new FileOutputStream(new File(captures, "broken" + BatchReprocessor.RECORDING_SUFFIX))) {
+            out.write(new byte[]{1, 2, 3});
+        }
+
+        List<File> files = BatchReprocessor.findRecordings(captures);
+        assertEquals(13, files.size());
+        AtomicInteger progress = new AtomicInteger();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            long start = System.nanoTime();
+            List<BatchReprocessor.RecordingResult> results = new BatchReprocessor(pool)
+                    .reprocess(files, (result, completed, total) -> progress.incrementAndGet());
+            System.out.println(BatchReprocessor.report(results, System.nanoTime() - start));
+
+            assertEquals(13, progress.get());
+            assertFalse(results.get(12).succeeded());   // "broken" sorts last
+            for (int r = 0; r < 12; r++) {
+                BatchReprocessor.RecordingResult result = results.get(r);
+                assertEquals(files.get(r), result.file);
+                HRVAnalysisResult expected = HRVMeasurementSystem.analyze(recordings.get(r));
+                assertEquals(expected.getRRIntervals(), result.analysis.getRRIntervals());
+                assertEquals(expected.getMetrics().rmssd, result.analysis.getMetrics().rmssd, 0);
+            }
+
+            // All recorded today, so the latest one replaces today's entry; other days are untouched
+            HRVData today = new HRVData(900, 10, 10, 0, 66, 50, 3, 1);
+            HRVData otherDay = new HRVData(900, 10, 10, 0, 66, 50, 2, 0);
+            otherDay.setTimestamp(0);
+            assertEquals(1, BatchReprocessor.applyTo(new ArrayList<>(Arrays.asList(today, otherDay)), results));
+            assertEquals(results.get(11).analysis.getMetrics().heartRate, today.getHeartRate(), 0);
+            assertEquals(3, today.getFatigueLevel());
+            assertEquals(66, otherDay.getHeartRate(), 0);
+            assertEquals(0, BatchReprocessor.applyTo(Collections.<HRVData>emptyList(), results));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void batchSurvivesAnalysisFailure() throws Exception {
+        File captures = folder.newFolder(BatchReprocessor.CAPTURE_DIRECTORY);
+        TileRoiTracker tracker = TileRoiTracker.createDefault(FPS);
+        int[] sizes = new int[4];
+        for (int r = 0; r < sizes.length; r++) {
+            // Different lengths, so the analysis can tell the recordings apart
+            List<HRVMeasurementSystem.DataPoint> points = HrvAnalysisBenchmark.makeRecording(FPS, 20 + r, 70, r);
+            File file = new File(captures, String.format("20260101-%06d", r) + BatchReprocessor.RECORDING_SUFFIX);
+            try (TileSumRecorder recorder = TileSumRecorder.forTracker(file, tracker, FPS, 30_000)) {
+                for (HRVMeasurementSystem.DataPoint point : points) recorder.append(point, tracker);
+            }
+            sizes[r] = points.size();
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            AtomicInteger progress = new AtomicInteger();
+            List<BatchReprocessor.RecordingResult> results = new BatchReprocessor(pool, frames -> {
+                if (frames.size() == sizes[1]) throw new IllegalStateException("bad recording");
+                return HRVMeasurementSystem.analyze(frames);
+            }).reprocess(BatchReprocessor.findRecordings(captures),
+                    (result, completed, total) -> progress.incrementAndGet());
+
+            assertEquals(4, progress.get());
+            assertFalse(results.get(1).succeeded());
+            assertTrue(results.get(1).error instanceof IllegalStateException);
+            assertTrue(results.get(1).toString(), results.get(1).toString().contains("bad recording"));
+            for (int r : new int[]{0, 2, 3}) {
+                assertTrue(results.get(r).succeeded());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+}